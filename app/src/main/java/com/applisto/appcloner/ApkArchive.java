@@ -0,0 +1,355 @@
+package com.applisto.appcloner;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Read-only view of a ZIP/APK built from its central directory.
+ * Entry data is accessed with positional reads, so the compressed bytes of an entry can be
+ * handed to another archive without being inflated first. The archive may be a file or a
+ * {@link MemoryChannel}.
+ */
+public class ApkArchive implements Closeable {
+    static final int LFH_SIG  = 0x04034b50;
+    static final int CD_SIG   = 0x02014b50;
+    static final int EOCD_SIG = 0x06054b50;
+    static final int LFH_SIZE  = 30;
+    static final int CD_SIZE   = 46;
+    static final int EOCD_SIZE = 22;
+    static final int METHOD_STORED   = 0;
+    static final int METHOD_DEFLATED = 8;
+    private static final int MAX_COMMENT = 0xffff;
+
+    // A FileChannel or a MemoryChannel; both offer positional reads and transferTo.
+    // Null for a memory-mapped archive, which is read through mapped instead.
+    private final SeekableByteChannel channel;
+    private final ByteBuffer mapped;
+    private final Closeable owner;
+    private final long cdOffset;
+    private final long cdSize;
+    private final List<Entry> entries;
+    private final Map<String, Entry> byName;
+
+    public static ApkArchive open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return new ApkArchive(raf.getChannel(), raf);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /** Wraps an already open channel; {@code owner} is closed together with the archive. */
+    public static ApkArchive open(FileChannel channel, Closeable owner) throws IOException {
+        return new ApkArchive(channel, owner);
+    }
+
+    /** Archive held in memory; closing the archive closes {@code channel}. */
+    public static ApkArchive open(MemoryChannel channel) throws IOException {
+        return new ApkArchive(channel, null);
+    }
+
+    /**
+     * Maps {@code file} into memory. Suited to reading a few entries: nothing but the central
+     * directory and the requested entries is ever paged in. Files too large to map in one
+     * piece are opened normally.
+     */
+    public static ApkArchive map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) return open(file);
+            // The mapping stays valid after the file is closed.
+            return new ApkArchive(null, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), null);
+        }
+    }
+
+    /** Uncompressed content of entry {@code name} of {@code apk}, or null if there is none. */
+    public static byte[] readEntry(File apk, String name) throws IOException {
+        try (ApkArchive archive = map(apk)) {
+            Entry e = archive.getEntry(name);
+            return e != null ? archive.read(e) : null;
+        }
+    }
+
+    private ApkArchive(SeekableByteChannel channel, Closeable owner) throws IOException {
+        this(channel, null, owner);
+    }
+
+    private ApkArchive(SeekableByteChannel channel, ByteBuffer mapped, Closeable owner) throws IOException {
+        this.channel = channel;
+        this.mapped = mapped;
+        this.owner = owner;
+
+        long size = size();
+        if (size < EOCD_SIZE) throw new IOException("Not a ZIP archive (too small)");
+        int tailLen = (int) Math.min(size, EOCD_SIZE + MAX_COMMENT);
+        ByteBuffer tail = read(size - tailLen, tailLen);
+        int eocd = -1;
+        for (int i = tailLen - EOCD_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIG && i + EOCD_SIZE + (tail.getShort(i + 20) & 0xffff) == tailLen) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) throw new IOException("End of central directory not found");
+
+        int count = tail.getShort(eocd + 10) & 0xffff;
+        cdSize = tail.getInt(eocd + 12) & 0xffffffffL;
+        cdOffset = tail.getInt(eocd + 16) & 0xffffffffL;
+        if (count == 0xffff || cdSize == 0xffffffffL || cdOffset == 0xffffffffL) {
+            throw new IOException("ZIP64 archives are not supported");
+        }
+        if (cdOffset + cdSize > size - tailLen + eocd) throw new IOException("Central directory out of bounds");
+
+        ByteBuffer cd = read(cdOffset, (int) cdSize);
+        List<Entry> list = new ArrayList<>(count);
+        Map<String, Entry> map = new HashMap<>(count * 2);
+        int p = 0;
+        for (int i = 0; i < count; i++) {
+            if (p + CD_SIZE > cdSize || cd.getInt(p) != CD_SIG) {
+                throw new IOException("Corrupt central directory record #" + i);
+            }
+            Entry e = new Entry();
+            e.flags = cd.getShort(p + 8) & 0xffff;
+            e.method = cd.getShort(p + 10) & 0xffff;
+            e.crc = cd.getInt(p + 16) & 0xffffffffL;
+            e.compressedSize = cd.getInt(p + 20) & 0xffffffffL;
+            e.size = cd.getInt(p + 24) & 0xffffffffL;
+            int nameLen = cd.getShort(p + 28) & 0xffff;
+            int extraLen = cd.getShort(p + 30) & 0xffff;
+            int commentLen = cd.getShort(p + 32) & 0xffff;
+            e.localHeaderOffset = cd.getInt(p + 42) & 0xffffffffL;
+            if (e.compressedSize == 0xffffffffL || e.size == 0xffffffffL || e.localHeaderOffset == 0xffffffffL) {
+                throw new IOException("ZIP64 archives are not supported");
+            }
+            byte[] name = new byte[nameLen];
+            cd.position(p + CD_SIZE);
+            cd.get(name);
+            e.name = new String(name, StandardCharsets.UTF_8);
+            p += CD_SIZE + nameLen + extraLen + commentLen;
+
+            list.add(e);
+            // Like the platform's ZipFile, the first record of a duplicated name wins.
+            if (!map.containsKey(e.name)) map.put(e.name, e);
+        }
+        entries = Collections.unmodifiableList(list);
+        byName = map;
+    }
+
+    public List<Entry> entries() {
+        return entries;
+    }
+
+    public Entry getEntry(String name) {
+        return byName.get(name);
+    }
+
+    public long centralDirectoryOffset() {
+        return cdOffset;
+    }
+
+    public long centralDirectorySize() {
+        return cdSize;
+    }
+
+    public long size() throws IOException {
+        return mapped != null ? mapped.capacity() : channel.size();
+    }
+
+    /** Raw bytes of the central directory; a cheap fingerprint of the archive's entries. */
+    public byte[] readCentralDirectory() throws IOException {
+        return read(cdOffset, (int) cdSize).array();
+    }
+
+    /** Offset of the first byte of entry data, i.e. just past the local file header. */
+    public long dataOffset(Entry e) throws IOException {
+        if (e.dataOffset < 0) {
+            ByteBuffer lfh = read(e.localHeaderOffset, LFH_SIZE);
+            if (lfh.getInt(0) != LFH_SIG) throw new IOException("Bad local header for " + e.name);
+            int nameLen = lfh.getShort(26) & 0xffff;
+            int extraLen = lfh.getShort(28) & 0xffff;
+            e.dataOffset = e.localHeaderOffset + LFH_SIZE + nameLen + extraLen;
+        }
+        return e.dataOffset;
+    }
+
+    /** Copies the compressed bytes of {@code e} to {@code out} without touching them. */
+    public void transferRaw(Entry e, WritableByteChannel out) throws IOException {
+        long pos = dataOffset(e);
+        long remaining = e.compressedSize;
+        if (mapped != null) {
+            ByteBuffer b = mapped.duplicate();
+            b.limit((int) (pos + remaining)).position((int) pos);
+            while (b.hasRemaining()) out.write(b);
+            return;
+        }
+        while (remaining > 0) {
+            long n = channel instanceof FileChannel
+                    ? ((FileChannel) channel).transferTo(pos, remaining, out)
+                    : ((MemoryChannel) channel).transferTo(pos, remaining, out);
+            if (n <= 0) throw new EOFException("Truncated entry: " + e.name);
+            pos += n;
+            remaining -= n;
+        }
+    }
+
+    /**
+     * Page size the STORED native libs of this archive are aligned to, or 0 if they are not
+     * (or there are none).
+     */
+    public int nativeLibAlignment() throws IOException {
+        int alignment = ApkProcessor.PAGE_SIZE_16K;
+        boolean found = false;
+        for (Entry e : entries) {
+            if (e.method != METHOD_STORED || !e.name.startsWith("lib/") || !e.name.endsWith(".so")) continue;
+            found = true;
+            long offset = dataOffset(e);
+            if (offset % alignment != 0) alignment = ApkProcessor.PAGE_SIZE_4K;
+            if (offset % alignment != 0) return 0;
+        }
+        return found ? alignment : 0;
+    }
+
+    /** Stream over the compressed bytes of {@code e}. */
+    public InputStream openRaw(Entry e) throws IOException {
+        return new BufferedInputStream(new ChannelInputStream(dataOffset(e), e.compressedSize), 64 * 1024);
+    }
+
+    /** Stream over the uncompressed bytes of {@code e}. */
+    public InputStream open(Entry e) throws IOException {
+        if (e.method == METHOD_STORED) return openRaw(e);
+        if (e.method != METHOD_DEFLATED) {
+            throw new IOException("Unsupported compression method " + e.method + " for " + e.name);
+        }
+        Inflater inflater = new Inflater(true);
+        return new InflaterInputStream(openRaw(e), inflater, 64 * 1024) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                inflater.end();
+            }
+        };
+    }
+
+    public byte[] read(Entry e) throws IOException {
+        if (e.size > Integer.MAX_VALUE - 8) throw new IOException("Entry too large: " + e.name);
+        byte[] data = new byte[(int) e.size];
+        try (InputStream in = open(e)) {
+            int off = 0;
+            while (off < data.length) {
+                int n = in.read(data, off, data.length - off);
+                if (n < 0) throw new EOFException("Truncated entry: " + e.name);
+                off += n;
+            }
+        }
+        return data;
+    }
+
+    private ByteBuffer read(long pos, int len) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(len).order(ByteOrder.LITTLE_ENDIAN);
+        while (buf.hasRemaining()) {
+            int n = readAt(buf, pos + buf.position());
+            if (n < 0) throw new EOFException("Unexpected end of archive");
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private int readAt(ByteBuffer dst, long pos) throws IOException {
+        if (mapped != null) {
+            if (pos >= mapped.capacity()) return -1;
+            ByteBuffer b = mapped.duplicate();
+            b.position((int) pos).limit((int) Math.min(mapped.capacity(), pos + dst.remaining()));
+            int n = b.remaining();
+            dst.put(b);
+            return n;
+        }
+        return channel instanceof FileChannel
+                ? ((FileChannel) channel).read(dst, pos)
+                : ((MemoryChannel) channel).read(dst, pos);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (owner != null) {
+            owner.close();
+        } else if (channel != null) {
+            channel.close();
+        }
+    }
+
+    public static class Entry {
+        String name;
+        int flags;
+        int method;
+        long crc;
+        long compressedSize;
+        long size;
+        long localHeaderOffset;
+        long dataOffset = -1;
+
+        public String getName() {
+            return name;
+        }
+
+        public int getMethod() {
+            return method;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+    }
+
+    private class ChannelInputStream extends InputStream {
+        private long pos;
+        private long remaining;
+
+        ChannelInputStream(long pos, long length) {
+            this.pos = pos;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) return -1;
+            int n = readAt(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), pos);
+            if (n < 0) throw new EOFException("Unexpected end of archive");
+            pos += n;
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(remaining, Integer.MAX_VALUE);
+        }
+    }
+}
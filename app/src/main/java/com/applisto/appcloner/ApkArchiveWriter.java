@@ -0,0 +1,552 @@
+package com.applisto.appcloner;
+
+import com.android.apksig.ApkSignerEngine;
+import com.android.apksig.util.DataSource;
+import com.android.apksig.util.DataSources;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Minimal ZIP writer for APK output.
+ * Unlike {@link java.util.zip.ZipOutputStream} it can take an entry's compressed bytes, CRC and
+ * sizes from another archive as they are, so entries we do not modify are never re-deflated.
+ * Every payload byte passes through once; CRC, sizes and (optionally) SHA-256 are computed on
+ * the way and kept as {@link EntryDescriptor}s.
+ */
+public class ApkArchiveWriter implements Closeable {
+    // 1980-01-01 00:00, the DOS equivalent of the setTime(0L) we used with ZipOutputStream.
+    private static final int DOS_TIME = 0;
+    private static final int DOS_DATE = (1 << 5) | 1;
+    private static final int FLAG_UTF8 = 0x0800;
+    private static final int VERSION_NEEDED = 20;
+    // Extra field used by zipalign -p and apksigner to record the alignment of an entry.
+    private static final int ALIGNMENT_EXTRA_ID = 0xd935;
+    private static final int ALIGNMENT_EXTRA_MIN_SIZE = 6;
+    private static final int DEFAULT_ALIGNMENT = 4;
+    // Upper bound for uncompressed bytes of queued entries waiting on the deflate pool.
+    private static final long MAX_PENDING_BYTES = 32L * 1024 * 1024;
+
+    private final SeekableByteChannel out;
+    private final FileChannel readBack;
+    private final MemoryChannel memory;
+    private final Closeable owner;
+    private final List<Record> records = new ArrayList<>();
+    private final Set<String> names = new HashSet<>();
+    private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+    private final byte[] buf = new byte[64 * 1024];
+    private long pendingBytes;
+    private int level = Deflater.BEST_COMPRESSION;
+    private int pageAlignment;
+    private ParallelDeflater deflater;
+    private boolean digestsEnabled;
+    private SigningEngine.Session signing;
+
+    public static ApkArchiveWriter create(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        return new ApkArchiveWriter(raf.getChannel(), raf);
+    }
+
+    public ApkArchiveWriter(FileChannel out, Closeable owner) {
+        this(out, out, owner);
+    }
+
+    /**
+     * For write-only channels, e.g. from a FileOutputStream: {@code readBack} is a readable
+     * channel on the same file, used by signing to digest what has been written.
+     */
+    public ApkArchiveWriter(FileChannel out, FileChannel readBack, Closeable owner) {
+        this.out = out;
+        this.readBack = readBack;
+        this.memory = null;
+        this.owner = owner;
+    }
+
+    /** Writes into {@code memory}; closing the writer leaves the channel open for the caller. */
+    public ApkArchiveWriter(MemoryChannel memory) {
+        this.out = memory;
+        this.readBack = null;
+        this.memory = memory;
+        this.owner = () -> { };
+    }
+
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    /**
+     * Aligns the data of STORED {@code .so} entries to {@code pageSize} (4096 or 16384) so the
+     * platform can map them straight from the APK; 0 leaves them at the default 4-byte
+     * alignment that every STORED entry gets.
+     */
+    public void setPageAlignment(int pageSize) {
+        this.pageAlignment = pageSize;
+    }
+
+    /**
+     * Routes all DEFLATE work through {@code deflater}; its level overrides {@link #setLevel}.
+     * Without one, entries are compressed on the calling thread.
+     */
+    public void setDeflater(ParallelDeflater deflater) {
+        this.deflater = deflater;
+    }
+
+    /**
+     * Also computes the SHA-256 of the uncompressed data of every entry whose bytes pass through
+     * uncompressed. Raw copies are not inflated for this; their descriptors carry no digest.
+     */
+    public void setDigestsEnabled(boolean enabled) {
+        this.digestsEnabled = enabled;
+    }
+
+    /**
+     * Signs the archive while it is written: entry data is handed to {@code session} as it
+     * passes, and {@link #finish} adds the JAR signature files and the APK Signing Block.
+     * Raw copies are inflated only for entries the session asks to see (v1 signing).
+     */
+    public void setSigningSession(SigningEngine.Session session) {
+        this.signing = session;
+    }
+
+    /** Descriptors of all entries written so far, in archive order. */
+    public List<EntryDescriptor> getDescriptors() throws IOException {
+        flushPending();
+        return Collections.unmodifiableList(new ArrayList<EntryDescriptor>(records));
+    }
+
+    public EntryDescriptor getDescriptor(String name) throws IOException {
+        flushPending();
+        for (Record r : records) {
+            if (r.name.equals(name)) return r;
+        }
+        return null;
+    }
+
+    /** Bytes of the archive written so far. */
+    public long bytesWritten() throws IOException {
+        return out.position();
+    }
+
+    public boolean contains(String name) {
+        return names.contains(name);
+    }
+
+    /** Copies {@code e} from {@code src} without inflating it. */
+    public void copy(ApkArchive src, ApkArchive.Entry e) throws IOException {
+        copy(src, e, e.getName());
+    }
+
+    /** Copies {@code e} from {@code src} as entry {@code name}, without inflating it. */
+    public void copy(ApkArchive src, ApkArchive.Entry e, String name) throws IOException {
+        flushPending();
+        Record r = newRecord(name, e.getMethod());
+        r.crc = e.getCrc();
+        r.compressedSize = e.getCompressedSize();
+        r.size = e.getSize();
+        writeLocalHeader(r);
+        src.transferRaw(e, out);
+        SigningEngine.EntrySink sink = signing != null ? signing.startEntry(r.name) : null;
+        if (sink != null) {
+            try (InputStream in = src.open(e)) {
+                int n;
+                while ((n = in.read(buf)) != -1) sink.write(buf, 0, n);
+            }
+            sink.done();
+        }
+    }
+
+    /**
+     * Copies {@code e} from {@code src} as a STORED entry, inflating it if the source compressed
+     * it. CRC and size come from the source central directory and are checked on the way.
+     */
+    public void copyUncompressed(ApkArchive src, ApkArchive.Entry e) throws IOException {
+        if (e.getMethod() == ApkArchive.METHOD_STORED) {
+            copy(src, e);
+            return;
+        }
+        flushPending();
+        Record r = newRecord(e.getName(), ApkArchive.METHOD_STORED);
+        try (InputStream in = src.open(e)) {
+            writeStored(r, in);
+        }
+        if (r.size != e.getSize() || r.crc != e.getCrc()) {
+            throw new IOException("CRC or size mismatch in " + e.getName());
+        }
+    }
+
+    public void putStored(String name, byte[] data) throws IOException {
+        flushPending();
+        Record r = newRecord(name, ApkArchive.METHOD_STORED);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        r.crc = crc.getValue();
+        r.compressedSize = r.size = data.length;
+        if (digestsEnabled) r.sha256 = EntryDescriptor.newSha256().digest(data);
+        writeLocalHeader(r);
+        writeFully(ByteBuffer.wrap(data));
+        inspect(name, data);
+    }
+
+    public void putDeflated(String name, byte[] data) throws IOException {
+        flushPending();
+        try (InputStream in = new ByteArrayInputStream(data)) {
+            putDeflated(name, in);
+        }
+    }
+
+    /**
+     * Like {@link #putDeflated(String, byte[])}, but compression runs on the deflate pool while
+     * the caller moves on. Queued entries are written in submission order before the next
+     * non-queued write.
+     */
+    public void queueDeflated(String name, byte[] data) throws IOException {
+        if (deflater == null || data.length > ParallelDeflater.BLOCK_SIZE) {
+            putDeflated(name, data);
+            return;
+        }
+        reserve(name);
+        // The data is at hand now; the signer does not care in which order entries are seen.
+        inspect(name, data);
+        Pending p = new Pending();
+        p.name = name;
+        p.size = data.length;
+        p.result = deflater.submit(data, digestsEnabled);
+        pending.add(p);
+        pendingBytes += p.size;
+        while (pendingBytes > MAX_PENDING_BYTES) writePending(pending.poll());
+    }
+
+    private void flushPending() throws IOException {
+        while (!pending.isEmpty()) writePending(pending.poll());
+    }
+
+    private void writePending(Pending p) throws IOException {
+        pendingBytes -= p.size;
+        ParallelDeflater.Deflated d = ParallelDeflater.await(p.result);
+        Record r = record(p.name, ApkArchive.METHOD_DEFLATED);
+        r.crc = d.crc;
+        r.size = d.size;
+        r.compressedSize = d.data.length;
+        r.sha256 = d.sha256;
+        writeLocalHeader(r);
+        writeFully(ByteBuffer.wrap(d.data));
+    }
+
+    public void putFile(String name, File file, boolean store) throws IOException {
+        flushPending();
+        if (!store) {
+            try (InputStream in = new FileInputStream(file)) {
+                putDeflated(name, in);
+            }
+            return;
+        }
+        Record r = newRecord(name, ApkArchive.METHOD_STORED);
+        try (InputStream in = new FileInputStream(file)) {
+            writeStored(r, in);
+        }
+    }
+
+    /**
+     * Streams {@code in} into STORED entry {@code r} in one pass. The local header is written
+     * with placeholder values and patched afterwards; its length does not depend on CRC or
+     * size, so the alignment padding stays valid.
+     */
+    private void writeStored(Record r, InputStream in) throws IOException {
+        writeLocalHeader(r);
+        CRC32 crc = new CRC32();
+        MessageDigest sha = digestsEnabled ? EntryDescriptor.newSha256() : null;
+        SigningEngine.EntrySink sink = signing != null ? signing.startEntry(r.name) : null;
+        long size = 0;
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            crc.update(buf, 0, n);
+            if (sha != null) sha.update(buf, 0, n);
+            if (sink != null) sink.write(buf, 0, n);
+            writeFully(ByteBuffer.wrap(buf, 0, n));
+            size += n;
+        }
+        if (sink != null) sink.done();
+        if (size > 0xffffffffL) throw new IOException("ZIP64 archives are not supported");
+        long end = out.position();
+        r.crc = crc.getValue();
+        r.compressedSize = r.size = size;
+        if (sha != null) r.sha256 = sha.digest();
+        out.position(r.localHeaderOffset);
+        writeLocalHeader(r);
+        out.position(end);
+    }
+
+    /**
+     * Deflates {@code in} into a new entry. The local header is written with placeholder
+     * values and patched once CRC and sizes are known, so the input is read only once.
+     */
+    private void putDeflated(String name, InputStream in) throws IOException {
+        Record r = newRecord(name, ApkArchive.METHOD_DEFLATED);
+        writeLocalHeader(r);
+        long dataStart = out.position();
+        MessageDigest sha = null;
+        if (digestsEnabled) {
+            sha = EntryDescriptor.newSha256();
+            in = new DigestInputStream(in, sha);
+        }
+        SigningEngine.EntrySink sink = signing != null ? signing.startEntry(name) : null;
+        if (sink != null) in = new InspectingInputStream(in, sink);
+
+        if (deflater != null) {
+            ParallelDeflater.Deflated d = deflater.deflate(in, (b, off, len) -> writeFully(ByteBuffer.wrap(b, off, len)));
+            r.crc = d.crc;
+            r.size = d.size;
+            r.compressedSize = d.compressedSize;
+            if (sha != null) r.sha256 = sha.digest();
+            if (sink != null) sink.done();
+            out.position(r.localHeaderOffset);
+            writeLocalHeader(r);
+            out.position(dataStart + r.compressedSize);
+            return;
+        }
+
+        CRC32 crc = new CRC32();
+        Deflater deflater = new Deflater(level, true);
+        byte[] outBuf = new byte[64 * 1024];
+        try {
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                crc.update(buf, 0, n);
+                r.size += n;
+                deflater.setInput(buf, 0, n);
+                while (!deflater.needsInput()) drain(deflater, outBuf);
+            }
+            deflater.finish();
+            while (!deflater.finished()) drain(deflater, outBuf);
+        } finally {
+            deflater.end();
+        }
+        long end = out.position();
+        r.crc = crc.getValue();
+        r.compressedSize = end - dataStart;
+        if (sha != null) r.sha256 = sha.digest();
+        if (sink != null) sink.done();
+        out.position(r.localHeaderOffset);
+        writeLocalHeader(r);
+        out.position(end);
+    }
+
+    private void drain(Deflater deflater, byte[] outBuf) throws IOException {
+        int n = deflater.deflate(outBuf);
+        if (n > 0) writeFully(ByteBuffer.wrap(outBuf, 0, n));
+    }
+
+    /**
+     * Writes the central directory and end record, preceded by the signature entries and the
+     * APK Signing Block when a signing session is set. Must be called once, after the last entry.
+     */
+    public void finish() throws IOException {
+        flushPending();
+        if (signing != null) {
+            try {
+                for (ApkSignerEngine.OutputJarSignatureRequest.JarEntry je : signing.signatureEntries()) {
+                    putDeflated(je.getName(), je.getData());
+                }
+                signing.signatureEntriesWritten();
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException("JAR signing failed", e);
+            }
+        }
+        if (records.size() >= 0xffff) throw new IOException("ZIP64 archives are not supported");
+        long entriesEnd = out.position();
+        if (entriesEnd > 0xffffffffL) throw new IOException("ZIP64 archives are not supported");
+        ByteBuffer cd = centralDirectory();
+        long cdOffset = entriesEnd;
+
+        if (signing != null) {
+            SigningEngine.SigningBlock block;
+            try {
+                DataSource entries = memory != null ? memory.asDataSource(0, entriesEnd)
+                        : DataSources.asDataSource(readBack, 0, entriesEnd);
+                block = signing.signingBlock(entries,
+                        cd.duplicate(), endRecord(cd.remaining(), entriesEnd));
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException("APK signing failed", e);
+            }
+            if (!block.isEmpty()) {
+                writeFully(ByteBuffer.allocate(block.padding));
+                writeFully(ByteBuffer.wrap(block.data));
+                cdOffset = out.position();
+                if (cdOffset > 0xffffffffL) throw new IOException("ZIP64 archives are not supported");
+            }
+        }
+        ByteBuffer eocd = endRecord(cd.remaining(), cdOffset);
+        writeFully(cd);
+        writeFully(eocd);
+        out.truncate(out.position());
+    }
+
+    private ByteBuffer centralDirectory() {
+        int total = 0;
+        for (Record r : records) total += ApkArchive.CD_SIZE + r.nameBytes.length;
+        ByteBuffer h = ByteBuffer.allocate(total).order(ByteOrder.LITTLE_ENDIAN);
+        for (Record r : records) {
+            h.putInt(ApkArchive.CD_SIG);
+            h.putShort((short) VERSION_NEEDED);
+            h.putShort((short) VERSION_NEEDED);
+            h.putShort((short) r.flags);
+            h.putShort((short) r.method);
+            h.putShort((short) DOS_TIME);
+            h.putShort((short) DOS_DATE);
+            h.putInt((int) r.crc);
+            h.putInt((int) r.compressedSize);
+            h.putInt((int) r.size);
+            h.putShort((short) r.nameBytes.length);
+            h.putShort((short) 0);
+            h.putShort((short) 0);
+            h.putShort((short) 0);
+            h.putShort((short) 0);
+            h.putInt(0);
+            h.putInt((int) r.localHeaderOffset);
+            h.put(r.nameBytes);
+        }
+        h.flip();
+        return h;
+    }
+
+    private ByteBuffer endRecord(long cdSize, long cdOffset) {
+        ByteBuffer eocd = ByteBuffer.allocate(ApkArchive.EOCD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        eocd.putInt(ApkArchive.EOCD_SIG);
+        eocd.putShort((short) 0);
+        eocd.putShort((short) 0);
+        eocd.putShort((short) records.size());
+        eocd.putShort((short) records.size());
+        eocd.putInt((int) cdSize);
+        eocd.putInt((int) cdOffset);
+        eocd.putShort((short) 0);
+        eocd.flip();
+        return eocd;
+    }
+
+    /** Shows {@code data}, the uncompressed content of {@code name}, to the signing session. */
+    private void inspect(String name, byte[] data) throws IOException {
+        SigningEngine.EntrySink sink = signing != null ? signing.startEntry(name) : null;
+        if (sink == null) return;
+        sink.write(data, 0, data.length);
+        sink.done();
+    }
+
+    private Record newRecord(String name, int method) throws IOException {
+        reserve(name);
+        return record(name, method);
+    }
+
+    private void reserve(String name) throws IOException {
+        if (!names.add(name)) throw new IOException("Duplicate entry: " + name);
+    }
+
+    private Record record(String name, int method) throws IOException {
+        Record r = new Record();
+        r.name = name;
+        r.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        r.flags = r.nameBytes.length != name.length() ? FLAG_UTF8 : 0;
+        r.method = method;
+        r.localHeaderOffset = out.position();
+        if (r.localHeaderOffset > 0xffffffffL) throw new IOException("ZIP64 archives are not supported");
+        records.add(r);
+        return r;
+    }
+
+    private void writeLocalHeader(Record r) throws IOException {
+        int extraLen = 0;
+        int alignment = alignmentFor(r);
+        if (alignment > 1) {
+            long dataStart = r.localHeaderOffset + ApkArchive.LFH_SIZE + r.nameBytes.length + ALIGNMENT_EXTRA_MIN_SIZE;
+            extraLen = ALIGNMENT_EXTRA_MIN_SIZE + (int) ((alignment - dataStart % alignment) % alignment);
+        }
+        ByteBuffer h = ByteBuffer.allocate(ApkArchive.LFH_SIZE + r.nameBytes.length + extraLen).order(ByteOrder.LITTLE_ENDIAN);
+        h.putInt(ApkArchive.LFH_SIG);
+        h.putShort((short) VERSION_NEEDED);
+        h.putShort((short) r.flags);
+        h.putShort((short) r.method);
+        h.putShort((short) DOS_TIME);
+        h.putShort((short) DOS_DATE);
+        h.putInt((int) r.crc);
+        h.putInt((int) r.compressedSize);
+        h.putInt((int) r.size);
+        h.putShort((short) r.nameBytes.length);
+        h.putShort((short) extraLen);
+        h.put(r.nameBytes);
+        if (extraLen > 0) {
+            h.putShort((short) ALIGNMENT_EXTRA_ID);
+            h.putShort((short) (extraLen - 4));
+            h.putShort((short) alignment);
+            // The rest of the field is zero padding.
+        }
+        h.rewind();
+        writeFully(h);
+    }
+
+    private int alignmentFor(Record r) {
+        if (r.method != ApkArchive.METHOD_STORED) return 1;
+        if (pageAlignment > 0 && r.name.endsWith(".so")) return pageAlignment;
+        return DEFAULT_ALIGNMENT;
+    }
+
+    private void writeFully(ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) out.write(b);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (owner != null) {
+            owner.close();
+        } else {
+            out.close();
+        }
+    }
+
+    /** Passes everything read through to a signing sink. */
+    private static class InspectingInputStream extends FilterInputStream {
+        private final SigningEngine.EntrySink sink;
+
+        InspectingInputStream(InputStream in, SigningEngine.EntrySink sink) {
+            super(in);
+            this.sink = sink;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) sink.write(new byte[] {(byte) b}, 0, 1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) sink.write(b, off, n);
+            return n;
+        }
+    }
+
+    private static class Pending {
+        String name;
+        long size;
+        Future<ParallelDeflater.Deflated> result;
+    }
+
+    private static class Record extends EntryDescriptor {
+        byte[] nameBytes;
+        int flags;
+    }
+}
@@ -0,0 +1,252 @@
+package com.applisto.appcloner;
+
+import android.content.Context;
+import android.util.Log;
+import com.reandroid.arsc.chunk.xml.ResXmlAttribute;
+import com.reandroid.arsc.chunk.xml.ResXmlDocument;
+import com.reandroid.arsc.chunk.xml.ResXmlElement;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Checks an APK before it is cloned, reading only its central directory and binary manifest.
+ * Reports what the build will need and everything that would make it fail, so those
+ * failures surface when the app is selected rather than after the pipeline has run.
+ */
+public class ApkPreflight {
+    private static final String TAG = "ApkPreflight";
+    private static final String ANDROID_MANIFEST = "AndroidManifest.xml";
+    private static final String INJECTED_PROVIDER_SUFFIX = ".com.applisto.appcloner.DefaultProvider";
+    private static final int ID_ANDROID_AUTHORITIES = 0x01010018;
+    private static final int ID_ANDROID_NAME = 0x01010003;
+    // The patched manifest grows by the provider, receivers, permissions and metadata.
+    private static final long MANIFEST_GROWTH = 16 * 1024;
+    // Largest archive ApkArchiveWriter can write; it does not write ZIP64.
+    private static final long MAX_OUTPUT_BYTES = 0xffffffffL;
+
+    public static class Report {
+        final List<String> blockers = new ArrayList<>();
+        final List<String> warnings = new ArrayList<>();
+        Set<String> abis = Collections.emptySet();
+        String packageName;
+        int minSdk = -1;
+        int dexCount;
+        long apkBytes;
+        long estimatedOutputBytes;
+        long requiredTempBytes;
+        long spoolBytes;
+        long availableTempBytes;
+        boolean alreadyCloned;
+        long scanMillis;
+
+        /** Whether cloning can be started; false if there is any blocker. */
+        public boolean canClone() {
+            return blockers.isEmpty();
+        }
+
+        /** Reasons the clone would fail, e.g. a manifest without {@code <application>}. */
+        public List<String> getBlockers() {
+            return blockers;
+        }
+
+        /** Findings that do not stop the build but may surprise, e.g. a missing minSdkVersion. */
+        public List<String> getWarnings() {
+            return warnings;
+        }
+
+        public Set<String> getAbis() {
+            return abis;
+        }
+
+        public String getPackageName() {
+            return packageName;
+        }
+
+        /** minSdkVersion of the manifest, or -1 if it declares none. */
+        public int getMinSdk() {
+            return minSdk;
+        }
+
+        public int getDexCount() {
+            return dexCount;
+        }
+
+        /** Size of the signed clone, from the compressed sizes the source entries keep. */
+        public long getEstimatedOutputBytes() {
+            return estimatedOutputBytes;
+        }
+
+        /** Space the build takes in the cache partition: the rest of the source copy and split outputs. */
+        public long getRequiredTempBytes() {
+            return requiredTempBytes;
+        }
+
+        /** Space a single-APK clone takes on top if its destination cannot be written in place. */
+        public long getSpoolBytes() {
+            return spoolBytes;
+        }
+
+        public boolean isAlreadyCloned() {
+            return alreadyCloned;
+        }
+
+        public long getScanMillis() {
+            return scanMillis;
+        }
+
+        /** One line for a status bar, e.g. "3 dex, minSdk 21, ~42.0 MB clone". */
+        public String summary() {
+            return dexCount + " dex, minSdk " + (minSdk > 0 ? String.valueOf(minSdk) : "not set") + ", ~"
+                    + mb(estimatedOutputBytes) + " clone";
+        }
+
+        /** Multi-line report for a dialog or the log. */
+        public String describe() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(packageName != null ? packageName : "unknown package").append(": ").append(summary())
+                    .append("\nABIs ").append(abis.isEmpty() ? "none" : abis)
+                    .append(", temp space ").append(mb(requiredTempBytes));
+            if (spoolBytes > 0) sb.append(" (+").append(mb(spoolBytes)).append(" if spooled)");
+            sb.append(" of ").append(mb(availableTempBytes)).append(" free");
+            for (String b : blockers) sb.append("\nBlocked: ").append(b);
+            for (String w : warnings) sb.append("\nWarning: ").append(w);
+            sb.append("\n(checked in ").append(scanMillis).append(" ms)");
+            return sb.toString();
+        }
+
+        private static String mb(long bytes) {
+            return String.format(Locale.US, "%.1f MB", bytes / (1024.0 * 1024));
+        }
+    }
+
+    /**
+     * Scans {@code apk}, with {@code splits} if it is installed as a split set, for a clone
+     * that gets {@code payload} injected. {@code payload} may be null; the estimates then leave
+     * the hook out. {@code sourceCopy} is where the APK is being copied in the cache, or null;
+     * only the part not yet copied counts against the free space.
+     */
+    public static Report scan(Context ctx, File apk, List<File> splits, HookPayload payload, File sourceCopy) {
+        long start = System.nanoTime();
+        Report report = new Report();
+        try {
+            scanInto(report, ctx, apk, splits, payload, sourceCopy);
+        } catch (IOException e) {
+            report.blockers.add("Not a readable APK: " + e.getMessage());
+        }
+        report.scanMillis = (System.nanoTime() - start) / 1_000_000;
+        Log.d(TAG, apk.getName() + ": " + report.describe());
+        return report;
+    }
+
+    private static void scanInto(Report report, Context ctx, File apk, List<File> splits, HookPayload payload,
+                                 File sourceCopy) throws IOException {
+        report.apkBytes = apk.length();
+        long splitBytes = 0;
+        try (ApkArchive archive = ApkArchive.map(apk)) {
+            report.abis = ApkProcessor.abisOf(archive);
+            long output = 0;
+            for (ApkArchive.Entry e : archive.entries()) {
+                String name = e.getName();
+                if (ApkProcessor.dexIndex(name) > 0) report.dexCount++;
+                // Old signatures are dropped; the new ones are small next to the entries.
+                if (!name.startsWith("META-INF/")) output += e.getCompressedSize();
+            }
+            ApkArchive.Entry manifest = archive.getEntry(ANDROID_MANIFEST);
+            if (manifest == null) {
+                report.blockers.add("No AndroidManifest.xml");
+            } else {
+                checkManifest(report, archive.read(manifest));
+            }
+            if (report.dexCount == 0) report.blockers.add("No classes.dex; apps without code cannot host the hook");
+            output += MANIFEST_GROWTH + payloadBytes(payload, report.abis);
+            report.estimatedOutputBytes = output;
+        }
+        for (File split : splits) splitBytes += split.length();
+        if (report.estimatedOutputBytes + splitBytes > MAX_OUTPUT_BYTES) {
+            report.blockers.add("Clone would exceed 4 GB, which needs ZIP64");
+        }
+
+        // The copy of the selected APK may be under way; what it already wrote is no longer free.
+        long sourceBytes = report.apkBytes;
+        if (sourceCopy != null) sourceBytes = Math.max(0, sourceBytes - sourceCopy.length());
+        // Split sets are written to the cache in full. A single APK only is spooled there when its
+        // destination is not seekable, which is not known until it is picked.
+        long outputBytes = report.estimatedOutputBytes + splitBytes;
+        report.requiredTempBytes = sourceBytes + (splits.isEmpty() ? 0 : outputBytes);
+        report.spoolBytes = splits.isEmpty() ? outputBytes : 0;
+        report.availableTempBytes = ctx.getCacheDir().getUsableSpace();
+        if (sourceBytes > report.availableTempBytes) {
+            report.blockers.add("Not enough free space in the cache to copy the APK: " + Report.mb(sourceBytes)
+                    + " needed, " + Report.mb(report.availableTempBytes) + " free");
+        } else if (report.requiredTempBytes + report.spoolBytes > report.availableTempBytes) {
+            // The output sizes are estimates, so a tight margin may still work out.
+            report.warnings.add("The cache may run out of space: about "
+                    + Report.mb(report.requiredTempBytes + report.spoolBytes) + " needed, "
+                    + Report.mb(report.availableTempBytes) + " free");
+        }
+    }
+
+    private static void checkManifest(Report report, byte[] raw) {
+        ResXmlElement root;
+        try {
+            ResXmlDocument doc = new ResXmlDocument();
+            doc.readBytes(new ByteArrayInputStream(raw));
+            root = doc.getDocumentElement();
+        } catch (Exception e) {
+            report.blockers.add("Manifest cannot be parsed: " + e.getMessage());
+            return;
+        }
+        if (root == null) {
+            report.blockers.add("Manifest has no root element");
+            return;
+        }
+        ResXmlAttribute pkg = root.searchAttributeByName("package");
+        report.packageName = pkg != null ? pkg.getValueAsString() : null;
+        if (report.packageName == null || report.packageName.isEmpty()) {
+            report.blockers.add("Manifest declares no package");
+        }
+        ResXmlAttribute split = root.searchAttributeByName("split");
+        if (split != null && split.getValueAsString() != null && !split.getValueAsString().isEmpty()) {
+            report.blockers.add("This is split " + split.getValueAsString() + "; clone the base APK instead");
+        }
+        report.minSdk = ApkProcessor.parseMinSdk(root);
+        if (report.minSdk < 0) report.warnings.add("No minSdkVersion; the clone is signed for API 1");
+
+        ResXmlElement app = root.getElement("application");
+        if (app == null) {
+            report.blockers.add("Manifest has no <application>");
+            return;
+        }
+        for (ResXmlElement provider : app.listElements("provider")) {
+            ResXmlAttribute authorities = provider.searchAttributeByResourceId(ID_ANDROID_AUTHORITIES);
+            String value = authorities != null ? authorities.getValueAsString() : null;
+            if (value != null && value.endsWith(INJECTED_PROVIDER_SUFFIX)) report.alreadyCloned = true;
+        }
+        for (ResXmlElement meta : app.listElements("meta-data")) {
+            ResXmlAttribute name = meta.searchAttributeByResourceId(ID_ANDROID_NAME);
+            if (name != null && CloneMetadata.KEY_INJECTOR_VERSION.equals(name.getValueAsString())) {
+                report.alreadyCloned = true;
+            }
+        }
+        if (report.alreadyCloned) {
+            report.blockers.add("Already a clone; update its hook or settings instead of cloning it again");
+        }
+    }
+
+    /** Bytes the hook adds: its dex and, per ABI of the app (all if it has none), its libraries. */
+    private static long payloadBytes(HookPayload payload, Set<String> abis) {
+        if (payload == null) return 0;
+        long bytes = payload.getHookDex().length();
+        File[] abiDirs = payload.getLibDir().listFiles(File::isDirectory);
+        if (abiDirs == null) return bytes;
+        for (File dir : abiDirs) {
+            if (!abis.isEmpty() && !abis.contains(dir.getName())) continue;
+            File[] libs = dir.listFiles();
+            if (libs == null) continue;
+            for (File so : libs) bytes += so.length();
+        }
+        return bytes;
+    }
+}
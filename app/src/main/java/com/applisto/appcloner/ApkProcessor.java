@@ -1,9 +1,10 @@
 package com.applisto.appcloner;
 
+import android.app.ActivityManager;
 import android.content.Context;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
-import com.android.apksig.ApkSigner;
 import com.reandroid.arsc.chunk.xml.ResXmlAttribute;
 import com.reandroid.arsc.chunk.xml.ResXmlDocument;
 import com.reandroid.arsc.chunk.xml.ResXmlElement;
@@ -11,18 +12,18 @@ import com.reandroid.arsc.value.ValueType;
 import java.io.*;
 import org.json.JSONException;
 import org.json.JSONObject;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
-import java.security.KeyStore;
-import java.security.PrivateKey;
+import java.security.MessageDigest;
 import java.security.cert.X509Certificate;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
-import java.util.zip.CRC32;
 
 public class ApkProcessor {
     private static final String TAG = "ApkProcessor";
@@ -35,11 +36,14 @@ public class ApkProcessor {
     private static final String E_INTENT_FILTER = "intent-filter";
     private static final String E_ACTION       = "action";
     private static final String E_USES_PERMISSION = "uses-permission";
+    private static final String E_META_DATA    = "meta-data";
     private static final String A_NAME         = "name";
     private static final String A_AUTHORITIES  = "authorities";
     private static final String A_EXPORTED     = "exported";
     private static final String A_INIT_ORDER   = "initOrder";
     private static final String A_PERMISSION   = "permission";
+    private static final String A_EXTRACT_NATIVE_LIBS = "extractNativeLibs";
+    private static final String A_VALUE        = "value";
     private static final int ID_ANDROID_NAME        = 0x01010003;
     private static final int ID_ANDROID_AUTHORITIES = 0x01010018;
     private static final int ID_ANDROID_EXPORTED    = 0x0101001e;
@@ -49,14 +53,31 @@ public class ApkProcessor {
     private static final int ID_ANDROID_THEME       = 0x01010000;
     private static final int ID_ANDROID_LABEL       = 0x01010001;
     private static final int ID_ANDROID_ICON        = 0x01010002;
+    private static final int ID_ANDROID_EXTRACT_NATIVE_LIBS = 0x010104ea;
+    private static final int ID_ANDROID_VALUE       = 0x01010024;
     private static final Pattern SIG_PATH = Pattern.compile(
             "^META-INF/(.+\\.(RSA|DSA|EC|SF)|MANIFEST\\.MF)$", Pattern.CASE_INSENSITIVE);
     private static final Pattern DEX_NAME = Pattern.compile(
             "^classes(\\d*)\\.dex$", Pattern.CASE_INSENSITIVE);
-    private static final String KEYSTORE_ASSET = "debug.p12";
-    private static final String STORE_PWD      = "android";
-    private static final String KEY_PWD        = "android";
-    private static final String ALIAS          = "key0";
+    private static final String CLONER_JSON_ENTRY  = "assets/cloner.json";
+    // Class every hook dex defines; finds the dex the hook went into in an installed clone.
+    private static final String HOOK_ENTRY_TYPE = "Lcom/applisto/appcloner/DefaultProvider;";
+    private static final String BUNDLED_DATA_ENTRY = "assets/app_data_export.zip";
+    private static final String RESOURCES_ARSC     = "resources.arsc";
+    public static final int PAGE_SIZE_4K  = 4096;
+    public static final int PAGE_SIZE_16K = 16384;
+    // Loose .so files in the native lib dir: the single-ABI payload layout used before per-ABI directories.
+    private static final String LEGACY_PAYLOAD_ABI = "arm64-v8a";
+    // Bump whenever patchManifest, the injected payload or signing changes what a clone looks like.
+    static final int INJECTOR_VERSION = 2;
+    private static final long MANIFEST_CACHE_BYTES = 4L * 1024 * 1024;
+    private static final long HOOK_CACHE_BYTES = 32L * 1024 * 1024;
+    private static final long BUILD_CACHE_BYTES = 512L * 1024 * 1024;
+    private static final long DEFAULT_IN_MEMORY_THRESHOLD = 64L * 1024 * 1024;
+    // Build time cached manifests carry; as wide as any real one until 2286, so it can be overwritten in place.
+    private static final long BUILD_TIME_PLACEHOLDER = 1_000_000_000_000L;
+    // dexlib2 holds the parsed dex, its pool and the output at once; allow roughly this many times the dex size.
+    private static final int DEX_MERGE_HEAP_FACTOR = 10;
 
     private static final String IPC_PERMISSION = "com.applisto.appcloner.permission.REPLICA_IPC";
     private static final String PERM_READ_EXTERNAL = "android.permission.READ_EXTERNAL_STORAGE";
@@ -66,162 +87,1401 @@ public class ApkProcessor {
     private static final String CAMERA_CONTROL_RECEIVER_NAME = "com.applisto.appcloner.CameraControlReceiver";
     private static final String FAKE_CAMERA_ACTIVITY_NAME = "com.applisto.appcloner.FakeCameraActivity";
 
+    private static DiskLruCache manifestCache;
+    private static DiskLruCache buildCache;
+    private static DiskLruCache hookCache;
+    // Warm state shared by every processor in the process, e.g. across the jobs of a CloneQueue.
+    private static final Map<String, byte[]> fileDigests = new HashMap<>();
+    private static final Set<String> payloadDirs = new HashSet<>();
+    private static final Map<String, ShrunkPayload> shrunkPayloads = new HashMap<>();
+
     private final Context ctx;
+    private int compressionLevel = 9;
+    private int parallelism = ParallelDeflater.defaultParallelism();
+    private boolean pageAlignNativeLibs;
+    private int pageSize = PAGE_SIZE_4K;
+    private List<EntryDescriptor> injectedDescriptors = Collections.emptyList();
+    // Replaced per injectHook and updateClonerJson call; other entry points add to this one.
+    private PipelineTrace trace = new PipelineTrace("clone");
+    private ProgressListener progressListener;
+    private boolean verifySignatures;
+    private boolean buildCacheEnabled = true;
+    private long inMemoryThreshold = DEFAULT_IN_MEMORY_THRESHOLD;
+    private boolean mergeHookDex;
+    private boolean shrinkHook;
+    private boolean compileConfig;
+    private String[] deviceAbis;
+    private String[] keepLocales = new String[0];
+    private int[] keepDensities = new int[0];
+    private HookPayload hookPayload;
 
     public ApkProcessor(Context ctx) {
         this.ctx = ctx.getApplicationContext();
     }
 
+    /** DEFLATE level (0-9) for entries that have to be (re)compressed. */
+    public ApkProcessor setCompressionLevel(int level) {
+        this.compressionLevel = level;
+        return this;
+    }
+
+    /** Number of threads used to compress entries; defaults to the number of cores. */
+    public ApkProcessor setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        return this;
+    }
+
+    /**
+     * zipalign-style output: native libraries and resources.arsc are STORED, .so data is
+     * page-aligned and the manifest gets {@code android:extractNativeLibs="false"}, so the
+     * clone loads its libraries straight from the APK instead of extracting them on install.
+     */
+    public ApkProcessor setPageAlignNativeLibs(boolean enabled) {
+        this.pageAlignNativeLibs = enabled;
+        return this;
+    }
+
+    /**
+     * Runs a full signature verification of every APK after signing and fails the build if it
+     * does not pass. Off by default: it reads the whole output once more.
+     */
+    public ApkProcessor setVerifySignatures(boolean enabled) {
+        this.verifySignatures = enabled;
+        return this;
+    }
+
+    /**
+     * Whether {@link #injectHook} reuses and stores builds in the build cache. Storing costs one
+     * extra copy of the output; turn it off for one-off builds such as unique identity clones.
+     */
+    public ApkProcessor setBuildCacheEnabled(boolean enabled) {
+        this.buildCacheEnabled = enabled;
+        return this;
+    }
+
+    /**
+     * APKs up to this size are kept in memory wherever the pipeline would otherwise need a
+     * cache file (non-seekable source or destination, variant base), provided the heap has
+     * room for them; 0 turns the in-memory mode off.
+     */
+    public ApkProcessor setInMemoryThreshold(long bytes) {
+        this.inMemoryThreshold = bytes;
+        return this;
+    }
+
+    /**
+     * Folds the hook classes into the app's last classes*.dex instead of adding a dex of their
+     * own, so the clone opens no more dex files than the original. Falls back to a separate dex
+     * when the merged file would exceed the 64K reference limits. Off by default: the target
+     * dex is parsed and rewritten, which costs time and heap on every build.
+     */
+    public ApkProcessor setMergeHookDex(boolean enabled) {
+        this.mergeHookDex = enabled;
+        return this;
+    }
+
+    /**
+     * Injects only the hook classes and native libraries the clone's cloner.json needs, see
+     * {@link HookShrinker}. Only features hook.dex declares can be dropped, see
+     * {@link HookShrinker.Feature}; a clone whose config later enables one must be rebuilt.
+     */
+    public ApkProcessor setShrinkHook(boolean enabled) {
+        this.shrinkHook = enabled;
+        return this;
+    }
+
+    /**
+     * Also compiles cloner.json into constants in the hook dex, see {@link ConfigCompiler}, so
+     * the clone needs no I/O or parsing to read its settings. The JSON asset is still written.
+     */
+    public ApkProcessor setCompileConfig(boolean enabled) {
+        this.compileConfig = enabled;
+        return this;
+    }
+
+    /**
+     * Keeps only the native libraries of the ABI a device with these ABIs, in
+     * {@code Build.SUPPORTED_ABIS} order, would run the clone with, and injects the hook
+     * libraries for that ABI only. Null, the default, keeps every ABI the app ships; the clone
+     * then still installs on other devices.
+     */
+    public ApkProcessor setDeviceAbis(String... abis) {
+        this.deviceAbis = abis;
+        return this;
+    }
+
+    /**
+     * Drops resource configurations for other languages, e.g. "en", from the clone's
+     * resources.arsc, see {@link ResourcePruner}. No languages, the default, keeps all.
+     */
+    public ApkProcessor setKeepLocales(String... locales) {
+        this.keepLocales = locales != null ? locales : new String[0];
+        return this;
+    }
+
+    /**
+     * Drops drawable and other resource configurations for other screen densities, in dpi
+     * such as 480, along with the files only they use. No densities, the default, keeps all.
+     */
+    public ApkProcessor setKeepDensities(int... densities) {
+        this.keepDensities = densities != null ? densities : new int[0];
+        return this;
+    }
+
+    /**
+     * Where the hook dex and libraries passed to the inject methods were prepared. Files of
+     * the payload are copied into clones from its pre-built archive, CRCs included, and its
+     * known digest spares hashing hook.dex again.
+     */
+    public ApkProcessor setHookPayload(HookPayload payload) {
+        this.hookPayload = payload;
+        if (payload != null) {
+            synchronized (fileDigests) {
+                payloadDirs.add(payload.dir.getAbsolutePath() + File.separator);
+                fileDigests.put(digestKey(payload.hookDex), payload.getHookDigest());
+            }
+        }
+        return this;
+    }
+
+    /** Page size for {@link #setPageAlignNativeLibs}: {@link #PAGE_SIZE_4K} or {@link #PAGE_SIZE_16K}. */
+    public ApkProcessor setPageSize(int pageSize) {
+        if (pageSize != PAGE_SIZE_4K && pageSize != PAGE_SIZE_16K) {
+            throw new IllegalArgumentException("Unsupported page size: " + pageSize);
+        }
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    /** Receives per-entry progress of {@link #injectHook}; called on the processing thread. */
+    public ApkProcessor setProgressListener(ProgressListener listener) {
+        this.progressListener = listener;
+        return this;
+    }
+
+    /**
+     * Descriptors (CRC32, sizes, SHA-256) of the entries the last {@link #injectHook} call wrote
+     * itself: the patched manifest, hook dex, cloner.json, bundled data and native libs.
+     */
+    public List<EntryDescriptor> getInjectedDescriptors() {
+        return injectedDescriptors;
+    }
+
+    /** Phase timings of the last {@link #injectHook} or {@link #updateClonerJson}; also kept in the trace history. */
+    public PipelineTrace getTrace() {
+        return trace;
+    }
+
+    /** Cache of patched manifests shared by all processors in this process; exposes hit/miss counts. */
+    public static synchronized DiskLruCache getManifestCache(Context ctx) {
+        if (manifestCache == null) {
+            manifestCache = new DiskLruCache(new File(ctx.getCacheDir(), "manifest_cache"), MANIFEST_CACHE_BYTES);
+        }
+        return manifestCache;
+    }
+
+    /** Heap this process can still allocate, bounded by the device's per-app memory class. */
+    public static long availableHeap(Context ctx) {
+        Runtime rt = Runtime.getRuntime();
+        long heapLimit = rt.maxMemory();
+        ActivityManager am = (ActivityManager) ctx.getSystemService(Context.ACTIVITY_SERVICE);
+        if (am != null) heapLimit = Math.min(heapLimit, am.getMemoryClass() * 1024L * 1024);
+        return heapLimit - (rt.totalMemory() - rt.freeMemory());
+    }
+
+    /**
+     * Whether an APK of {@code size} bytes may be held in memory: below the threshold, and
+     * small enough that source, output and working buffers fit the free heap together.
+     */
+    private boolean fitsInMemory(long size) {
+        return size > 0 && size <= inMemoryThreshold && size * 3 <= availableHeap(ctx);
+    }
+
+    /** Hook dex files derived per config: shrunk payloads and payloads with a compiled config. */
+    public static synchronized DiskLruCache getHookCache(Context ctx) {
+        if (hookCache == null) {
+            hookCache = new DiskLruCache(new File(ctx.getCacheDir(), "hook_cache"), HOOK_CACHE_BYTES);
+        }
+        return hookCache;
+    }
+
+    /** Signed clones keyed by the fingerprint of everything that went into them. */
+    public static synchronized DiskLruCache getBuildCache(Context ctx) {
+        if (buildCache == null) {
+            buildCache = new DiskLruCache(new File(ctx.getCacheDir(), "build_cache"), BUILD_CACHE_BYTES);
+        }
+        return buildCache;
+    }
+
     public void injectHook(Uri inApk, Uri outApk, File hookDex, File clonerJson, File nativeLibDir, File bundledDataFile) throws Exception {
-        File tempRoot = new File(ctx.getCacheDir(), "apk_" + System.currentTimeMillis());
-        if (!tempRoot.mkdirs()) throw new IOException("mkdir failed: " + tempRoot);
-        Set<Integer> dexNumbers = new HashSet<>();
-        Set<String> abiDirs = new HashSet<>();
-        byte[] manifestRaw = null;
+        trace = new PipelineTrace("clone " + inApk.getLastPathSegment());
+        Exception failure = null;
+        try {
+            buildClone(inApk, outApk, hookDex, clonerJson, nativeLibDir, bundledDataFile);
+        } catch (Exception e) {
+            failure = e;
+            throw e;
+        } finally {
+            trace.finish(failure);
+            trace.save(ctx);
+        }
+    }
+
+    private void buildClone(Uri inApk, Uri outApk, File hookDex, File clonerJson, File nativeLibDir,
+                            File bundledDataFile) throws Exception {
+        File bundledData = acceptBundledData(bundledDataFile);
+        Map<String, File[]> hookLibs = listNativeLibs(nativeLibDir);
+
+        ApkArchive source;
+        String buildKey;
+        DiskLruCache.Snapshot cachedApk;
+        DiskLruCache cache = buildCacheEnabled ? getBuildCache(ctx) : null;
+        try (PipelineTrace.Phase phase = trace.begin("open")) {
+            source = openSource(inApk);
+            try {
+                buildKey = buildFingerprint(source, hookDex, clonerJson, hookLibs, bundledData);
+            } catch (Exception e) {
+                source.close();
+                throw e;
+            }
+            phase.addRead(source.centralDirectorySize());
+            cachedApk = cache != null ? cache.pin(buildKey) : null;
+        }
+        if (cachedApk != null) {
+            source.close();
+            injectedDescriptors = Collections.emptyList();
+            try (cachedApk; PipelineTrace.Phase phase = trace.begin("copy_cached");
+                 OutputStream os = ctx.getContentResolver().openOutputStream(outApk)) {
+                Files.copy(cachedApk.getFile().toPath(), os);
+                phase.addRead(cachedApk.getFile().length());
+                phase.addWritten(cachedApk.getFile().length());
+            }
+            Log.i(TAG, "Build cache hit, reused " + buildKey);
+            return;
+        }
 
-        String basePath;
+        try (source; OutputSink sink = OutputSink.open(ctx, outApk, fitsInMemory(source.size()))) {
+            try (ApkArchiveWriter writer = sink.newWriter()) {
+                writeClone(source, writer, hookDex, clonerJson, hookLibs, bundledData, true);
+            }
+            if (verifySignatures) {
+                try (PipelineTrace.Phase phase = trace.begin("verify")) {
+                    sink.verify(SigningEngine.get(ctx));
+                }
+            }
+            try (PipelineTrace.Phase phase = trace.begin("copy_out")) {
+                sink.commit();
+            }
+            Log.d(TAG, "Clone written " + (sink.isDirect() ? "directly to " : "via spool to ") + outApk);
+            if (cache != null) {
+                try (PipelineTrace.Phase phase = trace.begin("store_cache")) {
+                    sink.storeIn(cache, buildKey);
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not store build in cache", e);
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Building signed clone failed", e);
+            throw e;
+        }
+        Log.i(TAG, "APK injection + signing completed successfully");
+    }
+
+    /**
+     * Builds one clone of {@code inApk} per entry of {@code variantConfigs}. The source is
+     * patched and compressed once; each variant is then assembled from the raw entries of that
+     * shared build plus its own cloner.json, and the variants are signed in parallel.
+     */
+    public void buildVariants(Uri inApk, File hookDex, File nativeLibDir, File bundledDataFile,
+                              List<File> variantConfigs, List<Uri> outApks) throws Exception {
+        if (variantConfigs.isEmpty() || variantConfigs.size() != outApks.size()) {
+            throw new IllegalArgumentException("Need one output per variant config");
+        }
+        File bundledData = acceptBundledData(bundledDataFile);
+        Map<String, File[]> hookLibs = listNativeLibs(nativeLibDir);
+
+        int minSdk;
+        boolean inMemory;
+        ApkArchive base;
+        try (ApkArchive source = openSource(inApk)) {
+            inMemory = fitsInMemory(source.size());
+            if (inMemory) {
+                MemoryChannel memory = new MemoryChannel();
+                try (ApkArchiveWriter writer = new ApkArchiveWriter(memory)) {
+                    minSdk = writeClone(source, writer, hookDex, variantConfigs.get(0), hookLibs, bundledData, false);
+                } catch (Exception e) {
+                    memory.close();
+                    throw e;
+                }
+                base = ApkArchive.open(memory);
+            } else {
+                File baseApk = new File(ctx.getCacheDir(), "variant_base_" + System.nanoTime() + ".apk");
+                try (ApkArchiveWriter writer = ApkArchiveWriter.create(baseApk)) {
+                    minSdk = writeClone(source, writer, hookDex, variantConfigs.get(0), hookLibs, bundledData, false);
+                } catch (Exception e) {
+                    baseApk.delete();
+                    throw e;
+                }
+                base = openDeleting(baseApk);
+            }
+        }
+
+        int n = variantConfigs.size();
+        int parallel = Math.min(n, ParallelDeflater.defaultParallelism());
+        ExecutorService pool = Executors.newFixedThreadPool(parallel);
+        try (base) {
+            // The base was sized for one APK; each variant in flight holds a full signed copy of
+            // its own, so the outputs only stay in memory if all of them fit next to the base.
+            boolean memorySinks = inMemory && parallel * base.size() * 2 <= availableHeap(ctx);
+            int libAlignment = pageAlignNativeLibs ? pageSize : 0;
+            List<Future<?>> results = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                File config = variantConfigs.get(i);
+                Uri out = outApks.get(i);
+                results.add(pool.submit(() -> {
+                    try (OutputSink sink = OutputSink.open(ctx, out, memorySinks)) {
+                        try (ApkArchiveWriter writer = sink.newWriter()) {
+                            writeWithClonerJson(base, config, writer, libAlignment, minSdk);
+                        }
+                        if (verifySignatures) sink.verify(SigningEngine.get(ctx));
+                        sink.commit();
+                    }
+                    return null;
+                }));
+            }
+            int failed = 0;
+            Exception first = null;
+            for (int i = 0; i < n; i++) {
+                try {
+                    ParallelDeflater.await(results.get(i));
+                } catch (IOException e) {
+                    Log.e(TAG, "Variant " + i + " failed", e);
+                    failed++;
+                    if (first == null) first = e;
+                }
+            }
+            if (first != null) throw new IOException(failed + " of " + n + " variants failed", first);
+        } finally {
+            pool.shutdownNow();
+        }
+        Log.i(TAG, n + " variants built");
+    }
+
+    /**
+     * Clones an app installed as a base APK plus splits and returns the signed install set in
+     * {@code outDir}, base first. Only the base gets the patched manifest and the hook dex; the
+     * native libs go into the split that carries the target ABI (or the base if there is none).
+     * All APKs are processed and signed concurrently with the same key.
+     */
+    public List<File> injectHookSplits(File baseApk, List<File> splitApks, File outDir, File hookDex,
+                                       File clonerJson, File nativeLibDir, File bundledDataFile) throws Exception {
+        File bundledData = acceptBundledData(bundledDataFile);
+        Map<String, File[]> hookLibs = listNativeLibs(nativeLibDir);
+        if (!outDir.isDirectory() && !outDir.mkdirs()) throw new IOException("Cannot create " + outDir);
+
+        // Splits are installed together with the base, so they are signed for the base's minSdk.
+        int minSdk;
+        Set<String> baseAbis;
+        try (ApkArchive base = ApkArchive.open(baseApk)) {
+            minSdk = readMinSdk(base);
+            baseAbis = abisOf(base);
+        }
+        // Hook libraries go next to the app's own: into every APK with native code, or into the
+        // base if none has any.
+        List<Set<String>> splitAbis = new ArrayList<>();
+        boolean anyNative = !baseAbis.isEmpty();
+        for (File split : splitApks) {
+            try (ApkArchive archive = ApkArchive.open(split)) {
+                Set<String> abis = abisOf(archive);
+                splitAbis.add(abis);
+                if (!abis.isEmpty()) anyNative = true;
+            }
+        }
+        Map<String, File[]> baseLibs = !baseAbis.isEmpty() || !anyNative ? hookLibs : null;
+        Log.d(TAG, "Native libs: base " + baseAbis + ", splits " + splitAbis);
+
+        List<File> outputs = new ArrayList<>();
+        outputs.add(new File(outDir, "base.apk"));
+        for (File split : splitApks) outputs.add(new File(outDir, "split_" + split.getName()));
+
+        int n = outputs.size();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(n, ParallelDeflater.defaultParallelism()));
+        List<Future<?>> results = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            int index = i;
+            results.add(pool.submit(() -> {
+                File out = outputs.get(index);
+                if (index == 0) {
+                    try (ApkArchive source = ApkArchive.open(baseApk);
+                         ApkArchiveWriter writer = ApkArchiveWriter.create(out)) {
+                        writeClone(source, writer, hookDex, clonerJson, baseLibs, bundledData, true);
+                    }
+                } else {
+                    try (ApkArchive source = ApkArchive.open(splitApks.get(index - 1));
+                         ApkArchiveWriter writer = ApkArchiveWriter.create(out)) {
+                        writeSplit(source, writer, splitAbis.get(index - 1).isEmpty() ? null : hookLibs, minSdk);
+                    }
+                }
+                verifyIfRequested(out);
+                return null;
+            }));
+        }
         try {
-            basePath = tempRoot.getCanonicalPath() + File.separator;
+            for (Future<?> f : results) ParallelDeflater.await(f);
         } catch (IOException e) {
-            deleteRec(tempRoot);
+            for (File f : outputs) f.delete();
             throw e;
+        } finally {
+            pool.shutdownNow();
         }
+        Log.i(TAG, "Split install set ready: " + n + " APKs");
+        return outputs;
+    }
 
-        try (InputStream is = ctx.getContentResolver().openInputStream(inApk);
-             ZipInputStream zis = new ZipInputStream(new BufferedInputStream(is))) {
-            ZipEntry ze;
-            while ((ze = zis.getNextEntry()) != null) {
+    /** Signed copy of a split APK, optionally with the hook's native libs for its ABIs added. */
+    private void writeSplit(ApkArchive source, ApkArchiveWriter writer, Map<String, File[]> hookLibs, int minSdk)
+            throws Exception {
+        hookLibs = libsForAbis(hookLibs, abisOf(source));
+        Set<String> injectedNames = new HashSet<>();
+        addLibNames(injectedNames, hookLibs);
+        try (SigningEngine.Session session = newSigningSession(minSdk)) {
+            writer.setSigningSession(session);
+            if (pageAlignNativeLibs) writer.setPageAlignment(pageSize);
+            for (ApkArchive.Entry ze : source.entries()) {
                 String name = ze.getName();
-                if (name == null || name.isEmpty()) continue;
+                if (name == null || name.isEmpty() || ze.isDirectory()) continue;
                 if (SIG_PATH.matcher(name).matches()) continue;
+                if (injectedNames.contains(name)) continue;
+                if (writer.contains(name)) {
+                    Log.w(TAG, "Skipping duplicate entry: " + name);
+                    continue;
+                }
+                if (pageAlignNativeLibs && mustBeStored(name)) {
+                    writer.copyUncompressed(source, ze);
+                } else {
+                    writer.copy(source, ze);
+                }
+            }
+            putHookLibs(writer, hookLibs);
+            writer.finish();
+        }
+    }
+
+    /**
+     * Writes the clone of {@code source} to {@code writer}: patched manifest, the source's own
+     * entries (raw where possible) and the injected payload. With {@code sign} the APK is signed
+     * as it is written. Returns the clone's minSdkVersion, or 1 if the manifest declares none.
+     */
+    private int writeClone(ApkArchive source, ApkArchiveWriter writer, File hookDex, File clonerJson,
+                           Map<String, File[]> hookLibs, File bundledData, boolean sign) throws Exception {
+        List<DiskLruCache.Snapshot> pins = new ArrayList<>();
+        try {
+            return writeClone(source, writer, hookDex, clonerJson, hookLibs, bundledData, sign, pins);
+        } finally {
+            for (DiskLruCache.Snapshot pinned : pins) pinned.close();
+        }
+    }
+
+    /** {@code pins} collects the hook cache entries the clone is built from, to be released after it. */
+    private int writeClone(ApkArchive source, ApkArchiveWriter writer, File hookDex, File clonerJson,
+                           Map<String, File[]> hookLibs, File bundledData, boolean sign,
+                           List<DiskLruCache.Snapshot> pins) throws Exception {
+        JSONObject clonerConfig = readClonerConfig(clonerJson);
+        // The manifest is patched up front: its minSdk decides the signature schemes, and the
+        // signer has to be in place before the first entry is written.
+        ApkArchive.Entry manifestEntry = source.getEntry(ANDROID_MANIFEST);
+        if (manifestEntry == null) throw new IOException("AndroidManifest.xml missing in APK");
+        CloneMetadata metadata = new CloneMetadata(INJECTOR_VERSION,
+                CloneMetadata.shortHash(fileDigest(clonerJson)), hookHash(hookDex, hookLibs),
+                System.currentTimeMillis());
+        metadata.configCompiled = compileConfig;
+        // After the metadata: it records the full payload, which is what updates compare against.
+        // Before the manifest: components of dropped features must not be declared.
+        Set<HookShrinker.Feature> removedFeatures = Collections.emptySet();
+        if (shrinkHook) {
+            try (PipelineTrace.Phase phase = trace.begin("shrink")) {
+                ShrunkPayload payload = shrinkPayload(hookDex, hookLibs, clonerConfig, pins);
+                hookDex = payload.dex;
+                hookLibs = payload.hookLibs;
+                removedFeatures = payload.removedFeatures;
+            }
+        }
+        ManifestPatchResult patched;
+        try (PipelineTrace.Phase phase = trace.begin("manifest")) {
+            boolean withCamera = !removedFeatures.contains(HookShrinker.Feature.FAKE_CAMERA);
+            patched = patchManifestCached(source.read(manifestEntry), clonerConfig, metadata, withCamera);
+            phase.addRead(manifestEntry.getCompressedSize());
+        }
+        int minSdk = Math.max(1, patched.minSdk);
+        Set<String> sourceAbis = abisOf(source);
+        Set<String> keptAbis = keptAbis(sourceAbis);
+        ResourcePruner.Result prunedResources;
+        try (PipelineTrace.Phase phase = trace.begin("payload")) {
+            if (compileConfig) hookDex = compileConfigInto(hookDex, clonerJson, clonerConfig, pins);
+            hookLibs = libsForAbis(hookLibs, keptAbis);
+            prunedResources = pruneResources(source);
+        }
+        Set<String> prunedFiles = prunedResources != null
+                ? prunedResources.getRemovedFiles() : Collections.<String>emptySet();
+
+        // Entries we inject replace any same-named entry of the source APK.
+        Set<String> injectedNames = new HashSet<>();
+        injectedNames.add(CLONER_JSON_ENTRY);
+        if (bundledData != null) injectedNames.add(BUNDLED_DATA_ENTRY);
+        addLibNames(injectedNames, hookLibs);
+
+        Set<Integer> dexNumbers = new HashSet<>();
+        String mergeTarget = mergeHookDex ? lastDexName(source) : null;
+        // Entry the hook classes end up in: mergeTarget if the merge works out, else a new dex.
+        String dexName = null;
+
+        try (ParallelDeflater deflater = new ParallelDeflater(parallelism, compressionLevel);
+             SigningEngine.Session session = sign ? newSigningSession(minSdk) : null) {
+            if (session != null) writer.setSigningSession(session);
+            writer.setDeflater(deflater);
+            writer.setDigestsEnabled(true);
+            if (pageAlignNativeLibs) writer.setPageAlignment(pageSize);
+            int total = source.entries().size();
+            int done = 0;
+            long entriesStart = writer.bytesWritten();
+            try (PipelineTrace.Phase phase = trace.begin("entries")) {
+                for (ApkArchive.Entry ze : source.entries()) {
+                    if (progressListener != null) progressListener.onProgress(done++, total);
+                    String name = ze.getName();
+                    if (name == null || name.isEmpty() || ze.isDirectory()) continue;
+                    phase.addEntry();
+                    if (SIG_PATH.matcher(name).matches()) continue;
+                    if (injectedNames.contains(name)) continue;
+                    if (writer.contains(name)) {
+                        Log.w(TAG, "Skipping duplicate entry: " + name);
+                        continue;
+                    }
+
+                    String abi = abiOf(name);
+                    if (abi != null && !keptAbis.contains(abi)) continue;
+                    if (prunedFiles.contains(name)) continue;
+                    phase.addRead(ze.getCompressedSize());
+
+                    Matcher m = DEX_NAME.matcher(name);
+                    if (m.matches()) {
+                        int idx = m.group(1).isEmpty() ? 1 : Integer.parseInt(m.group(1));
+                        dexNumbers.add(idx);
+                        Log.d(TAG, "Found DEX: " + name + " -> index " + idx);
+                    }
+
+                    if (ANDROID_MANIFEST.equals(name)) {
+                        writer.putStored(ANDROID_MANIFEST, patched.manifestBytes);
+                        continue;
+                    }
+
+                    if (prunedResources != null && RESOURCES_ARSC.equals(name)) {
+                        writer.putStored(RESOURCES_ARSC, prunedResources.getTable());
+                        continue;
+                    }
+
+                    if (name.equals(mergeTarget)) {
+                        byte[] merged = mergeHook(source, ze, hookDex);
+                        if (merged != null) {
+                            if (shouldStore(name)) {
+                                writer.putStored(name, merged);
+                            } else {
+                                writer.putDeflated(name, merged);
+                            }
+                            dexName = name;
+                            continue;
+                        }
+                    }
+
+                    if (pageAlignNativeLibs && mustBeStored(name)) {
+                        writer.copyUncompressed(source, ze);
+                        continue;
+                    }
 
-                if (name.startsWith("lib/") && name.endsWith(".so")) {
-                    int slash = name.indexOf('/', 4);
-                    if (slash > 0) abiDirs.add(name.substring(0, slash + 1));
+                    // Untouched entries keep their original compressed bytes.
+                    writer.copy(source, ze);
                 }
+                phase.addWritten(writer.bytesWritten() - entriesStart);
+            }
 
-                Matcher m = DEX_NAME.matcher(name);
-                if (m.matches()) {
-                    int idx = m.group(1).isEmpty() ? 1 : Integer.parseInt(m.group(1));
-                    dexNumbers.add(idx);
-                    Log.d(TAG, "Found DEX: " + name + " -> index " + idx);
+            long injectStart = writer.bytesWritten();
+            try (PipelineTrace.Phase phase = trace.begin("inject")) {
+                if (dexName == null) {
+                    int nextIdx = dexNumbers.isEmpty() ? 2 : Collections.max(dexNumbers) + 1;
+                    dexName = (nextIdx == 1) ? "classes.dex" : "classes" + nextIdx + ".dex";
+                    Log.d(TAG, "Adding hook DEX as: " + dexName + " (nextIdx=" + nextIdx + ")");
+                    putPayloadFile(writer, dexName, hookDex);
                 }
 
-                if (ANDROID_MANIFEST.equals(name)) {
-                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                    copyStream(zis, baos);
-                    manifestRaw = baos.toByteArray();
-                    continue;
+                writer.putFile(CLONER_JSON_ENTRY, clonerJson, shouldStore(CLONER_JSON_ENTRY));
+
+                if (bundledData != null) {
+                    writer.putFile(BUNDLED_DATA_ENTRY, bundledData, shouldStore(BUNDLED_DATA_ENTRY));
+                    Log.d(TAG, "App data bundled into " + BUNDLED_DATA_ENTRY);
                 }
 
-                File out = safeResolve(tempRoot, basePath, name);
-                if (ze.isDirectory()) {
-                    if (!out.exists() && !out.mkdirs()) {
-                        throw new IOException("Failed to create dir: " + out);
-                    }
-                    continue;
+                putHookLibs(writer, hookLibs);
+                phase.addWritten(writer.bytesWritten() - injectStart);
+            }
+            // Drains queued deflates, then writes the JAR signature entries and the signing block.
+            long signStart = writer.bytesWritten();
+            try (PipelineTrace.Phase phase = trace.begin("sign")) {
+                writer.finish();
+                phase.addWritten(writer.bytesWritten() - signStart);
+            }
+            if (progressListener != null) progressListener.onProgress(total, total);
+
+            List<EntryDescriptor> injected = new ArrayList<>();
+            for (EntryDescriptor d : writer.getDescriptors()) {
+                String n = d.getName();
+                if (ANDROID_MANIFEST.equals(n) || dexName.equals(n) || injectedNames.contains(n)) {
+                    injected.add(d);
+                    Log.d(TAG, "Wrote " + n + " size=" + d.getSize() + " crc=" + Long.toHexString(d.getCrc())
+                            + " sha256=" + d.getSha256Hex());
                 }
-                File parent = out.getParentFile();
-                if (parent != null && !parent.exists() && !parent.mkdirs()) {
-                    throw new IOException("Failed to create parent: " + parent);
+            }
+            injectedDescriptors = Collections.unmodifiableList(injected);
+        }
+        Log.d(TAG, "Source ABIs: " + sourceAbis + ", kept: " + keptAbis
+                + ", hook libraries: " + (hookLibs != null ? hookLibs.keySet() : "none"));
+        return minSdk;
+    }
+
+    /** The source's resource table pruned to the kept locales and densities, or null if not pruning. */
+    private ResourcePruner.Result pruneResources(ApkArchive source) throws IOException {
+        List<Integer> densities = new ArrayList<>();
+        for (int d : keepDensities) densities.add(d);
+        ResourcePruner pruner = new ResourcePruner(Arrays.asList(keepLocales), densities);
+        ApkArchive.Entry arsc = source.getEntry(RESOURCES_ARSC);
+        if (!pruner.isEnabled() || arsc == null) return null;
+        return pruner.prune(source.read(arsc));
+    }
+
+    /**
+     * Builds {@code sourceApk} once with the hook as a separate dex and once merged, and
+     * compares how long each takes to load the hook with {@link ColdStartBenchmark}. The
+     * clones are unsigned and only used for the measurement.
+     */
+    public String benchmarkDexMerge(File sourceApk, File hookDex, File clonerJson, int runs) throws Exception {
+        File appended = new File(ctx.getCacheDir(), "bench_appended.apk");
+        File merged = new File(ctx.getCacheDir(), "bench_merged.apk");
+        boolean mergeSetting = mergeHookDex;
+        try (ApkArchive source = ApkArchive.open(sourceApk)) {
+            mergeHookDex = false;
+            try (ApkArchiveWriter writer = ApkArchiveWriter.create(appended)) {
+                writeClone(source, writer, hookDex, clonerJson, null, null, false);
+            }
+            mergeHookDex = true;
+            try (ApkArchiveWriter writer = ApkArchiveWriter.create(merged)) {
+                writeClone(source, writer, hookDex, clonerJson, null, null, false);
+            }
+            String report = ColdStartBenchmark.compare(ctx, appended, merged, runs);
+            Log.i(TAG, "Dex merge benchmark for " + sourceApk.getName() + ":\n" + report);
+            return report;
+        } finally {
+            mergeHookDex = mergeSetting;
+            appended.delete();
+            merged.delete();
+        }
+    }
+
+    /**
+     * The hook payload {@link HookShrinker} cut down for {@code config}. Results are kept for the
+     * process, and the dex in the hook cache; its entry is added to {@code pins}.
+     */
+    private ShrunkPayload shrinkPayload(File hookDex, Map<String, File[]> hookLibs, JSONObject config,
+                                        List<DiskLruCache.Snapshot> pins) throws IOException {
+        Set<String> libNames = new TreeSet<>();
+        if (hookLibs != null) {
+            for (File[] libs : hookLibs.values()) {
+                for (File so : libs) libNames.add(so.getName());
+            }
+        }
+        MessageDigest md = EntryDescriptor.newSha256();
+        md.update(fileDigest(hookDex));
+        md.update(("|shrink|" + HookShrinker.enabledFeatures(config) + "|" + libNames).getBytes(StandardCharsets.UTF_8));
+        String key = EntryDescriptor.toHex(md.digest());
+        ShrunkPayload cached;
+        synchronized (shrunkPayloads) {
+            cached = shrunkPayloads.get(key);
+        }
+        if (cached != null) {
+            if (cached.dex.equals(hookDex)) return withLibs(cached, hookLibs);
+            DiskLruCache.Snapshot pinned = getHookCache(ctx).pin(key);
+            if (pinned != null) {
+                pins.add(pinned);
+                return withLibs(cached, hookLibs);
+            }
+        }
+
+        HookShrinker.Result shrunk = HookShrinker.shrink(Files.readAllBytes(hookDex.toPath()), config, libNames);
+        ShrunkPayload payload = new ShrunkPayload();
+        payload.libraries = shrunk.getLibraries();
+        payload.removedFeatures = shrunk.getRemovedFeatures();
+        if (shrunk.getRemovedClasses() == 0) {
+            payload.dex = hookDex;
+        } else {
+            DiskLruCache.Snapshot pinned = getHookCache(ctx).putAndPin(key, shrunk.getDex());
+            pins.add(pinned);
+            payload.dex = pinned.getFile();
+        }
+        Log.d(TAG, "Hook payload: " + shrunk.getRemovedClasses() + " classes dropped, libraries "
+                + shrunk.getLibraries());
+        synchronized (shrunkPayloads) {
+            shrunkPayloads.put(key, payload);
+        }
+        return withLibs(payload, hookLibs);
+    }
+
+    /** {@code payload} with the libraries of {@code hookLibs} it keeps, for every ABI. */
+    private static ShrunkPayload withLibs(ShrunkPayload payload, Map<String, File[]> hookLibs) {
+        ShrunkPayload result = new ShrunkPayload();
+        result.dex = payload.dex;
+        result.libraries = payload.libraries;
+        result.removedFeatures = payload.removedFeatures;
+        if (hookLibs != null) {
+            result.hookLibs = new TreeMap<>();
+            for (Map.Entry<String, File[]> e : hookLibs.entrySet()) {
+                List<File> kept = new ArrayList<>();
+                for (File so : e.getValue()) {
+                    if (payload.libraries.contains(so.getName())) kept.add(so);
                 }
-                try (FileOutputStream fos = new FileOutputStream(out)) {
-                    copyStream(zis, fos);
+                if (!kept.isEmpty()) result.hookLibs.put(e.getKey(), kept.toArray(new File[0]));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * {@code hookDex} with {@code clonerJson} compiled into it, from the hook cache when possible.
+     * The cache entry is added to {@code pins}.
+     */
+    private File compileConfigInto(File hookDex, File clonerJson, JSONObject config,
+                                   List<DiskLruCache.Snapshot> pins) throws IOException {
+        MessageDigest md = EntryDescriptor.newSha256();
+        md.update(fileDigest(hookDex));
+        md.update("|config|".getBytes(StandardCharsets.UTF_8));
+        md.update(fileDigest(clonerJson));
+        String key = EntryDescriptor.toHex(md.digest());
+        DiskLruCache cache = getHookCache(ctx);
+        DiskLruCache.Snapshot cached = cache.pin(key);
+        if (cached == null) {
+            cached = cache.putAndPin(key, ConfigCompiler.injectInto(Files.readAllBytes(hookDex.toPath()), config));
+        }
+        pins.add(cached);
+        return cached.getFile();
+    }
+
+    /** ABIs {@code apk} has native libraries for, e.g. "arm64-v8a". */
+    static Set<String> abisOf(ApkArchive apk) {
+        Set<String> abis = new TreeSet<>();
+        for (ApkArchive.Entry e : apk.entries()) {
+            String abi = abiOf(e.getName());
+            if (abi != null && !e.isDirectory()) abis.add(abi);
+        }
+        return abis;
+    }
+
+    /** ABI of an entry under lib/&lt;abi&gt;/, or null for any other entry. */
+    private static String abiOf(String name) {
+        if (name == null || !name.startsWith("lib/")) return null;
+        int slash = name.indexOf('/', 4);
+        return slash > 4 ? name.substring(4, slash) : null;
+    }
+
+    /**
+     * The ABIs of {@code sourceAbis} the clone keeps: all of them, or with {@link #setDeviceAbis}
+     * the one the device would pick. If the device supports none, nothing is pruned.
+     */
+    private Set<String> keptAbis(Set<String> sourceAbis) {
+        if (deviceAbis == null || sourceAbis.isEmpty()) return sourceAbis;
+        for (String abi : deviceAbis) {
+            if (sourceAbis.contains(abi)) return Collections.singleton(abi);
+        }
+        Log.w(TAG, "No ABI of " + sourceAbis + " runs on " + Arrays.toString(deviceAbis) + ", keeping all");
+        return sourceAbis;
+    }
+
+    /**
+     * The hook libraries for an APK with native code for {@code apkAbis}: those of each of its
+     * ABIs. An APK without native code runs with the device's preferred ABI, so it gets every
+     * payload ABI, or with {@link #setDeviceAbis} the preferred one.
+     */
+    private Map<String, File[]> libsForAbis(Map<String, File[]> hookLibs, Set<String> apkAbis) {
+        if (hookLibs == null) return null;
+        if (apkAbis.isEmpty() && deviceAbis == null) return hookLibs;
+        Map<String, File[]> libs = new TreeMap<>();
+        if (apkAbis.isEmpty()) {
+            for (String abi : deviceAbis) {
+                if (hookLibs.containsKey(abi)) {
+                    libs.put(abi, hookLibs.get(abi));
+                    break;
                 }
             }
+            return libs;
         }
+        for (String abi : apkAbis) {
+            File[] files = hookLibs.get(abi);
+            if (files != null) {
+                libs.put(abi, files);
+            } else {
+                Log.w(TAG, "No hook libraries for " + abi + ", the hook cannot load native code there");
+            }
+        }
+        return libs;
+    }
+
+    private static String libEntryName(String abi, File so) {
+        return "lib/" + abi + "/" + so.getName();
+    }
 
-        if (manifestRaw == null) {
-            deleteRec(tempRoot);
-            throw new IOException("AndroidManifest.xml missing in APK");
+    private static void addLibNames(Set<String> names, Map<String, File[]> hookLibs) {
+        if (hookLibs == null) return;
+        for (Map.Entry<String, File[]> e : hookLibs.entrySet()) {
+            for (File so : e.getValue()) names.add(libEntryName(e.getKey(), so));
         }
+    }
 
-        JSONObject clonerConfig;
-        try (InputStreamReader reader = new InputStreamReader(new FileInputStream(clonerJson), "UTF-8")) {
-            StringBuilder sb = new StringBuilder();
-            char[] buffer = new char[4096];
-            int read;
-            while ((read = reader.read(buffer, 0, buffer.length)) != -1) {
-                sb.append(buffer, 0, read);
+    private void putHookLibs(ApkArchiveWriter writer, Map<String, File[]> hookLibs) throws IOException {
+        if (hookLibs == null) return;
+        for (Map.Entry<String, File[]> e : hookLibs.entrySet()) {
+            for (File so : e.getValue()) putPayloadFile(writer, libEntryName(e.getKey(), so), so);
+        }
+    }
+
+    /**
+     * Writes {@code file} as entry {@code name}: spliced raw from the hook payload archive if
+     * it is part of the payload, else read and, if need be, compressed.
+     */
+    private void putPayloadFile(ApkArchiveWriter writer, String name, File file) throws IOException {
+        String payloadName = hookPayload != null ? hookPayload.entryNameOf(file) : null;
+        // The archive holds STORED entries, so it only serves names that are written stored.
+        if (payloadName != null && shouldStore(name)) {
+            ApkArchive archive = hookPayload.archive();
+            ApkArchive.Entry e = archive.getEntry(payloadName);
+            if (e != null && e.getSize() == file.length()) {
+                writer.copy(archive, e, name);
+                return;
             }
-            clonerConfig = new JSONObject(sb.toString());
-        } catch (IOException | JSONException e) {
-            Log.e(TAG, "Failed to read or parse cloner.json, using default empty config.", e);
-            clonerConfig = new JSONObject();
         }
+        writer.putFile(name, file, shouldStore(name));
+    }
 
-        ManifestPatchResult manifestResult = patchManifest(manifestRaw, clonerConfig);
-        byte[] patchedManifest = manifestResult.manifestBytes;
+    /** Name of the highest-numbered classes*.dex in {@code apk}, or null if it has none. */
+    private static String lastDexName(ApkArchive apk) {
+        String last = null;
+        int lastIdx = 0;
+        for (ApkArchive.Entry ze : apk.entries()) {
+            int idx = dexIndex(ze.getName());
+            if (idx > lastIdx) {
+                lastIdx = idx;
+                last = ze.getName();
+            }
+        }
+        return last;
+    }
 
-        int nextIdx = dexNumbers.isEmpty() ? 2 : Collections.max(dexNumbers) + 1;
-        String dexName = (nextIdx == 1) ? "classes.dex" : "classes" + nextIdx + ".dex";
-        Log.d(TAG, "Adding hook DEX as: " + dexName + " (nextIdx=" + nextIdx + ")");
-        Files.copy(hookDex.toPath(), new File(tempRoot, dexName).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    /**
+     * {@code target}'s dex with the hook classes merged in, or null if they do not fit, the heap
+     * is too small for the merge, or the dex cannot be parsed. The caller then adds the hook
+     * as a dex of its own.
+     */
+    private byte[] mergeHook(ApkArchive source, ApkArchive.Entry target, File hookDex) {
+        long needed = (target.getSize() + hookDex.length()) * DEX_MERGE_HEAP_FACTOR;
+        if (needed > availableHeap(ctx)) {
+            Log.d(TAG, "Not enough heap to merge hook into " + target.getName());
+            return null;
+        }
+        try {
+            long start = System.nanoTime();
+            byte[] merged = DexMerger.merge(source.read(target), Files.readAllBytes(hookDex.toPath()));
+            if (merged != null) {
+                Log.d(TAG, "Merged hook into " + target.getName() + " in "
+                        + (System.nanoTime() - start) / 1_000_000 + " ms");
+            }
+            return merged;
+        } catch (IOException e) {
+            Log.w(TAG, "Merging hook into " + target.getName() + " failed", e);
+            return null;
+        }
+    }
 
-        File assetsDir = new File(tempRoot, "assets");
-        if (!assetsDir.exists() && !assetsDir.mkdirs()) {
-            deleteRec(tempRoot);
-            throw new IOException("Failed to create assets dir");
+    /** {@code bundledDataFile} if it can be bundled, null if it is absent or rejected. */
+    private static File acceptBundledData(File bundledDataFile) {
+        if (bundledDataFile == null || !bundledDataFile.exists()) return null;
+        if (isProbablyZip(bundledDataFile) && bundledDataFile.length() <= 100L * 1024 * 1024) {
+            return bundledDataFile;
         }
-        Files.copy(clonerJson.toPath(), new File(assetsDir, "cloner.json").toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Log.w(TAG, "Bundled data file rejected (not a ZIP or too large). Skipping.");
+        return null;
+    }
 
-        if (bundledDataFile != null && bundledDataFile.exists()) {
-            try {
-                if (isProbablyZip(bundledDataFile) && bundledDataFile.length() <= 100L * 1024 * 1024) {
-                    Files.copy(bundledDataFile.toPath(), new File(assetsDir, "app_data_export.zip").toPath(), StandardCopyOption.REPLACE_EXISTING);
-                    Log.d(TAG, "App data bundled into assets/app_data_export.zip");
-                } else {
-                    Log.w(TAG, "Bundled data file rejected (not a ZIP or too large). Skipping.");
+    /**
+     * Hook libraries in {@code nativeLibDir} by ABI, one subdirectory each (arm64-v8a/libpine.so),
+     * or null if there are none. Loose .so files count as {@link #LEGACY_PAYLOAD_ABI}.
+     */
+    static Map<String, File[]> listNativeLibs(File nativeLibDir) {
+        // Sorted maps and arrays keep the output, and with it the build fingerprint, reproducible.
+        Map<String, File[]> hookLibs = new TreeMap<>();
+        File[] loose = nativeLibDir.listFiles((d, n) -> n.endsWith(".so"));
+        if (loose != null && loose.length > 0) {
+            Arrays.sort(loose);
+            hookLibs.put(LEGACY_PAYLOAD_ABI, loose);
+        }
+        File[] abiDirs = nativeLibDir.listFiles(File::isDirectory);
+        if (abiDirs != null) {
+            for (File dir : abiDirs) {
+                File[] libs = dir.listFiles((d, n) -> n.endsWith(".so"));
+                if (libs == null || libs.length == 0) continue;
+                Arrays.sort(libs);
+                hookLibs.put(dir.getName(), libs);
+            }
+        }
+        return hookLibs.isEmpty() ? null : hookLibs;
+    }
+
+    /**
+     * Replaces assets/cloner.json in an already cloned APK and re-signs it into {@code outApk}.
+     * Every other entry is copied with its original compressed bytes, so the cost is one raw
+     * pass over the archive plus signing, independent of how the clone was compressed.
+     */
+    public void updateClonerJson(File sourceApk, File clonerJson, File outApk) throws Exception {
+        trace = new PipelineTrace("update " + sourceApk.getName());
+        Throwable failure = null;
+        try (ApkArchive source = ApkArchive.open(sourceApk)) {
+            try (ApkArchiveWriter writer = ApkArchiveWriter.create(outApk)) {
+                // Keep page-aligned native libs page-aligned; the writer would otherwise fall back to 4.
+                writeWithClonerJson(source, clonerJson, writer, source.nativeLibAlignment(), readMinSdk(source));
+            }
+            try (PipelineTrace.Phase phase = trace.begin("verify")) {
+                verifyIfRequested(outApk);
+            }
+        } catch (Exception e) {
+            failure = e;
+            Log.e(TAG, "Updating cloner.json failed", e);
+            outApk.delete();
+            throw e;
+        } finally {
+            trace.finish(failure);
+            trace.save(ctx);
+        }
+        Log.i(TAG, "cloner.json updated in " + outApk.getName());
+    }
+
+    /**
+     * Signed raw copy of {@code source} into {@code writer} with {@code clonerJson} swapped in.
+     * The manifest is rewritten only to record the new config hash, and a compiled config is
+     * recompiled in the dex that holds it.
+     */
+    private void writeWithClonerJson(ApkArchive source, File clonerJson, ApkArchiveWriter writer, int libAlignment,
+                                     int minSdk) throws Exception {
+        try (SigningEngine.Session session = newSigningSession(minSdk)) {
+            writer.setSigningSession(session);
+            ApkArchive.Entry manifestEntry = source.getEntry(ANDROID_MANIFEST);
+            if (manifestEntry == null) {
+                throw new IOException("AndroidManifest.xml not found in source APK");
+            }
+            byte[] manifest;
+            Map.Entry<String, byte[]> configDex;
+            try (PipelineTrace.Phase phase = trace.begin("manifest")) {
+                phase.addRead(manifestEntry.getCompressedSize());
+                ManifestPatchResult update = updateConfigMetaData(source.read(manifestEntry), clonerJson);
+                manifest = update != null ? update.manifestBytes : null;
+                configDex = update != null && update.configCompiled
+                        ? recompileConfig(source, readClonerConfig(clonerJson)) : null;
+            }
+            if (libAlignment > 0) writer.setPageAlignment(libAlignment);
+            try (PipelineTrace.Phase phase = trace.begin("entries")) {
+                for (ApkArchive.Entry ze : source.entries()) {
+                    String name = ze.getName();
+                    if (name == null || name.isEmpty() || ze.isDirectory()) continue;
+                    if (SIG_PATH.matcher(name).matches()) continue;
+                    if (CLONER_JSON_ENTRY.equals(name)) continue;
+                    if (writer.contains(name)) {
+                        Log.w(TAG, "Skipping duplicate entry: " + name);
+                        continue;
+                    }
+                    phase.addEntry();
+                    phase.addRead(ze.getCompressedSize());
+                    long before = writer.bytesWritten();
+                    if (manifest != null && ANDROID_MANIFEST.equals(name)) {
+                        writer.putStored(ANDROID_MANIFEST, manifest);
+                    } else if (configDex != null && configDex.getKey().equals(name)) {
+                        if (shouldStore(name)) {
+                            writer.putStored(name, configDex.getValue());
+                        } else {
+                            writer.putDeflated(name, configDex.getValue());
+                        }
+                    } else {
+                        writer.copy(source, ze);
+                    }
+                    phase.addWritten(writer.bytesWritten() - before);
                 }
-            } catch (IOException e) {
-                Log.e(TAG, "Error bundling app data. Skipping.", e);
+            }
+            try (PipelineTrace.Phase phase = trace.begin("inject")) {
+                long before = writer.bytesWritten();
+                writer.putFile(CLONER_JSON_ENTRY, clonerJson, shouldStore(CLONER_JSON_ENTRY));
+                phase.addEntry();
+                phase.addRead(clonerJson.length());
+                phase.addWritten(writer.bytesWritten() - before);
+            }
+            // Drains queued deflates, then writes the JAR signature entries and the signing block.
+            long signStart = writer.bytesWritten();
+            try (PipelineTrace.Phase phase = trace.begin("sign")) {
+                writer.finish();
+                phase.addWritten(writer.bytesWritten() - signStart);
             }
         }
+    }
 
-        boolean hasArm64 = abiDirs.contains("lib/arm64-v8a/");
-        List<String> targetAbiDirs = new ArrayList<>();
-        if (hasArm64) {
-            targetAbiDirs.add("lib/arm64-v8a/");
-        } else {
-            targetAbiDirs.add("lib/arm64-v8a/");
-        }
-        File[] soFiles = nativeLibDir.listFiles((d, n) -> n.endsWith(".so"));
-        if (soFiles != null) {
-            for (String abi : targetAbiDirs) {
-                File dstDir = new File(tempRoot, abi);
-                if (!dstDir.exists() && !dstDir.mkdirs()) {
-                    deleteRec(tempRoot);
-                    throw new IOException("Failed to create ABI dir: " + dstDir);
+    /**
+     * Moves an installed clone to {@code hookDex} and the libraries in {@code nativeLibDir}
+     * without its original APK. In the base the dex holding the hook gets the new hook classes
+     * and the manifest's {@link CloneMetadata} the new hook hash; in every APK that carries
+     * hook libraries they are replaced. All other entries are copied raw and each rewritten
+     * APK is re-signed. Returns the rewritten APKs, base first; splits without hook libraries
+     * are left out, as they can stay installed as they are.
+     */
+    public List<File> upgradeHook(File baseApk, List<File> splitApks, File outDir, File hookDex, File nativeLibDir)
+            throws Exception {
+        Map<String, File[]> hookLibs = listNativeLibs(nativeLibDir);
+        if (!outDir.isDirectory() && !outDir.mkdirs()) throw new IOException("Cannot create " + outDir);
+        int minSdk;
+        try (ApkArchive base = ApkArchive.open(baseApk)) {
+            minSdk = readMinSdk(base);
+        }
+        String hookHash = hookHash(hookDex, hookLibs);
+        List<File> apks = new ArrayList<>();
+        apks.add(baseApk);
+        apks.addAll(splitApks);
+        List<File> outputs = new ArrayList<>();
+        try {
+            for (int i = 0; i < apks.size(); i++) {
+                File in = apks.get(i);
+                File out = new File(outDir, i == 0 ? "base.apk" : "split_" + in.getName());
+                try (ApkArchive source = ApkArchive.open(in)) {
+                    Map<String, File[]> libs = carriedHookLibs(source, hookLibs);
+                    if (i > 0 && libs == null) continue;
+                    outputs.add(out);
+                    try (ApkArchiveWriter writer = ApkArchiveWriter.create(out)) {
+                        writeUpgraded(source, writer, i == 0 ? hookDex : null, libs, minSdk, hookHash);
+                    }
                 }
-                for (File so : soFiles) {
-                    Files.copy(so.toPath(), new File(dstDir, so.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+                verifyIfRequested(out);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Upgrading hook of " + baseApk + " failed", e);
+            for (File f : outputs) f.delete();
+            throw e;
+        }
+        Log.i(TAG, "Hook upgraded in " + outputs.size() + " of " + apks.size() + " APKs");
+        return outputs;
+    }
+
+    /**
+     * The hook libraries for those ABIs of {@code apk} that already carry one of them, or null
+     * if none does.
+     */
+    private static Map<String, File[]> carriedHookLibs(ApkArchive apk, Map<String, File[]> hookLibs) {
+        if (hookLibs == null) return null;
+        Map<String, File[]> carried = new TreeMap<>();
+        for (String abi : abisOf(apk)) {
+            File[] libs = hookLibs.get(abi);
+            if (libs == null) continue;
+            for (File so : libs) {
+                if (apk.getEntry(libEntryName(abi, so)) != null) {
+                    carried.put(abi, libs);
+                    break;
                 }
             }
         }
+        return carried.isEmpty() ? null : carried;
+    }
 
-        File unsignedApk = new File(ctx.getCacheDir(), "unsigned_" + System.nanoTime() + ".apk");
-        zipDir(tempRoot, unsignedApk, patchedManifest);
-        deleteRec(tempRoot);
+    /**
+     * Signed raw copy of {@code source} with {@code hookLibs} swapped in and, unless
+     * {@code hookDex} is null, the hook classes and the manifest metadata updated.
+     */
+    private void writeUpgraded(ApkArchive source, ApkArchiveWriter writer, File hookDex, Map<String, File[]> hookLibs,
+                               int minSdk, String hookHash) throws Exception {
+        Set<String> injectedNames = new HashSet<>();
+        addLibNames(injectedNames, hookLibs);
+        byte[] manifest = null;
+        String dexName = null;
+        byte[] dex = null;
+        if (hookDex != null) {
+            ApkArchive.Entry manifestEntry = source.getEntry(ANDROID_MANIFEST);
+            if (manifestEntry == null) throw new IOException("AndroidManifest.xml not found in source APK");
+            manifest = updateHookMetaData(source, source.read(manifestEntry), hookHash);
+            Map.Entry<ApkArchive.Entry, byte[]> old = findHookDex(source);
+            if (old == null) throw new IOException("No dex defines the hook; rebuild the clone from its original APK");
+            dexName = old.getKey().getName();
+            if ((old.getKey().getSize() + hookDex.length()) * DEX_MERGE_HEAP_FACTOR > availableHeap(ctx)) {
+                throw new IOException("Not enough memory to upgrade the hook in " + dexName);
+            }
+            byte[] hook = Files.readAllBytes(hookDex.toPath());
+            byte[] replaced = DexMerger.replace(old.getValue(), hook);
+            if (replaced == null) throw new IOException("The new hook no longer fits into " + dexName);
+            // The hook file itself if nothing else shared its dex, so the payload can be spliced in.
+            dex = replaced != hook ? replaced : null;
+        }
+        try (SigningEngine.Session session = newSigningSession(minSdk)) {
+            writer.setSigningSession(session);
+            int libAlignment = source.nativeLibAlignment();
+            if (libAlignment > 0) writer.setPageAlignment(libAlignment);
+            for (ApkArchive.Entry ze : source.entries()) {
+                String name = ze.getName();
+                if (name == null || name.isEmpty() || ze.isDirectory()) continue;
+                if (SIG_PATH.matcher(name).matches()) continue;
+                if (injectedNames.contains(name)) continue;
+                if (writer.contains(name)) {
+                    Log.w(TAG, "Skipping duplicate entry: " + name);
+                    continue;
+                }
+                if (manifest != null && ANDROID_MANIFEST.equals(name)) {
+                    writer.putStored(ANDROID_MANIFEST, manifest);
+                    continue;
+                }
+                if (name.equals(dexName)) {
+                    if (dex == null) {
+                        putPayloadFile(writer, name, hookDex);
+                    } else if (shouldStore(name)) {
+                        writer.putStored(name, dex);
+                    } else {
+                        writer.putDeflated(name, dex);
+                    }
+                    continue;
+                }
+                writer.copy(source, ze);
+            }
+            putHookLibs(writer, hookLibs);
+            writer.finish();
+        }
+    }
+
+    /** The dex of {@code apk} that defines the hook's entry class, with its content, or null. */
+    private static Map.Entry<ApkArchive.Entry, byte[]> findHookDex(ApkArchive apk) throws IOException {
+        List<ApkArchive.Entry> dexes = new ArrayList<>();
+        for (ApkArchive.Entry ze : apk.entries()) {
+            if (DEX_NAME.matcher(ze.getName()).matches()) dexes.add(ze);
+        }
+        // The hook is appended or merged into the last dex, so the search starts there.
+        dexes.sort((a, b) -> Integer.compare(dexIndex(b.getName()), dexIndex(a.getName())));
+        for (ApkArchive.Entry ze : dexes) {
+            byte[] dex = apk.read(ze);
+            if (DexMerger.defines(dex, HOOK_ENTRY_TYPE)) return new AbstractMap.SimpleImmutableEntry<>(ze, dex);
+        }
+        return null;
+    }
 
-        File signedApk = new File(ctx.getCacheDir(), "signed_" + System.nanoTime() + ".apk");
+    /**
+     * Digest over every input of {@link #injectHook}. The source APK is identified by its central
+     * directory (names, CRCs, sizes, offsets) and total size rather than a full read; the signing
+     * block and old signatures it may differ in are discarded by the build anyway.
+     */
+    private String buildFingerprint(ApkArchive source, File hookDex, File clonerJson, Map<String, File[]> hookLibs,
+                                    File bundledData) throws Exception {
+        MessageDigest md = EntryDescriptor.newSha256();
+        md.update(("v" + INJECTOR_VERSION + "|level=" + compressionLevel + "|align=" + pageAlignNativeLibs
+                + "|page=" + pageSize + "|mergeDex=" + mergeHookDex + "|shrink=" + shrinkHook
+                + "|compileConfig=" + compileConfig + "|abis=" + Arrays.toString(deviceAbis)
+                + "|locales=" + Arrays.toString(keepLocales) + "|densities=" + Arrays.toString(keepDensities) + "|")
+                .getBytes(StandardCharsets.UTF_8));
+        md.update(source.readCentralDirectory());
+        md.update(("|size=" + source.size()).getBytes(StandardCharsets.UTF_8));
+        digestFile(md, "config", clonerJson);
+        digestFile(md, "dex", hookDex);
+        if (hookLibs != null) {
+            for (Map.Entry<String, File[]> e : hookLibs.entrySet()) {
+                for (File so : e.getValue()) digestFile(md, libEntryName(e.getKey(), so), so);
+            }
+        }
+        if (bundledData != null) digestFile(md, "data", bundledData);
+        for (X509Certificate cert : SigningEngine.get(ctx).getCertificates()) {
+            md.update(cert.getEncoded());
+        }
+        return EntryDescriptor.toHex(md.digest());
+    }
+
+    /**
+     * Hash of the hook payload {@code hookDex} and {@code hookLibs} for {@link CloneMetadata}; the
+     * registered payload's own when it is the one being injected.
+     */
+    private String hookHash(File hookDex, Map<String, File[]> hookLibs) throws IOException {
+        if (hookPayload != null && hookDex.equals(hookPayload.hookDex)) return hookPayload.getHash();
+        return CloneMetadata.shortHash(payloadDigest(hookDex, hookLibs));
+    }
+
+    /**
+     * SHA-256 over hook.dex and every library of {@code hookLibs}, in ABI and file name order,
+     * so a new native library alone changes it as well. {@code hookLibs} may be null.
+     */
+    static byte[] payloadDigest(File hookDex, Map<String, File[]> hookLibs) throws IOException {
+        MessageDigest md = EntryDescriptor.newSha256();
+        md.update(fileDigest(hookDex));
+        if (hookLibs != null) {
+            for (Map.Entry<String, File[]> abi : new TreeMap<>(hookLibs).entrySet()) {
+                for (File so : abi.getValue()) digestFile(md, libEntryName(abi.getKey(), so), so);
+            }
+        }
+        return md.digest();
+    }
+
+    private static void digestFile(MessageDigest md, String label, File file) throws IOException {
+        md.update(("|" + label + "=").getBytes(StandardCharsets.UTF_8));
+        md.update(fileDigest(file));
+    }
+
+    /**
+     * SHA-256 of {@code file}. Only files of a hook payload store are remembered: those never
+     * change once extracted, while cloner.json and bundled data are rewritten in place, where a
+     * same-length edit can keep length and mtime.
+     */
+    private static byte[] fileDigest(File file) throws IOException {
+        String key = digestKey(file);
+        boolean remember;
+        synchronized (fileDigests) {
+            byte[] cached = fileDigests.get(key);
+            if (cached != null) return cached;
+            remember = isPayloadFile(file);
+        }
+        MessageDigest md = EntryDescriptor.newSha256();
+        byte[] buf = new byte[64 * 1024];
+        try (InputStream in = new FileInputStream(file)) {
+            int n;
+            while ((n = in.read(buf)) != -1) md.update(buf, 0, n);
+        }
+        byte[] digest = md.digest();
+        if (remember) {
+            synchronized (fileDigests) {
+                fileDigests.put(key, digest);
+            }
+        }
+        return digest;
+    }
+
+    /** Whether {@code file} lies in a store registered through {@link #setHookPayload}; call with the lock held. */
+    private static boolean isPayloadFile(File file) {
+        String path = file.getAbsolutePath();
+        for (String dir : payloadDirs) {
+            if (path.startsWith(dir)) return true;
+        }
+        return false;
+    }
+
+    private static String digestKey(File file) {
+        return file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified();
+    }
+
+    private JSONObject readClonerConfig(File clonerJson) {
+        try (InputStreamReader reader = new InputStreamReader(new FileInputStream(clonerJson), "UTF-8")) {
+            StringBuilder sb = new StringBuilder();
+            char[] buffer = new char[4096];
+            int read;
+            while ((read = reader.read(buffer, 0, buffer.length)) != -1) {
+                sb.append(buffer, 0, read);
+            }
+            return new JSONObject(sb.toString());
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Failed to read or parse cloner.json, using default empty config.", e);
+            return new JSONObject();
+        }
+    }
+
+    /**
+     * {@link #patchManifest} behind a content-addressed cache, so cloning the same app version
+     * again skips parsing and re-serializing the binary XML. Cached manifests carry a placeholder
+     * build time that is overwritten with this build's. {@code withCamera} declares the fake camera
+     * components; the key leaves it out, as the shrink setting and both hashes decide it.
+     */
+    private ManifestPatchResult patchManifestCached(byte[] raw, JSONObject clonerConfig, CloneMetadata metadata,
+                                                    boolean withCamera) throws IOException {
+        DiskLruCache cache = getManifestCache(ctx);
+        String key = manifestCacheKey(raw, metadata);
+        byte[] cached = cache.get(key);
+        // Cached values are the 4-byte minSdk followed by the patched manifest.
+        if (cached != null && cached.length > 4) {
+            Log.d(TAG, "Manifest cache hit (" + cache.getHitCount() + " hits, " + cache.getMissCount() + " misses)");
+            ByteBuffer b = ByteBuffer.wrap(cached);
+            ManifestPatchResult result = new ManifestPatchResult();
+            result.minSdk = b.getInt();
+            result.manifestBytes = Arrays.copyOfRange(cached, 4, cached.length);
+            if (stampBuildTime(result.manifestBytes, metadata.buildTime)) return result;
+        }
+        ManifestPatchResult patched = patchManifest(raw, clonerConfig,
+                metadata.withBuildTime(BUILD_TIME_PLACEHOLDER), withCamera);
+        byte[] template = patched.manifestBytes.clone();
+        if (!stampBuildTime(patched.manifestBytes, metadata.buildTime)) {
+            // The placeholder is not unique in this manifest; patch it with the real time and keep it out of the cache.
+            return patchManifest(raw, clonerConfig, metadata, withCamera);
+        }
         try {
-            signApk(unsignedApk, signedApk);
-        } catch (Exception e) {
-            Log.e(TAG, "Signing failed", e);
-            unsignedApk.delete();
-            signedApk.delete();
-            throw e;
+            cache.put(key, ByteBuffer.allocate(4 + template.length).putInt(patched.minSdk).put(template).array());
+        } catch (IOException e) {
+            Log.w(TAG, "Could not cache patched manifest", e);
         }
-        unsignedApk.delete();
+        return patched;
+    }
 
-        try (OutputStream os = ctx.getContentResolver().openOutputStream(outApk)) {
-            Files.copy(signedApk.toPath(), os);
+    /**
+     * Overwrites the {@link #BUILD_TIME_PLACEHOLDER} string in the pool of a binary manifest
+     * with {@code time}. Returns false, leaving {@code manifest} as it was, unless the
+     * placeholder occurs exactly once and {@code time} has as many digits.
+     */
+    private static boolean stampBuildTime(byte[] manifest, long time) {
+        String placeholder = Long.toString(BUILD_TIME_PLACEHOLDER);
+        String value = Long.toString(time);
+        if (value.length() != placeholder.length()) return false;
+        // Pool strings are UTF-8 with two length bytes and a terminating 0, or UTF-16LE with one length unit.
+        int n = placeholder.length();
+        byte[] utf8 = new byte[n + 3];
+        byte[] utf16 = new byte[2 * n + 4];
+        utf8[0] = (byte) n;
+        utf8[1] = (byte) n;
+        utf16[0] = (byte) n;
+        for (int i = 0; i < n; i++) {
+            utf8[2 + i] = (byte) placeholder.charAt(i);
+            utf16[2 + 2 * i] = (byte) placeholder.charAt(i);
         }
-        signedApk.delete();
-        Log.i(TAG, "APK injection + signing completed successfully");
+        int at = -1;
+        int step = 0;
+        for (byte[] pattern : new byte[][] {utf8, utf16}) {
+            for (int i = indexOf(manifest, pattern, 0); i >= 0; i = indexOf(manifest, pattern, i + 1)) {
+                if (at >= 0) return false;
+                at = i + 2;
+                step = pattern == utf8 ? 1 : 2;
+            }
+        }
+        if (at < 0) return false;
+        for (int i = 0; i < n; i++) manifest[at + i * step] = (byte) value.charAt(i);
+        return true;
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern, int from) {
+        outer:
+        for (int i = from; i <= data.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Everything patchManifest's output depends on except the build time. cloner.json is
+     * covered by its hash; processor settings it reads have to be added here as well.
+     */
+    private String manifestCacheKey(byte[] raw, CloneMetadata metadata) {
+        MessageDigest md = EntryDescriptor.newSha256();
+        md.update(raw);
+        md.update(("|v" + INJECTOR_VERSION + "|extractNativeLibs=" + !pageAlignNativeLibs + "|shrink=" + shrinkHook
+                + "|config=" + metadata.configHash + "|hook=" + metadata.hookHash
+                + "|compiled=" + metadata.configCompiled).getBytes(StandardCharsets.UTF_8));
+        return EntryDescriptor.toHex(md.digest());
     }
 
-    private ManifestPatchResult patchManifest(byte[] raw, JSONObject clonerConfig) throws IOException {
+    private ManifestPatchResult patchManifest(byte[] raw, JSONObject clonerConfig, CloneMetadata metadata,
+                                              boolean withCamera) throws IOException {
         ResXmlDocument doc = new ResXmlDocument();
         doc.readBytes(new ByteArrayInputStream(raw));
         ResXmlElement root = doc.getDocumentElement();
@@ -239,6 +1499,12 @@ public class ApkProcessor {
         ResXmlElement app = root.getElement(E_APPLICATION);
         if (app == null) throw new IOException("<application> missing");
 
+        if (pageAlignNativeLibs) {
+            Log.d(TAG, "Setting extractNativeLibs=false");
+            app.getOrCreateAndroidAttribute(A_EXTRACT_NATIVE_LIBS, ID_ANDROID_EXTRACT_NATIVE_LIBS)
+                .setValueAsBoolean(false);
+        }
+
         boolean providerInjectedOrPresent = false;
         for (ResXmlElement p : app.listElements(E_PROVIDER)) {
             ResXmlAttribute a = p.searchAttributeByResourceId(ID_ANDROID_AUTHORITIES);
@@ -249,32 +1515,9 @@ public class ApkProcessor {
             }
         }
 
-        boolean needInitOrder = true;
-        ResXmlElement usesSdk = root.getElement("uses-sdk");
-        if (usesSdk != null) {
-            ResXmlAttribute minA = usesSdk.searchAttributeByResourceId(ID_ANDROID_MIN_SDK);
-            if (minA != null) {
-                try {
-                    int min = -1;
-                    ValueType vt = minA.getValueType();
-                    if (vt == ValueType.DEC || vt == ValueType.HEX) {
-                        min = minA.getData();
-                    } else {
-                        String s = minA.getValueAsString();
-                        if (s != null) {
-                            String numericOnly = s.replaceAll("[^0-9]", "");
-                            if (!numericOnly.isEmpty()) min = Integer.parseInt(numericOnly);
-                        }
-                    }
-                    if (min >= 0) {
-                        needInitOrder = min >= 24;
-                        Log.d(TAG, "MinSdk: " + min + ", needInitOrder: " + needInitOrder);
-                    }
-                } catch (Exception e) {
-                    Log.w(TAG, "Could not parse minSdk, using default", e);
-                }
-            }
-        }
+        int minSdk = parseMinSdk(root);
+        boolean needInitOrder = minSdk < 0 || minSdk >= 24;
+        Log.d(TAG, "MinSdk: " + minSdk + ", needInitOrder: " + needInitOrder);
 
         if (!providerInjectedOrPresent) {
             Log.d(TAG, "Injecting DefaultProvider");
@@ -318,6 +1561,7 @@ public class ApkProcessor {
                 .setValueAsString(EXPORT_ACTION);
         }
 
+        // A shrunk payload without the fake camera has no classes for its components.
         boolean cameraControlReceiverExists = false;
         for (ResXmlElement r : app.listElements(E_RECEIVER)) {
             ResXmlAttribute nameAttr = r.searchAttributeByResourceId(ID_ANDROID_NAME);
@@ -326,7 +1570,7 @@ public class ApkProcessor {
                 break;
             }
         }
-        if (!cameraControlReceiverExists) {
+        if (withCamera && !cameraControlReceiverExists) {
             Log.d(TAG, "Injecting CameraControlReceiver");
             ResXmlElement receiver = app.newElement(E_RECEIVER);
             receiver.getOrCreateAndroidAttribute(A_NAME, ID_ANDROID_NAME)
@@ -359,7 +1603,7 @@ public class ApkProcessor {
                 break;
             }
         }
-        if (!fakeCameraActivityExists) {
+        if (withCamera && !fakeCameraActivityExists) {
             Log.d(TAG, "Injecting FakeCameraActivity");
             ResXmlElement activity = app.newElement(E_ACTIVITY);
             activity.getOrCreateAndroidAttribute(A_NAME, ID_ANDROID_NAME)
@@ -371,13 +1615,150 @@ public class ApkProcessor {
             themeAttr.setData(0x0103000a); // @android:style/Theme.NoTitleBar.Fullscreen
         }
 
+        putMetaData(app, metadata);
+
         doc.refresh();
 
         ManifestPatchResult result = new ManifestPatchResult();
         result.manifestBytes = doc.getBytes();
+        result.minSdk = minSdk;
         return result;
     }
 
+    /** Adds or replaces the {@link CloneMetadata} entries under {@code app}. */
+    private static void putMetaData(ResXmlElement app, CloneMetadata metadata) {
+        ResXmlAttribute version = metaDataValue(app, CloneMetadata.KEY_INJECTOR_VERSION);
+        version.setData(metadata.injectorVersion);
+        version.setValueType(ValueType.DEC);
+        metaDataValue(app, CloneMetadata.KEY_CONFIG_HASH).setValueAsString(metadata.configHash);
+        metaDataValue(app, CloneMetadata.KEY_HOOK_HASH).setValueAsString(metadata.hookHash);
+        // As a string: a decimal value would be truncated to 32 bits.
+        metaDataValue(app, CloneMetadata.KEY_BUILD_TIME).setValueAsString(Long.toString(metadata.buildTime));
+        metaDataValue(app, CloneMetadata.KEY_CONFIG_COMPILED).setValueAsBoolean(metadata.configCompiled);
+    }
+
+    /** android:value of the {@code <meta-data>} named {@code name}, creating the element if needed. */
+    private static ResXmlAttribute metaDataValue(ResXmlElement app, String name) {
+        ResXmlElement m = findMetaData(app, name);
+        if (m != null) return m.getOrCreateAndroidAttribute(A_VALUE, ID_ANDROID_VALUE);
+        m = app.newElement(E_META_DATA);
+        m.getOrCreateAndroidAttribute(A_NAME, ID_ANDROID_NAME).setValueAsString(name);
+        return m.getOrCreateAndroidAttribute(A_VALUE, ID_ANDROID_VALUE);
+    }
+
+    private static ResXmlElement findMetaData(ResXmlElement app, String name) {
+        for (ResXmlElement m : app.listElements(E_META_DATA)) {
+            ResXmlAttribute nameAttr = m.searchAttributeByResourceId(ID_ANDROID_NAME);
+            if (nameAttr != null && name.equals(nameAttr.getValueAsString())) return m;
+        }
+        return null;
+    }
+
+    /**
+     * {@code raw} with the config hash and build time of its {@link CloneMetadata} updated, or
+     * null if it carries no metadata (clones built before it was added). Also reports whether
+     * the clone has its config compiled into the hook dex.
+     */
+    private static ManifestPatchResult updateConfigMetaData(byte[] raw, File clonerJson) throws IOException {
+        ResXmlDocument doc = new ResXmlDocument();
+        doc.readBytes(new ByteArrayInputStream(raw));
+        ResXmlElement root = doc.getDocumentElement();
+        ResXmlElement app = root != null ? root.getElement(E_APPLICATION) : null;
+        if (app == null || findMetaData(app, CloneMetadata.KEY_INJECTOR_VERSION) == null) return null;
+        metaDataValue(app, CloneMetadata.KEY_CONFIG_HASH)
+                .setValueAsString(CloneMetadata.shortHash(fileDigest(clonerJson)));
+        metaDataValue(app, CloneMetadata.KEY_BUILD_TIME).setValueAsString(Long.toString(System.currentTimeMillis()));
+        doc.refresh();
+
+        ManifestPatchResult result = new ManifestPatchResult();
+        result.manifestBytes = doc.getBytes();
+        result.configCompiled = isConfigCompiled(app);
+        return result;
+    }
+
+    /**
+     * {@code raw} with {@link CloneMetadata} for the payload with {@code hookHash} and the current
+     * injector. Clones built before the metadata was added get it here; the config hash is taken
+     * from the cloner.json in {@code apk}.
+     */
+    private static byte[] updateHookMetaData(ApkArchive apk, byte[] raw, String hookHash) throws IOException {
+        ResXmlDocument doc = new ResXmlDocument();
+        doc.readBytes(new ByteArrayInputStream(raw));
+        ResXmlElement root = doc.getDocumentElement();
+        ResXmlElement app = root != null ? root.getElement(E_APPLICATION) : null;
+        if (app == null) throw new IOException("No <application> element in manifest");
+        ApkArchive.Entry json = apk.getEntry(CLONER_JSON_ENTRY);
+        String configHash = json != null
+                ? CloneMetadata.shortHash(EntryDescriptor.newSha256().digest(apk.read(json))) : "";
+        CloneMetadata metadata = new CloneMetadata(INJECTOR_VERSION, configHash, hookHash, System.currentTimeMillis());
+        metadata.configCompiled = isConfigCompiled(app);
+        putMetaData(app, metadata);
+        doc.refresh();
+        return doc.getBytes();
+    }
+
+    private static boolean isConfigCompiled(ResXmlElement app) {
+        ResXmlElement compiled = findMetaData(app, CloneMetadata.KEY_CONFIG_COMPILED);
+        ResXmlAttribute value = compiled != null ? compiled.searchAttributeByResourceId(ID_ANDROID_VALUE) : null;
+        return value != null && value.getValueType() == ValueType.BOOLEAN && value.getData() != 0;
+    }
+
+    /**
+     * The dex of {@code source} that holds the compiled config, recompiled for {@code config}.
+     * The hook dex is normally the last one, so the search starts there.
+     */
+    private static Map.Entry<String, byte[]> recompileConfig(ApkArchive source, JSONObject config) throws IOException {
+        List<ApkArchive.Entry> dexes = new ArrayList<>();
+        for (ApkArchive.Entry ze : source.entries()) {
+            if (DEX_NAME.matcher(ze.getName()).matches()) dexes.add(ze);
+        }
+        dexes.sort((a, b) -> Integer.compare(dexIndex(b.getName()), dexIndex(a.getName())));
+        for (ApkArchive.Entry ze : dexes) {
+            byte[] dex = source.read(ze);
+            if (!ConfigCompiler.mentionsConfigClass(dex)) continue;
+            byte[] replaced = ConfigCompiler.replaceIn(dex, config);
+            if (replaced != null) return new AbstractMap.SimpleImmutableEntry<>(ze.getName(), replaced);
+        }
+        throw new IOException("Clone is marked as having a compiled config, but no dex defines it");
+    }
+
+    /** N of classesN.dex (1 for classes.dex), or -1 if {@code name} is no dex. */
+    static int dexIndex(String name) {
+        Matcher m = DEX_NAME.matcher(name);
+        if (!m.matches()) return -1;
+        return m.group(1).isEmpty() ? 1 : Integer.parseInt(m.group(1));
+    }
+
+    /** minSdkVersion declared by {@code root}'s uses-sdk, or -1 if absent or unreadable. */
+    static int parseMinSdk(ResXmlElement root) {
+        ResXmlElement usesSdk = root.getElement("uses-sdk");
+        if (usesSdk == null) return -1;
+        ResXmlAttribute minA = usesSdk.searchAttributeByResourceId(ID_ANDROID_MIN_SDK);
+        if (minA == null) return -1;
+        try {
+            ValueType vt = minA.getValueType();
+            if (vt == ValueType.DEC || vt == ValueType.HEX) return minA.getData();
+            String s = minA.getValueAsString();
+            if (s != null) {
+                String numericOnly = s.replaceAll("[^0-9]", "");
+                if (!numericOnly.isEmpty()) return Integer.parseInt(numericOnly);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Could not parse minSdk, using default", e);
+        }
+        return -1;
+    }
+
+    /** minSdkVersion of {@code apk}, or 1 if its manifest does not declare one. */
+    private static int readMinSdk(ApkArchive apk) throws IOException {
+        ApkArchive.Entry manifest = apk.getEntry(ANDROID_MANIFEST);
+        if (manifest == null) throw new IOException("AndroidManifest.xml not found in APK");
+        ResXmlDocument doc = new ResXmlDocument();
+        doc.readBytes(new ByteArrayInputStream(apk.read(manifest)));
+        ResXmlElement root = doc.getDocumentElement();
+        return Math.max(1, root != null ? parseMinSdk(root) : -1);
+    }
+
     private void addPermissionIfMissing(ResXmlElement root, String permission) {
         for (ResXmlElement perm : root.listElements(E_USES_PERMISSION)) {
             ResXmlAttribute nameAttr = perm.searchAttributeByResourceId(ID_ANDROID_NAME);
@@ -390,125 +1771,82 @@ public class ApkProcessor {
             .setValueAsString(permission);
     }
 
-    private void zipDir(File root, File outFile, byte[] manifestBytes) throws IOException {
-        try (OutputStream os = new FileOutputStream(outFile);
-             ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(os))) {
-            zos.setLevel(9);
-            writeZip(root, zos, manifestBytes);
+    /**
+     * Opens the source APK for random access. Document providers normally hand out a seekable
+     * descriptor; for anything else (pipes, remote providers) the APK is spooled to cache once.
+     */
+    private ApkArchive openSource(Uri inApk) throws IOException {
+        ParcelFileDescriptor pfd = ctx.getContentResolver().openFileDescriptor(inApk, "r");
+        long statSize = -1;
+        if (pfd != null) {
+            statSize = pfd.getStatSize();
+            FileChannel channel = new FileInputStream(pfd.getFileDescriptor()).getChannel();
+            try {
+                channel.position(0);
+                if (channel.size() > 0) return ApkArchive.open(channel, pfd);
+            } catch (IOException e) {
+                Log.d(TAG, "Source is not seekable, reading it once", e);
+            }
+            pfd.close();
         }
-    }
 
-    private void writeZip(File root, ZipOutputStream zos, byte[] manifestBytes) throws IOException {
-        ZipEntry manifestEntry = createZipEntry(ANDROID_MANIFEST, manifestBytes);
-        zos.putNextEntry(manifestEntry);
-        zos.write(manifestBytes);
-        zos.closeEntry();
-        addRec(root, root.getAbsolutePath(), zos);
-    }
+        if (fitsInMemory(statSize)) {
+            MemoryChannel memory;
+            try (InputStream is = ctx.getContentResolver().openInputStream(inApk)) {
+                if (is == null) throw new FileNotFoundException("Cannot open " + inApk);
+                memory = MemoryChannel.readFully(is);
+            }
+            try {
+                return ApkArchive.open(memory);
+            } catch (IOException e) {
+                memory.close();
+                throw e;
+            }
+        }
 
-    private void addRec(File node, String base, ZipOutputStream zos) throws IOException {
-        if (node.isDirectory()) {
-            File[] kids = node.listFiles();
-            if (kids != null) for (File k : kids) addRec(k, base, zos);
-            return;
+        File spool = new File(ctx.getCacheDir(), "source_" + System.nanoTime() + ".apk");
+        try (InputStream is = ctx.getContentResolver().openInputStream(inApk);
+             OutputStream os = new FileOutputStream(spool)) {
+            if (is == null) throw new FileNotFoundException("Cannot open " + inApk);
+            copyStream(is, os);
+        } catch (IOException e) {
+            spool.delete();
+            throw e;
         }
-        String rel = node.getAbsolutePath().substring(base.length() + 1).replace(File.separatorChar, '/');
-        if (ANDROID_MANIFEST.equals(rel)) return;
-        ZipEntry entry = createZipEntry(rel, node);
-        zos.putNextEntry(entry);
-        try (FileInputStream fis = new FileInputStream(node)) {
-            copyStream(fis, zos);
+        return openDeleting(spool);
+    }
+
+    /** Opens the temporary archive {@code file}; it is deleted when the archive is closed. */
+    private static ApkArchive openDeleting(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return ApkArchive.open(raf.getChannel(), () -> {
+                raf.close();
+                file.delete();
+            });
+        } catch (IOException e) {
+            raf.close();
+            file.delete();
+            throw e;
         }
-        zos.closeEntry();
     }
 
-    private ZipEntry createZipEntry(String name, byte[] data) {
-        ZipEntry e = new ZipEntry(name);
-        e.setTime(0L);
-        e.setMethod(ZipEntry.STORED);
-        e.setSize(data.length);
-        CRC32 crc = new CRC32();
-        crc.update(data);
-        e.setCrc(crc.getValue());
-        return e;
+    /** Entries the platform maps directly from the APK when native libs are not extracted. */
+    private static boolean mustBeStored(String name) {
+        return RESOURCES_ARSC.equals(name) || (name.startsWith("lib/") && name.endsWith(".so"));
     }
 
-    private ZipEntry createZipEntry(String name, File file) throws IOException {
-        ZipEntry e = new ZipEntry(name);
-        e.setTime(0L);
+    private static boolean shouldStore(String name) {
         String lower = name.toLowerCase(Locale.US);
-        boolean store = lower.endsWith(".so") || lower.endsWith(".arsc") || lower.endsWith(".dex");
-        if (store) {
-            e.setMethod(ZipEntry.STORED);
-            e.setSize(file.length());
-            CRC32 crc = new CRC32();
-            try (InputStream in = new FileInputStream(file)) {
-                byte[] buf = new byte[8192];
-                int r;
-                while ((r = in.read(buf)) != -1) {
-                    crc.update(buf, 0, r);
-                }
-            }
-            e.setCrc(crc.getValue());
-        } else {
-            e.setMethod(ZipEntry.DEFLATED);
-        }
-        return e;
-    }
-
-    private void signApk(File in, File out) throws Exception {
-        Log.d(TAG, "Loading signer config...");
-        ApkSigner.SignerConfig signer = loadSignerConfig();
-        Log.d(TAG, "Signer config loaded. Building ApkSigner...");
-        ApkSigner apkSigner = new ApkSigner.Builder(Collections.singletonList(signer))
-                .setInputApk(in)
-                .setOutputApk(out)
-                .setV1SigningEnabled(true)
-                .setV2SigningEnabled(true)
-                .setV3SigningEnabled(true)
-                .build();
-        Log.d(TAG, "Calling apkSigner.sign()...");
-        apkSigner.sign();
-        Log.d(TAG, "APK signed successfully.");
-
-        try {
-            Log.d(TAG, "Attempting APK verification...");
-            Class<?> builderClass = Class.forName("com.android.apksig.ApkVerifier$Builder");
-            Object builderInstance = builderClass.getConstructor(File.class).newInstance(out);
-            Object apkVerifierInstance = builderClass.getMethod("build").invoke(builderInstance);
-            Object vRes = apkVerifierInstance.getClass().getMethod("verify").invoke(apkVerifierInstance);
-            Boolean isVerified = (Boolean) vRes.getClass().getMethod("isVerified").invoke(vRes);
-            if (isVerified != null && !isVerified) {
-                Log.w(TAG, "APK verification result: NOT VERIFIED (continuing)");
-            } else {
-                Log.d(TAG, "APK signature verification passed (or skipped).");
-            }
-        } catch (Throwable t) {
-            Log.w(TAG, "Verification skipped due to error", t);
-        }
-        Log.d(TAG, "Signing process completed.");
+        return lower.endsWith(".so") || lower.endsWith(".arsc") || lower.endsWith(".dex");
     }
 
-    private ApkSigner.SignerConfig loadSignerConfig() throws Exception {
-        Log.d(TAG, "Loading keystore: " + KEYSTORE_ASSET + " with alias: " + ALIAS);
-        try (InputStream ksStream = ctx.getAssets().open(KEYSTORE_ASSET)) {
-            KeyStore ks = KeyStore.getInstance("PKCS12");
-            ks.load(ksStream, STORE_PWD.toCharArray());
-            PrivateKey key = (PrivateKey) ks.getKey(ALIAS, KEY_PWD.toCharArray());
-            if (key == null) throw new IllegalStateException("Private key is null for alias: " + ALIAS);
-            X509Certificate cert = (X509Certificate) ks.getCertificate(ALIAS);
-            if (cert == null) throw new IllegalStateException("Certificate is null for alias: " + ALIAS);
-            return new ApkSigner.SignerConfig.Builder(ALIAS, key, Collections.singletonList(cert)).build();
-        }
+    private SigningEngine.Session newSigningSession(int minSdk) throws Exception {
+        return SigningEngine.get(ctx).newSession(minSdk);
     }
 
-    private static File safeResolve(File root, String basePath, String entryName) throws IOException {
-        File out = new File(root, entryName);
-        String outPath = out.getCanonicalPath();
-        if (!outPath.startsWith(basePath)) {
-            throw new IOException("Blocked zip path traversal: " + entryName);
-        }
-        return out;
+    private void verifyIfRequested(File apk) throws Exception {
+        if (verifySignatures) SigningEngine.get(ctx).verify(apk);
     }
 
     private static boolean isProbablyZip(File f) {
@@ -530,15 +1868,20 @@ public class ApkProcessor {
         while ((n = in.read(buf)) != -1) out.write(buf, 0, n);
     }
 
-    private static void deleteRec(File f) {
-        if (f.isDirectory()) {
-            File[] kids = f.listFiles();
-            if (kids != null) for (File k : kids) deleteRec(k);
-        }
-        f.delete();
+    public interface ProgressListener {
+        void onProgress(int entriesDone, int entriesTotal);
+    }
+
+    private static class ShrunkPayload {
+        File dex;
+        Set<String> libraries;
+        Set<HookShrinker.Feature> removedFeatures;
+        Map<String, File[]> hookLibs;
     }
 
     private static class ManifestPatchResult {
         byte[] manifestBytes;
+        int minSdk = -1;
+        boolean configCompiled;
     }
 }
\ No newline at end of file
@@ -0,0 +1,119 @@
+package com.applisto.appcloner;
+
+import android.os.Bundle;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.text.DateFormat;
+import java.util.Date;
+
+/**
+ * What a clone was built from, stored as {@code <meta-data>} in its manifest so the app list
+ * can read it from the PackageManager without opening the APK.
+ */
+public class CloneMetadata {
+    static final String KEY_INJECTOR_VERSION = "com.applisto.appcloner.injector_version";
+    static final String KEY_CONFIG_HASH = "com.applisto.appcloner.config_hash";
+    static final String KEY_HOOK_HASH = "com.applisto.appcloner.hook_hash";
+    static final String KEY_BUILD_TIME = "com.applisto.appcloner.build_time";
+    static final String KEY_CONFIG_COMPILED = "com.applisto.appcloner.config_compiled";
+    // Hex digits of SHA-256 kept; enough to tell payloads and configs apart.
+    static final int HASH_LENGTH = 16;
+
+    int injectorVersion;
+    String configHash;
+    String hookHash;
+    long buildTime;
+    // Whether the config is also compiled into the hook dex, which config updates must then rewrite.
+    boolean configCompiled;
+
+    CloneMetadata() {
+    }
+
+    CloneMetadata(int injectorVersion, String configHash, String hookHash, long buildTime) {
+        this.injectorVersion = injectorVersion;
+        this.configHash = configHash;
+        this.hookHash = hookHash;
+        this.buildTime = buildTime;
+    }
+
+    /** Copy of this metadata with {@code time} as the build time. */
+    CloneMetadata withBuildTime(long time) {
+        CloneMetadata m = new CloneMetadata(injectorVersion, configHash, hookHash, time);
+        m.configCompiled = configCompiled;
+        return m;
+    }
+
+    /** Metadata from an ApplicationInfo's metaData, or null if the app carries none. */
+    public static CloneMetadata from(Bundle metaData) {
+        if (metaData == null || !metaData.containsKey(KEY_INJECTOR_VERSION)) return null;
+        CloneMetadata m = new CloneMetadata();
+        m.injectorVersion = metaData.getInt(KEY_INJECTOR_VERSION, 0);
+        m.configHash = metaData.getString(KEY_CONFIG_HASH);
+        m.hookHash = metaData.getString(KEY_HOOK_HASH);
+        m.configCompiled = metaData.getBoolean(KEY_CONFIG_COMPILED, false);
+        try {
+            String time = metaData.getString(KEY_BUILD_TIME);
+            m.buildTime = time != null ? Long.parseLong(time) : 0;
+        } catch (NumberFormatException e) {
+            m.buildTime = 0;
+        }
+        return m;
+    }
+
+    /** Shortened hex digest, as stored in the manifest. */
+    static String shortHash(byte[] digest) {
+        return EntryDescriptor.toHex(digest).substring(0, HASH_LENGTH);
+    }
+
+    /** Shortened hex digest of everything in {@code in}, e.g. the hook payload shipped in assets. */
+    public static String shortHash(InputStream in) throws IOException {
+        MessageDigest md = EntryDescriptor.newSha256();
+        byte[] buf = new byte[64 * 1024];
+        int n;
+        while ((n = in.read(buf)) != -1) md.update(buf, 0, n);
+        return shortHash(md.digest());
+    }
+
+    public int getInjectorVersion() {
+        return injectorVersion;
+    }
+
+    public String getConfigHash() {
+        return configHash;
+    }
+
+    public String getHookHash() {
+        return hookHash;
+    }
+
+    public long getBuildTime() {
+        return buildTime;
+    }
+
+    public boolean isConfigCompiled() {
+        return configCompiled;
+    }
+
+    /**
+     * Whether the clone was built by an older injector or, if {@code currentHookHash} is
+     * given, carries a different hook payload.
+     */
+    public boolean isOutdated(String currentHookHash) {
+        if (injectorVersion < ApkProcessor.INJECTOR_VERSION) return true;
+        return currentHookHash != null && !currentHookHash.equals(hookHash);
+    }
+
+    /** Whether the clone already carries the config with hash {@code configHash}. */
+    public boolean hasConfig(String configHash) {
+        return configHash != null && configHash.equals(this.configHash);
+    }
+
+    /** One-line status for lists, e.g. "v2, hook 1a2b3c4d, built 17 Oct 2026". */
+    public String describe() {
+        StringBuilder sb = new StringBuilder("v").append(injectorVersion);
+        if (hookHash != null) sb.append(", hook ").append(hookHash, 0, Math.min(8, hookHash.length()));
+        if (buildTime > 0) sb.append(", built ").append(DateFormat.getDateInstance().format(new Date(buildTime)));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,279 @@
+package com.applisto.appcloner;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many {@link ApkProcessor#injectHook}, {@link ApkProcessor#injectHookSplits} or
+ * {@link ApkProcessor#upgradeHook} jobs on a bounded pool. Jobs share the hook
+ * payload files and, through ApkProcessor's process-wide state, the signer and caches; the
+ * deflate threads of each job are sized so that all jobs together roughly use every core once.
+ */
+public class CloneQueue implements AutoCloseable {
+    private static final String TAG = "CloneQueue";
+    // Rough heap a single job needs: in-flight deflate blocks, queued entries and the manifest.
+    private static final long JOB_HEAP_BUDGET = 64L * 1024 * 1024;
+
+    public enum State { QUEUED, RUNNING, DONE, FAILED }
+
+    private final Context ctx;
+    private final HookPayload payload;
+    private final int concurrency;
+    private final ExecutorService pool;
+    private Listener listener;
+
+    /** Concurrency suited to this device: bounded by cores and by the free part of the heap. */
+    public static int defaultConcurrency(Context ctx) {
+        int cores = ParallelDeflater.defaultParallelism();
+        int byMemory = (int) Math.max(1, ApkProcessor.availableHeap(ctx) / JOB_HEAP_BUDGET);
+        return Math.max(1, Math.min(cores, byMemory));
+    }
+
+    public CloneQueue(Context ctx, HookPayload payload, int concurrency) {
+        this.ctx = ctx.getApplicationContext();
+        this.payload = payload;
+        this.concurrency = Math.max(1, concurrency);
+        AtomicInteger threadId = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(this.concurrency, r -> {
+            Thread t = new Thread(r, "clone-" + threadId.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Queues {@code jobs}; returns immediately. The listener sees every state and progress
+     * change and, once the last job has ended, the summary.
+     */
+    public void start(List<Job> jobs) {
+        Summary summary = new Summary();
+        summary.total = jobs.size();
+        summary.startNanos = System.nanoTime();
+        AtomicInteger remaining = new AtomicInteger(jobs.size());
+        int perJobParallelism = Math.max(1, ParallelDeflater.defaultParallelism() / concurrency);
+        if (jobs.isEmpty()) {
+            finish(summary);
+            return;
+        }
+        for (Job job : jobs) {
+            job.state = State.QUEUED;
+            pool.execute(() -> {
+                run(job, perJobParallelism);
+                synchronized (summary) {
+                    summary.jobs.add(job);
+                    if (job.state == State.DONE) {
+                        summary.succeeded++;
+                        summary.bytesIn += job.bytesIn;
+                    } else {
+                        summary.failed++;
+                    }
+                }
+                if (remaining.decrementAndGet() == 0) finish(summary);
+            });
+        }
+    }
+
+    private void run(Job job, int parallelism) {
+        job.state = State.RUNNING;
+        job.startNanos = System.nanoTime();
+        notifyJob(job);
+        try {
+            job.bytesIn = sizeOf(job.input);
+            ApkProcessor processor = new ApkProcessor(ctx)
+                    .setParallelism(parallelism)
+                    .setProgressListener((done, total) -> {
+                        int percent = total > 0 ? (int) (done * 100L / total) : 0;
+                        // Entries are many and small; only whole-percent steps reach the listener.
+                        if (percent != job.percent) {
+                            job.percent = percent;
+                            notifyJob(job);
+                        }
+                    })
+                    .setHookPayload(payload);
+            if (job.outDir != null && job.clonerJson != null) {
+                job.outputs = processor.injectHookSplits(new File(job.input.getPath()), job.splits, job.outDir,
+                        payload.getHookDex(), job.clonerJson, payload.getLibDir(), job.bundledData);
+            } else if (job.outDir != null) {
+                job.outputs = processor.upgradeHook(new File(job.input.getPath()), job.splits, job.outDir,
+                        payload.getHookDex(), payload.getLibDir());
+            } else {
+                processor.injectHook(job.input, job.output, payload.getHookDex(), job.clonerJson,
+                        payload.getLibDir(), job.bundledData);
+            }
+            job.state = State.DONE;
+        } catch (Exception e) {
+            Log.e(TAG, "Job failed: " + job.label, e);
+            job.error = e;
+            job.state = State.FAILED;
+        }
+        job.endNanos = System.nanoTime();
+        notifyJob(job);
+    }
+
+    private long sizeOf(Uri uri) {
+        try (ParcelFileDescriptor pfd = ctx.getContentResolver().openFileDescriptor(uri, "r")) {
+            return pfd != null ? pfd.getStatSize() : 0;
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    private void notifyJob(Job job) {
+        Listener l = listener;
+        if (l != null) l.onJobChanged(job);
+    }
+
+    private void finish(Summary summary) {
+        summary.endNanos = System.nanoTime();
+        Log.i(TAG, summary.toString());
+        Listener l = listener;
+        if (l != null) l.onFinished(summary);
+    }
+
+    /** Stops taking jobs and interrupts running ones. */
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    public interface Listener {
+        /** Called on a worker thread whenever a job changes state or makes progress. */
+        void onJobChanged(Job job);
+
+        /** Called on a worker thread once every job has ended. */
+        void onFinished(Summary summary);
+    }
+
+    public static class Job {
+        final String label;
+        final Uri input;
+        final Uri output;
+        final File clonerJson;
+        final File bundledData;
+        // Set for apps installed with splits and for hook upgrades, see splits() and upgrade().
+        final List<File> splits;
+        final File outDir;
+        volatile List<File> outputs = Collections.emptyList();
+        volatile State state = State.QUEUED;
+        volatile int percent;
+        volatile Exception error;
+        long bytesIn;
+        long startNanos;
+        long endNanos;
+
+        public Job(String label, Uri input, Uri output, File clonerJson, File bundledData) {
+            this(label, input, output, clonerJson, bundledData, Collections.<File>emptyList(), null);
+        }
+
+        private Job(String label, Uri input, Uri output, File clonerJson, File bundledData, List<File> splits,
+                    File outDir) {
+            this.label = label;
+            this.input = input;
+            this.output = output;
+            this.clonerJson = clonerJson;
+            this.bundledData = bundledData;
+            this.splits = splits;
+            this.outDir = outDir;
+        }
+
+        /**
+         * A job that moves the installed clone with APKs {@code baseApk} and {@code splits} to
+         * the queue's hook payload. The rewritten APKs end up in {@code outDir}, see {@link #getOutputs}.
+         */
+        public static Job upgrade(String label, File baseApk, List<File> splits, File outDir) {
+            return new Job(label, Uri.fromFile(baseApk), null, null, null, splits, outDir);
+        }
+
+        /**
+         * A job that clones an app installed as {@code baseApk} plus {@code splits} with
+         * {@code clonerJson}. The signed install set ends up in {@code outDir}, see {@link #getOutputs}.
+         */
+        public static Job splits(String label, File baseApk, List<File> splits, File clonerJson, File outDir) {
+            return new Job(label, Uri.fromFile(baseApk), null, clonerJson, null, splits, outDir);
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        /** Share of source entries processed, 0-100. */
+        public int getPercent() {
+            return percent;
+        }
+
+        public Exception getError() {
+            return error;
+        }
+
+        /** APKs a split or upgrade job wrote, base first; empty for other jobs. */
+        public List<File> getOutputs() {
+            return outputs;
+        }
+
+        public long getDurationMillis() {
+            return endNanos > 0 ? TimeUnit.NANOSECONDS.toMillis(endNanos - startNanos) : 0;
+        }
+    }
+
+    public static class Summary {
+        final List<Job> jobs = new ArrayList<>();
+        int total;
+        int succeeded;
+        int failed;
+        long bytesIn;
+        long startNanos;
+        long endNanos;
+
+        public int getTotal() {
+            return total;
+        }
+
+        public int getSucceeded() {
+            return succeeded;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        public List<Job> getFailedJobs() {
+            List<Job> out = new ArrayList<>();
+            for (Job j : jobs) {
+                if (j.state == State.FAILED) out.add(j);
+            }
+            return out;
+        }
+
+        public long getWallMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(endNanos - startNanos);
+        }
+
+        @Override
+        public String toString() {
+            double seconds = Math.max(1, getWallMillis()) / 1000.0;
+            StringBuilder sb = new StringBuilder(String.format(Locale.US,
+                    "%d/%d clones built, %d failed in %.1fs (%.2f apps/min, %.1f MB/s source)",
+                    succeeded, total, failed, seconds, succeeded * 60 / seconds,
+                    bytesIn / seconds / (1024 * 1024)));
+            for (Job j : getFailedJobs()) {
+                sb.append("\n  ").append(j.label).append(": ")
+                        .append(j.error != null ? j.error.getMessage() : "unknown error");
+            }
+            return sb.toString();
+        }
+    }
+}
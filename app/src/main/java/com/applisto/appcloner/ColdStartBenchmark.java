@@ -0,0 +1,92 @@
+package com.applisto.appcloner;
+
+import android.content.Context;
+import android.util.Log;
+import dalvik.system.DexClassLoader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Measures the part of a clone's cold start that depends on how its code is packaged: opening
+ * every dex file in the APK, verifying it and loading the hook's entry class, as the runtime
+ * does before the first component runs. Each run loads a fresh copy of the APK so no run
+ * profits from code the runtime cached for an earlier one.
+ */
+public class ColdStartBenchmark {
+    private static final String TAG = "ColdStartBenchmark";
+    static final String ENTRY_CLASS = "com.applisto.appcloner.DefaultProvider";
+
+    /** Timings of one APK over several runs. */
+    public static class Result {
+        final String label;
+        final long[] nanos;
+
+        Result(String label, long[] nanos) {
+            this.label = label;
+            this.nanos = nanos;
+            Arrays.sort(this.nanos);
+        }
+
+        public long medianMillis() {
+            return nanos[nanos.length / 2] / 1_000_000;
+        }
+
+        public long minMillis() {
+            return nanos[0] / 1_000_000;
+        }
+
+        @Override
+        public String toString() {
+            return label + ": median " + medianMillis() + " ms, min " + minMillis() + " ms over " + nanos.length + " runs";
+        }
+    }
+
+    /** Loads {@link #ENTRY_CLASS} from {@code apk} {@code runs} times. */
+    public static Result measure(Context ctx, File apk, String label, int runs) throws IOException {
+        File dir = new File(ctx.getCodeCacheDir(), "cold_start_bench");
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        long[] nanos = new long[Math.max(1, runs)];
+        for (int i = 0; i < nanos.length; i++) {
+            File copy = new File(dir, "run_" + i + "_" + System.nanoTime() + ".apk");
+            File optDir = new File(dir, copy.getName() + ".opt");
+            try {
+                Files.copy(apk.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                // Read-only, as newer runtimes refuse to load writable dex files.
+                copy.setReadOnly();
+                optDir.mkdirs();
+                long start = System.nanoTime();
+                // The boot class loader as parent: this app's own loader must not supply the class.
+                ClassLoader loader = new DexClassLoader(copy.getPath(), optDir.getPath(), null,
+                        ClassLoader.getSystemClassLoader().getParent());
+                Class.forName(ENTRY_CLASS, false, loader);
+                nanos[i] = System.nanoTime() - start;
+            } catch (ClassNotFoundException e) {
+                throw new IOException(ENTRY_CLASS + " not found in " + apk.getName(), e);
+            } finally {
+                deleteRecursively(optDir);
+                copy.delete();
+            }
+        }
+        Result result = new Result(label, nanos);
+        Log.i(TAG, result.toString());
+        return result;
+    }
+
+    /** Measures both APKs, one after the other, and describes the difference of their medians. */
+    public static String compare(Context ctx, File baseline, File candidate, int runs) throws IOException {
+        Result a = measure(ctx, baseline, baseline.getName(), runs);
+        Result b = measure(ctx, candidate, candidate.getName(), runs);
+        return a + "\n" + b + "\ndifference: " + (b.medianMillis() - a.medianMillis()) + " ms (median)";
+    }
+
+    private static void deleteRecursively(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) deleteRecursively(c);
+        }
+        f.delete();
+    }
+}
@@ -0,0 +1,180 @@
+package com.applisto.appcloner;
+
+import android.util.Log;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.HiddenApiRestriction;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedClassDef;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.Annotation;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.Field;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.MethodParameter;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.value.EncodedValue;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableField;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.immutable.ImmutableMethodImplementation;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction11x;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction21c;
+import org.jf.dexlib2.immutable.reference.ImmutableFieldReference;
+import org.jf.dexlib2.immutable.value.ImmutableBooleanEncodedValue;
+import org.jf.dexlib2.immutable.value.ImmutableDoubleEncodedValue;
+import org.jf.dexlib2.immutable.value.ImmutableIntEncodedValue;
+import org.jf.dexlib2.immutable.value.ImmutableLongEncodedValue;
+import org.jf.dexlib2.immutable.value.ImmutableStringEncodedValue;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+import org.json.JSONObject;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Compiles the flat values of cloner.json into a class of {@code static final} constants with
+ * a getter each, e.g. {@code android_id} and {@code getAndroidId()}. The constants live in the
+ * dex's static values, so the hook reads its settings without opening or parsing the asset
+ * and without running a static initializer. Nested objects and arrays are not compiled; the
+ * JSON asset stays in the APK for them and for the settings editor.
+ */
+public class ConfigCompiler {
+    private static final String TAG = "ConfigCompiler";
+    static final String CLASS_TYPE = "Lcom/applisto/appcloner/ClonerConfigConstants;";
+    private static final int FIELD_FLAGS =
+            AccessFlags.PUBLIC.getValue() | AccessFlags.STATIC.getValue() | AccessFlags.FINAL.getValue();
+    private static final int METHOD_FLAGS = AccessFlags.PUBLIC.getValue() | AccessFlags.STATIC.getValue();
+
+    /** The constants class for {@code config}. */
+    public static ClassDef compile(JSONObject config) {
+        List<Field> fields = new ArrayList<>();
+        List<Method> methods = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        List<String> keys = new ArrayList<>();
+        for (Iterator<String> it = config.keys(); it.hasNext(); ) keys.add(it.next());
+        // Sorted, so equal configs compile to equal dex files.
+        Collections.sort(keys);
+        for (String key : keys) {
+            Object value = config.opt(key);
+            String type;
+            EncodedValue encoded;
+            Opcode get;
+            Opcode ret;
+            if (value instanceof String) {
+                type = "Ljava/lang/String;";
+                encoded = new ImmutableStringEncodedValue((String) value);
+                get = Opcode.SGET_OBJECT;
+                ret = Opcode.RETURN_OBJECT;
+            } else if (value instanceof Boolean) {
+                type = "Z";
+                encoded = ImmutableBooleanEncodedValue.forBoolean((Boolean) value);
+                get = Opcode.SGET_BOOLEAN;
+                ret = Opcode.RETURN;
+            } else if (value instanceof Integer) {
+                type = "I";
+                encoded = new ImmutableIntEncodedValue((Integer) value);
+                get = Opcode.SGET;
+                ret = Opcode.RETURN;
+            } else if (value instanceof Long) {
+                type = "J";
+                encoded = new ImmutableLongEncodedValue((Long) value);
+                get = Opcode.SGET_WIDE;
+                ret = Opcode.RETURN_WIDE;
+            } else if (value instanceof Number) {
+                type = "D";
+                encoded = new ImmutableDoubleEncodedValue(((Number) value).doubleValue());
+                get = Opcode.SGET_WIDE;
+                ret = Opcode.RETURN_WIDE;
+            } else {
+                continue;
+            }
+            String field = fieldName(key);
+            String getter = getterName(key);
+            if (!names.add(field) || !names.add(getter)) {
+                Log.w(TAG, "Skipping " + key + ": name collides with another key");
+                continue;
+            }
+            fields.add(new ImmutableField(CLASS_TYPE, field, type, FIELD_FLAGS, encoded,
+                    Collections.<Annotation>emptySet(), Collections.<HiddenApiRestriction>emptySet()));
+            List<Instruction> code = Arrays.<Instruction>asList(
+                    new ImmutableInstruction21c(get, 0, new ImmutableFieldReference(CLASS_TYPE, field, type)),
+                    new ImmutableInstruction11x(ret, 0));
+            MethodImplementation impl = new ImmutableMethodImplementation(
+                    ret == Opcode.RETURN_WIDE ? 2 : 1, code, null, null);
+            methods.add(new ImmutableMethod(CLASS_TYPE, getter, Collections.<MethodParameter>emptyList(), type,
+                    METHOD_FLAGS, Collections.<Annotation>emptySet(), Collections.<HiddenApiRestriction>emptySet(),
+                    impl));
+        }
+        return new ImmutableClassDef(CLASS_TYPE, AccessFlags.PUBLIC.getValue() | AccessFlags.FINAL.getValue(),
+                "Ljava/lang/Object;", null, null, null, fields, methods);
+    }
+
+    /** {@code dex} with the constants class for {@code config} added, replacing an older one. */
+    public static byte[] injectInto(byte[] dex, JSONObject config) throws IOException {
+        return rewrite(dex, config, false);
+    }
+
+    /** {@code dex} with its constants class recompiled for {@code config}, or null if it has none. */
+    public static byte[] replaceIn(byte[] dex, JSONObject config) throws IOException {
+        return rewrite(dex, config, true);
+    }
+
+    private static byte[] rewrite(byte[] dex, JSONObject config, boolean replaceOnly) throws IOException {
+        DexBackedDexFile file;
+        try {
+            file = new DexBackedDexFile(Opcodes.getDefault(), dex);
+        } catch (RuntimeException e) {
+            throw new IOException("Unreadable dex file", e);
+        }
+        DexPool pool = new DexPool(file.getOpcodes());
+        boolean found = false;
+        for (DexBackedClassDef c : file.getClasses()) {
+            if (CLASS_TYPE.equals(c.getType())) {
+                found = true;
+            } else {
+                pool.internClass(c);
+            }
+        }
+        if (replaceOnly && !found) return null;
+        pool.internClass(compile(config));
+        MemoryDataStore out = new MemoryDataStore(dex.length + 4096);
+        pool.writeTo(out);
+        return out.getData();
+    }
+
+    /**
+     * Whether {@code dex} may define the constants class. Only searches for its name, as a
+     * cheap filter before {@link #replaceIn} parses the file.
+     */
+    static boolean mentionsConfigClass(byte[] dex) {
+        return DexMerger.mentions(dex, CLASS_TYPE);
+    }
+
+    private static String fieldName(String key) {
+        StringBuilder sb = new StringBuilder(key.length());
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            sb.append(Character.isJavaIdentifierPart(c) ? c : '_');
+        }
+        if (sb.length() == 0 || !Character.isJavaIdentifierStart(sb.charAt(0))) sb.insert(0, '_');
+        return sb.toString();
+    }
+
+    /** "android_id" becomes "getAndroidId", "build_MODEL" "getBuildMODEL". */
+    private static String getterName(String key) {
+        StringBuilder sb = new StringBuilder("get");
+        boolean upper = true;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (!Character.isJavaIdentifierPart(c) || c == '_') {
+                upper = true;
+                continue;
+            }
+            sb.append(upper ? Character.toUpperCase(c) : c);
+            upper = false;
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,121 @@
+package com.applisto.appcloner;
+
+import android.util.Log;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedClassDef;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Folds the hook's classes into one of the app's own dex files with dexlib2, so a clone opens
+ * the same number of dex files as the original. A dex holds at most 64K method, field and type
+ * references; if the merged file would exceed any of them the merge is refused.
+ */
+public class DexMerger {
+    private static final String TAG = "DexMerger";
+    private static final int MAX_REFERENCES = 65536;
+
+    /**
+     * {@code target} with the classes of {@code hook} added, or null if the result would not
+     * fit in one dex or a hook class is already defined in {@code target}.
+     */
+    public static byte[] merge(byte[] target, byte[] hook) throws IOException {
+        DexBackedDexFile targetDex = parse(target);
+        DexBackedDexFile hookDex = parse(hook);
+        Set<String> targetTypes = new HashSet<>();
+        for (DexBackedClassDef c : targetDex.getClasses()) targetTypes.add(c.getType());
+        for (DexBackedClassDef c : hookDex.getClasses()) {
+            if (targetTypes.contains(c.getType())) {
+                Log.d(TAG, "Target already defines " + c.getType() + ", not merging");
+                return null;
+            }
+        }
+        return combine(targetDex, hookDex, Collections.<String>emptySet(), target.length + hook.length);
+    }
+
+    /**
+     * {@code target}, a dex a hook was added or merged into, with the classes {@code hook}
+     * defines replaced by the new ones. Returns {@code hook} itself if {@code target} holds
+     * nothing else, or null if the result would not fit in one dex. Classes only the old hook
+     * had stay behind unused; classes generated per clone, such as a compiled config, are kept.
+     */
+    public static byte[] replace(byte[] target, byte[] hook) throws IOException {
+        DexBackedDexFile targetDex = parse(target);
+        DexBackedDexFile hookDex = parse(hook);
+        Set<String> hookTypes = new HashSet<>();
+        for (DexBackedClassDef c : hookDex.getClasses()) hookTypes.add(c.getType());
+        boolean onlyHook = true;
+        for (DexBackedClassDef c : targetDex.getClasses()) {
+            if (!hookTypes.contains(c.getType())) {
+                onlyHook = false;
+                break;
+            }
+        }
+        if (onlyHook) return hook;
+        return combine(targetDex, hookDex, hookTypes, target.length + hook.length);
+    }
+
+    /** Whether {@code dex} defines class {@code type}, e.g. "Lcom/example/Foo;". */
+    public static boolean defines(byte[] dex, String type) throws IOException {
+        if (!mentions(dex, type)) return false;
+        for (DexBackedClassDef c : parse(dex).getClasses()) {
+            if (type.equals(c.getType())) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Whether the name {@code type} occurs in {@code dex} at all. Only searches the bytes, as
+     * a cheap filter before the file is parsed.
+     */
+    static boolean mentions(byte[] dex, String type) {
+        byte[] needle = type.getBytes(StandardCharsets.UTF_8);
+        outer:
+        for (int i = 0; i <= dex.length - needle.length; i++) {
+            for (int j = 0; j < needle.length; j++) {
+                if (dex[i + j] != needle[j]) continue outer;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static DexBackedDexFile parse(byte[] dex) throws IOException {
+        try {
+            return new DexBackedDexFile(Opcodes.getDefault(), dex);
+        } catch (RuntimeException e) {
+            throw new IOException("Unreadable dex file", e);
+        }
+    }
+
+    /** The classes of {@code targetDex} not in {@code skip} plus all of {@code hookDex}, or null on overflow. */
+    private static byte[] combine(DexBackedDexFile targetDex, DexBackedDexFile hookDex, Set<String> skip,
+                                  int sizeHint) throws IOException {
+        // The counts overestimate the merged file (shared references are counted twice), so a
+        // sum above the limit only means the pool has to be built to find out.
+        boolean surelyFits = targetDex.getMethodSection().size() + hookDex.getMethodSection().size() <= MAX_REFERENCES
+                && targetDex.getFieldSection().size() + hookDex.getFieldSection().size() <= MAX_REFERENCES
+                && targetDex.getTypeSection().size() + hookDex.getTypeSection().size() <= MAX_REFERENCES;
+
+        // Write with the newer dex version of the two; the hook may use opcodes the target does not.
+        int api = Math.max(targetDex.getOpcodes().api, hookDex.getOpcodes().api);
+        DexPool pool = new DexPool(Opcodes.forApi(api));
+        for (DexBackedClassDef c : targetDex.getClasses()) {
+            if (!skip.contains(c.getType())) pool.internClass(c);
+        }
+        for (DexBackedClassDef c : hookDex.getClasses()) pool.internClass(c);
+        if (!surelyFits && pool.hasOverflowed()) {
+            Log.d(TAG, "Merged dex would exceed " + MAX_REFERENCES + " references");
+            return null;
+        }
+        MemoryDataStore out = new MemoryDataStore(sizeHint);
+        pool.writeTo(out);
+        return out.getData();
+    }
+}
@@ -0,0 +1,208 @@
+package com.applisto.appcloner;
+
+import android.util.Log;
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Size-bounded cache of files in a private directory, evicted least-recently-used first.
+ * Keys become file names, so callers pass hex digests. Recency survives restarts through the
+ * files' modification times. Entries are handed out pinned, so a concurrent put cannot evict
+ * them while they are read.
+ */
+public class DiskLruCache {
+    private static final String TAG = "DiskLruCache";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final File dir;
+    private final long maxBytes;
+    // Access-ordered: iteration starts at the least recently used key.
+    private final LinkedHashMap<String, Long> sizes = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Integer> pins = new HashMap<>();
+    private long totalBytes;
+    private long hits;
+    private long misses;
+
+    public DiskLruCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        if (!dir.isDirectory() && !dir.mkdirs()) Log.w(TAG, "Cannot create cache dir " + dir);
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File f : files) {
+            if (f.getName().endsWith(TMP_SUFFIX)) {
+                f.delete();
+                continue;
+            }
+            sizes.put(f.getName(), f.length());
+            totalBytes += f.length();
+        }
+    }
+
+    /** A pinned entry; it is not evicted or deleted until closed. Do not modify or delete its file. */
+    public final class Snapshot implements Closeable {
+        final String key;
+        final File file;
+        private boolean closed;
+
+        Snapshot(String key, File file) {
+            this.key = key;
+            this.file = file;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        @Override
+        public void close() {
+            synchronized (DiskLruCache.this) {
+                if (closed) return;
+                closed = true;
+                unpin(key);
+            }
+        }
+    }
+
+    /** Cached bytes for {@code key}, or null on a miss. */
+    public byte[] get(String key) {
+        try (Snapshot s = pin(key)) {
+            if (s == null) return null;
+            try {
+                return Files.readAllBytes(s.file.toPath());
+            } catch (IOException e) {
+                Log.w(TAG, "Dropping unreadable entry " + key, e);
+                remove(key);
+                return null;
+            }
+        }
+    }
+
+    /** The entry for {@code key}, pinned until the snapshot is closed, or null on a miss. */
+    public synchronized Snapshot pin(String key) {
+        File f = new File(dir, key);
+        if (sizes.get(key) == null || !f.isFile()) {
+            Long stale = sizes.remove(key);
+            if (stale != null) totalBytes -= stale;
+            misses++;
+            return null;
+        }
+        hits++;
+        f.setLastModified(System.currentTimeMillis());
+        pins.merge(key, 1, Integer::sum);
+        return new Snapshot(key, f);
+    }
+
+    public void put(String key, byte[] data) throws IOException {
+        commit(key, write(key, data), false);
+    }
+
+    /** Stores {@code data} under {@code key} and returns the entry pinned, so it cannot be evicted in between. */
+    public Snapshot putAndPin(String key, byte[] data) throws IOException {
+        return new Snapshot(key, commit(key, write(key, data), true));
+    }
+
+    private File write(String key, byte[] data) throws IOException {
+        File tmp = newTempFile(key);
+        try (OutputStream os = new FileOutputStream(tmp)) {
+            os.write(data);
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        return tmp;
+    }
+
+    /**
+     * Moves {@code file} into the cache under {@code key}, falling back to copying across
+     * filesystems, and returns the cached file.
+     */
+    public File putFile(String key, File file) throws IOException {
+        File tmp = newTempFile(key);
+        if (!file.renameTo(tmp)) {
+            try {
+                Files.copy(file.toPath(), tmp.toPath());
+            } catch (IOException e) {
+                tmp.delete();
+                throw e;
+            }
+        }
+        return commit(key, tmp, false);
+    }
+
+    /** Stores everything {@code in} yields under {@code key} and returns the cached file. */
+    public File putStream(String key, InputStream in) throws IOException {
+        File tmp = newTempFile(key);
+        try {
+            Files.copy(in, tmp.toPath());
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        return commit(key, tmp, false);
+    }
+
+    /** Drops {@code key}; if it is pinned, its file goes once the last snapshot is closed. */
+    public synchronized void remove(String key) {
+        Long size = sizes.remove(key);
+        if (size != null) totalBytes -= size;
+        if (!pins.containsKey(key)) new File(dir, key).delete();
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized long size() {
+        return totalBytes;
+    }
+
+    private File newTempFile(String key) {
+        return new File(dir, key + "." + System.nanoTime() + TMP_SUFFIX);
+    }
+
+    private synchronized File commit(String key, File tmp, boolean pin) throws IOException {
+        File f = new File(dir, key);
+        if (!tmp.renameTo(f)) {
+            tmp.delete();
+            throw new IOException("Cannot commit cache entry " + key);
+        }
+        Long old = sizes.put(key, f.length());
+        if (old != null) totalBytes -= old;
+        totalBytes += f.length();
+        if (pin) pins.merge(key, 1, Integer::sum);
+        trim(key);
+        return f;
+    }
+
+    private void unpin(String key) {
+        Integer count = pins.get(key);
+        if (count == null) return;
+        if (count > 1) {
+            pins.put(key, count - 1);
+            return;
+        }
+        pins.remove(key);
+        // Removed while pinned.
+        if (!sizes.containsKey(key)) new File(dir, key).delete();
+    }
+
+    private void trim(String added) {
+        Iterator<Map.Entry<String, Long>> it = sizes.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> e = it.next();
+            // Never evict the entry that was just added, even if it alone exceeds the quota, nor one in use.
+            if (e.getKey().equals(added) || pins.containsKey(e.getKey())) continue;
+            new File(dir, e.getKey()).delete();
+            totalBytes -= e.getValue();
+            it.remove();
+            Log.d(TAG, "Evicted " + e.getKey());
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.applisto.appcloner;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * What is known about an archive entry once its payload has streamed through: method, CRC32,
+ * sizes, where its local header landed in the output and, when digests are enabled, the
+ * SHA-256 of its uncompressed data. Signing and caching work from these instead of re-reading
+ * the payload.
+ */
+public class EntryDescriptor {
+    String name;
+    int method;
+    long crc;
+    long size;
+    long compressedSize;
+    long localHeaderOffset = -1;
+    byte[] sha256;
+
+    public String getName() {
+        return name;
+    }
+
+    public int getMethod() {
+        return method;
+    }
+
+    public long getCrc() {
+        return crc;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getCompressedSize() {
+        return compressedSize;
+    }
+
+    public long getLocalHeaderOffset() {
+        return localHeaderOffset;
+    }
+
+    /** SHA-256 of the uncompressed data, or null when it was not computed for this entry. */
+    public byte[] getSha256() {
+        return sha256;
+    }
+
+    public String getSha256Hex() {
+        return sha256 != null ? toHex(sha256) : null;
+    }
+
+    static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) sb.append(String.format("%02x", b & 0xff));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,204 @@
+package com.applisto.appcloner;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.res.AssetManager;
+import android.util.Log;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+
+/**
+ * The hook payload shipped in assets (hook.dex and lib/&lt;abi&gt;/*.so), extracted once per
+ * install of App Cloner instead of before every clone. Next to the loose files the store
+ * keeps payload.zip, the same files as STORED entries with their CRCs already computed;
+ * {@link ApkProcessor#setHookPayload} splices its entries into clones without reading the
+ * loose files again.
+ */
+public class HookPayload {
+    private static final String TAG = "HookPayload";
+    static final String DEX_ENTRY = "hook.dex";
+    static final String ARCHIVE_NAME = "payload.zip";
+    private static final String DIGEST_NAME = "hook.sha256";
+    private static final String STORE_DIR = "hook_payload";
+
+    private static HookPayload current;
+
+    final File dir;
+    final File hookDex;
+    final File libDir;
+    final File archive;
+    final byte[] hookDigest;
+    final byte[] payloadDigest;
+    private ApkArchive mapped;
+
+    private HookPayload(File dir, byte[] hookDigest, byte[] payloadDigest) {
+        this.dir = dir;
+        this.hookDex = new File(dir, DEX_ENTRY);
+        this.libDir = new File(dir, "lib");
+        this.archive = new File(dir, ARCHIVE_NAME);
+        this.hookDigest = hookDigest;
+        this.payloadDigest = payloadDigest;
+    }
+
+    /**
+     * The payload of the installed version of this app, extracting it on first use. Assets
+     * only change with an update, so the version and install time identify them; stores of
+     * older versions are deleted.
+     */
+    public static synchronized HookPayload get(Context ctx) throws IOException {
+        String version = versionKey(ctx);
+        if (current != null && current.dir.getName().equals(version)) return current;
+        File root = new File(ctx.getFilesDir(), STORE_DIR);
+        File dir = new File(root, version);
+        HookPayload payload = load(dir);
+        if (payload == null) {
+            deleteRecursively(root);
+            payload = extract(ctx.getAssets(), dir);
+        }
+        current = payload;
+        return payload;
+    }
+
+    public File getHookDex() {
+        return hookDex;
+    }
+
+    /** One directory per ABI, the layout {@link ApkProcessor#injectHook} expects. */
+    public File getLibDir() {
+        return libDir;
+    }
+
+    /** SHA-256 of hook.dex. */
+    public byte[] getHookDigest() {
+        return hookDigest.clone();
+    }
+
+    /**
+     * Shortened digest of hook.dex and the native libraries, as recorded in {@link CloneMetadata};
+     * see {@link ApkProcessor#payloadDigest}.
+     */
+    public String getHash() {
+        return CloneMetadata.shortHash(payloadDigest);
+    }
+
+    /** Entry of {@code file} in the payload archive, or null if the file is not part of the payload. */
+    String entryNameOf(File file) {
+        if (file.equals(hookDex)) return DEX_ENTRY;
+        File abiDir = file.getParentFile();
+        if (abiDir != null && libDir.equals(abiDir.getParentFile())) {
+            return "lib/" + abiDir.getName() + "/" + file.getName();
+        }
+        return null;
+    }
+
+    /**
+     * The payload archive, mapped on first use and kept for the life of the process. Reads
+     * work on duplicates of the mapping, so clones built in parallel can share it.
+     */
+    synchronized ApkArchive archive() throws IOException {
+        if (mapped == null) mapped = ApkArchive.map(archive);
+        return mapped;
+    }
+
+    /**
+     * A complete store in {@code dir}, or null. The digest file, holding the digests of hook.dex
+     * and of the whole payload, is written last, so it marks one.
+     */
+    private static HookPayload load(File dir) {
+        File digestFile = new File(dir, DIGEST_NAME);
+        if (!digestFile.isFile()) return null;
+        try {
+            String[] lines = new String(Files.readAllBytes(digestFile.toPath()), StandardCharsets.US_ASCII).trim()
+                    .split("\n");
+            if (lines.length != 2) throw new IllegalArgumentException("Expected 2 digests, found " + lines.length);
+            HookPayload payload = new HookPayload(dir, fromHex(lines[0].trim()), fromHex(lines[1].trim()));
+            return payload.hookDex.isFile() && payload.archive.isFile() ? payload : null;
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(TAG, "Discarding damaged payload store " + dir, e);
+            return null;
+        }
+    }
+
+    private static HookPayload extract(AssetManager assets, File dir) throws IOException {
+        long start = System.nanoTime();
+        File tmp = new File(dir.getPath() + ".tmp");
+        deleteRecursively(tmp);
+        if (!tmp.mkdirs()) throw new IOException("Cannot create " + tmp);
+        MessageDigest md = EntryDescriptor.newSha256();
+        File dex = new File(tmp, DEX_ENTRY);
+        try (InputStream in = new DigestInputStream(assets.open(DEX_ENTRY), md)) {
+            copy(in, dex);
+        }
+        byte[] digest = md.digest();
+        try (ApkArchiveWriter writer = ApkArchiveWriter.create(new File(tmp, ARCHIVE_NAME))) {
+            writer.putFile(DEX_ENTRY, dex, true);
+            String[] abis = assets.list("lib");
+            if (abis != null) {
+                for (String abi : abis) {
+                    String[] libs = assets.list("lib/" + abi);
+                    if (libs == null) continue;
+                    File abiDir = new File(tmp, "lib/" + abi);
+                    if (!abiDir.isDirectory() && !abiDir.mkdirs()) throw new IOException("Cannot create " + abiDir);
+                    for (String lib : libs) {
+                        if (!lib.endsWith(".so")) continue;
+                        File so = new File(abiDir, lib);
+                        try (InputStream in = assets.open("lib/" + abi + "/" + lib)) {
+                            copy(in, so);
+                        }
+                        writer.putFile("lib/" + abi + "/" + lib, so, true);
+                    }
+                }
+            }
+            writer.finish();
+        }
+        byte[] payloadDigest = ApkProcessor.payloadDigest(dex, ApkProcessor.listNativeLibs(new File(tmp, "lib")));
+        Files.write(new File(tmp, DIGEST_NAME).toPath(), (EntryDescriptor.toHex(digest) + "\n"
+                + EntryDescriptor.toHex(payloadDigest)).getBytes(StandardCharsets.US_ASCII));
+        deleteRecursively(dir);
+        if (!tmp.renameTo(dir)) throw new IOException("Cannot move payload store to " + dir);
+        Log.i(TAG, "Extracted hook payload to " + dir + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        return new HookPayload(dir, digest, payloadDigest);
+    }
+
+    private static String versionKey(Context ctx) throws IOException {
+        try {
+            PackageInfo info = ctx.getPackageManager().getPackageInfo(ctx.getPackageName(), 0);
+            return info.versionCode + "_" + info.lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            throw new IOException("Own package not found", e);
+        }
+    }
+
+    private static void copy(InputStream in, File dst) throws IOException {
+        try (OutputStream out = new FileOutputStream(dst)) {
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buf)) != -1) out.write(buf, 0, n);
+        }
+    }
+
+    private static byte[] fromHex(String hex) {
+        if (hex.length() != 64) throw new IllegalArgumentException("Bad digest: " + hex);
+        byte[] out = new byte[hex.length() / 2];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return out;
+    }
+
+    private static void deleteRecursively(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) deleteRecursively(c);
+        }
+        f.delete();
+    }
+}
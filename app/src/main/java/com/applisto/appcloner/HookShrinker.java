@@ -0,0 +1,353 @@
+package com.applisto.appcloner;
+
+import android.util.Log;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedClassDef;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.Annotation;
+import org.jf.dexlib2.iface.AnnotationElement;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.ExceptionHandler;
+import org.jf.dexlib2.iface.Field;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.MethodParameter;
+import org.jf.dexlib2.iface.TryBlock;
+import org.jf.dexlib2.iface.instruction.DualReferenceInstruction;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
+import org.jf.dexlib2.iface.reference.FieldReference;
+import org.jf.dexlib2.iface.reference.MethodProtoReference;
+import org.jf.dexlib2.iface.reference.MethodReference;
+import org.jf.dexlib2.iface.reference.Reference;
+import org.jf.dexlib2.iface.reference.StringReference;
+import org.jf.dexlib2.iface.reference.TypeReference;
+import org.jf.dexlib2.iface.value.AnnotationEncodedValue;
+import org.jf.dexlib2.iface.value.ArrayEncodedValue;
+import org.jf.dexlib2.iface.value.EncodedValue;
+import org.jf.dexlib2.iface.value.EnumEncodedValue;
+import org.jf.dexlib2.iface.value.FieldEncodedValue;
+import org.jf.dexlib2.iface.value.MethodEncodedValue;
+import org.jf.dexlib2.iface.value.MethodTypeEncodedValue;
+import org.jf.dexlib2.iface.value.StringEncodedValue;
+import org.jf.dexlib2.iface.value.TypeEncodedValue;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+import org.json.JSONObject;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Cuts the hook payload down to what one clone's config uses. Classes of features that are
+ * switched off are dropped together with every class only they reach; the rest is found by
+ * walking the references of the entry points and of the enabled features, annotation values
+ * included. Native libraries are kept only if a remaining class names them, as
+ * System.loadLibrary does.
+ */
+public class HookShrinker {
+    private static final String TAG = "HookShrinker";
+    // Feature table hook.dex declares, see Feature.
+    static final String FEATURES_CLASS = "Lcom/applisto/appcloner/HookFeatures;";
+    // Components the manifest declares; they are loaded by the framework, not referenced.
+    private static final String[] ENTRY_POINTS = {
+            "Lcom/applisto/appcloner/DefaultProvider;",
+            "Lcom/applisto/appcloner/DataExportReceiver;",
+    };
+    private static final String[] IDENTITY_KEYS = {
+            "android_id", "wifi_mac", "build_MANUFACTURER", "build_MODEL", "build_PRODUCT", "build_BRAND",
+            "build_DEVICE", "build_HARDWARE", "build_FINGERPRINT", "version_RELEASE",
+    };
+
+    /**
+     * Optional parts of the hook, each switched on by keys of cloner.json. Which classes make up
+     * a feature is declared by hook.dex itself, in {@link #FEATURES_CLASS} built with the hook
+     * sources: one static final String per feature, named like the constant here and holding
+     * comma-separated class descriptor prefixes, e.g.
+     * {@code FAKE_CAMERA = "Lcom/applisto/appcloner/camera/,Lcom/applisto/appcloner/FakeCamera"}.
+     * Nothing of a feature the dex does not declare is dropped; classes matching no feature are
+     * treated as shared and kept when reachable.
+     */
+    public enum Feature {
+        SOCKS_PROXY {
+            @Override
+            boolean isEnabled(JSONObject config) {
+                return !config.optString("socks_proxy_host").trim().isEmpty();
+            }
+        },
+        FAKE_CAMERA {
+            @Override
+            boolean isEnabled(JSONObject config) {
+                return config.optBoolean("fake_camera", true);
+            }
+        },
+        IDENTITY {
+            @Override
+            boolean isEnabled(JSONObject config) {
+                for (String key : IDENTITY_KEYS) {
+                    if (!config.optString(key).trim().isEmpty()) return true;
+                }
+                return false;
+            }
+        };
+
+        abstract boolean isEnabled(JSONObject config);
+    }
+
+    public static class Result {
+        byte[] dex;
+        Set<String> libraries;
+        int classesBefore;
+        int classesAfter;
+        Set<Feature> removedFeatures;
+
+        /** The hook dex to inject; the input itself if nothing was dropped. */
+        public byte[] getDex() {
+            return dex;
+        }
+
+        /** File names of the native libraries to inject. */
+        public Set<String> getLibraries() {
+            return libraries;
+        }
+
+        public int getRemovedClasses() {
+            return classesBefore - classesAfter;
+        }
+
+        /** Features hook.dex declares that are switched off, and whose classes were dropped. */
+        public Set<Feature> getRemovedFeatures() {
+            return removedFeatures;
+        }
+    }
+
+    public static EnumSet<Feature> enabledFeatures(JSONObject config) {
+        EnumSet<Feature> enabled = EnumSet.noneOf(Feature.class);
+        for (Feature f : Feature.values()) {
+            if (f.isEnabled(config)) enabled.add(f);
+        }
+        return enabled;
+    }
+
+    /**
+     * Shrinks {@code hookDex} for {@code config}. {@code libraries} are the file names of the
+     * native libraries shipped with the hook, e.g. "libpine.so".
+     */
+    public static Result shrink(byte[] hookDex, JSONObject config, Collection<String> libraries) throws IOException {
+        DexBackedDexFile dex;
+        try {
+            dex = new DexBackedDexFile(Opcodes.getDefault(), hookDex);
+        } catch (RuntimeException e) {
+            throw new IOException("Unreadable hook dex", e);
+        }
+        Map<String, DexBackedClassDef> classes = new HashMap<>();
+        for (DexBackedClassDef c : dex.getClasses()) classes.put(c.getType(), c);
+        Map<Feature, List<String>> declared = declaredFeatures(classes);
+        EnumSet<Feature> enabled = enabledFeatures(config);
+        Map<Feature, List<String>> removed = new EnumMap<>(declared);
+        removed.keySet().removeAll(enabled);
+
+        Result result = new Result();
+        result.classesBefore = classes.size();
+        result.removedFeatures = EnumSet.noneOf(Feature.class);
+        result.removedFeatures.addAll(removed.keySet());
+        if (removed.isEmpty()) {
+            // Everything declared is in use, or the dex declares no features: keep it whole.
+            result.classesAfter = classes.size();
+            result.libraries = new LinkedHashSet<>(libraries);
+            result.dex = hookDex;
+            Log.d(TAG, "Features " + enabled + " of declared " + declared.keySet() + ": nothing to drop");
+            return result;
+        }
+
+        Set<String> kept = new HashSet<>();
+        Set<String> strings = new HashSet<>();
+        ArrayDeque<String> queue = new ArrayDeque<>();
+        for (String entry : ENTRY_POINTS) queue.add(entry);
+        for (Map.Entry<Feature, List<String>> e : declared.entrySet()) {
+            if (!enabled.contains(e.getKey())) continue;
+            for (String type : classes.keySet()) {
+                if (startsWithAny(type, e.getValue())) queue.add(type);
+            }
+        }
+        while (!queue.isEmpty()) {
+            String type = queue.poll();
+            DexBackedClassDef c = classes.get(type);
+            if (c == null || isDisabled(type, removed) || !kept.add(type)) continue;
+            Set<String> refs = new HashSet<>();
+            Set<String> classStrings = new HashSet<>();
+            collectReferences(c, refs, classStrings);
+            strings.addAll(classStrings);
+            for (String s : classStrings) {
+                // Class.forName and friends: class names in string constants count as references.
+                String asType = s.startsWith("L") && s.endsWith(";") ? s : "L" + s.replace('.', '/') + ";";
+                if (classes.containsKey(asType)) refs.add(asType);
+            }
+            for (String ref : refs) {
+                if (!kept.contains(ref)) queue.add(ref);
+            }
+        }
+
+        result.classesAfter = kept.size();
+        result.libraries = keptLibraries(libraries, strings);
+        if (kept.size() == classes.size()) {
+            result.dex = hookDex;
+        } else {
+            DexPool pool = new DexPool(dex.getOpcodes());
+            for (DexBackedClassDef c : dex.getClasses()) {
+                if (kept.contains(c.getType())) pool.internClass(c);
+            }
+            MemoryDataStore out = new MemoryDataStore(hookDex.length);
+            pool.writeTo(out);
+            result.dex = out.getData();
+        }
+        Log.d(TAG, "Features " + enabled + ": kept " + result.classesAfter + "/" + result.classesBefore
+                + " classes, libraries " + result.libraries);
+        return result;
+    }
+
+    /**
+     * Class prefixes per feature as {@link #FEATURES_CLASS} declares them; empty if the dex has
+     * no such class.
+     */
+    static Map<Feature, List<String>> declaredFeatures(Map<String, ? extends ClassDef> classes) {
+        Map<Feature, List<String>> declared = new EnumMap<>(Feature.class);
+        ClassDef table = classes.get(FEATURES_CLASS);
+        if (table == null) return declared;
+        for (Field f : table.getStaticFields()) {
+            Feature feature;
+            try {
+                feature = Feature.valueOf(f.getName());
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Ignoring unknown hook feature " + f.getName());
+                continue;
+            }
+            EncodedValue value = f.getInitialValue();
+            if (!(value instanceof StringEncodedValue)) continue;
+            List<String> prefixes = new ArrayList<>();
+            for (String p : ((StringEncodedValue) value).getValue().split(",")) {
+                if (!p.trim().isEmpty()) prefixes.add(p.trim());
+            }
+            if (!prefixes.isEmpty()) declared.put(feature, prefixes);
+        }
+        return declared;
+    }
+
+    private static boolean isDisabled(String type, Map<Feature, List<String>> removed) {
+        for (List<String> prefixes : removed.values()) {
+            if (startsWithAny(type, prefixes)) return true;
+        }
+        return false;
+    }
+
+    private static boolean startsWithAny(String type, List<String> prefixes) {
+        for (String prefix : prefixes) {
+            if (type.startsWith(prefix)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Libraries some kept class loads by name. If none is named at all the names are built at
+     * run time, and all of them are kept.
+     */
+    private static Set<String> keptLibraries(Collection<String> libraries, Set<String> strings) {
+        Set<String> kept = new LinkedHashSet<>();
+        for (String file : libraries) {
+            String name = file.startsWith("lib") && file.endsWith(".so") ? file.substring(3, file.length() - 3) : file;
+            for (String s : strings) {
+                if (s.equals(name) || s.endsWith(file)) {
+                    kept.add(file);
+                    break;
+                }
+            }
+        }
+        return kept.isEmpty() ? new LinkedHashSet<>(libraries) : kept;
+    }
+
+    private static void collectReferences(DexBackedClassDef c, Set<String> types, Set<String> strings) {
+        addType(types, c.getSuperclass());
+        for (String i : c.getInterfaces()) addType(types, i);
+        addAnnotations(types, strings, c.getAnnotations());
+        for (Field f : c.getFields()) {
+            addType(types, f.getType());
+            addAnnotations(types, strings, f.getAnnotations());
+            addValue(types, strings, f.getInitialValue());
+        }
+        for (Method m : c.getMethods()) {
+            addType(types, m.getReturnType());
+            for (CharSequence p : m.getParameterTypes()) addType(types, p.toString());
+            addAnnotations(types, strings, m.getAnnotations());
+            for (MethodParameter p : m.getParameters()) addAnnotations(types, strings, p.getAnnotations());
+            MethodImplementation impl = m.getImplementation();
+            if (impl == null) continue;
+            for (Instruction insn : impl.getInstructions()) {
+                if (insn instanceof ReferenceInstruction) {
+                    addReference(types, strings, ((ReferenceInstruction) insn).getReference());
+                }
+                if (insn instanceof DualReferenceInstruction) {
+                    addReference(types, strings, ((DualReferenceInstruction) insn).getReference2());
+                }
+            }
+            for (TryBlock<? extends ExceptionHandler> t : impl.getTryBlocks()) {
+                for (ExceptionHandler h : t.getExceptionHandlers()) addType(types, h.getExceptionType());
+            }
+        }
+    }
+
+    private static void addReference(Set<String> types, Set<String> strings, Reference ref) {
+        if (ref instanceof TypeReference) {
+            addType(types, ((TypeReference) ref).getType());
+        } else if (ref instanceof FieldReference) {
+            addType(types, ((FieldReference) ref).getDefiningClass());
+            addType(types, ((FieldReference) ref).getType());
+        } else if (ref instanceof MethodReference) {
+            MethodReference m = (MethodReference) ref;
+            addType(types, m.getDefiningClass());
+            addType(types, m.getReturnType());
+            for (CharSequence p : m.getParameterTypes()) addType(types, p.toString());
+        } else if (ref instanceof MethodProtoReference) {
+            MethodProtoReference p = (MethodProtoReference) ref;
+            addType(types, p.getReturnType());
+            for (CharSequence t : p.getParameterTypes()) addType(types, t.toString());
+        } else if (ref instanceof StringReference) {
+            strings.add(((StringReference) ref).getString());
+        }
+    }
+
+    private static void addAnnotations(Set<String> types, Set<String> strings, Set<? extends Annotation> annotations) {
+        for (Annotation a : annotations) {
+            addType(types, a.getType());
+            for (AnnotationElement e : a.getElements()) addValue(types, strings, e.getValue());
+        }
+    }
+
+    /** Types and strings of a constant, descending into arrays and nested annotations. */
+    private static void addValue(Set<String> types, Set<String> strings, EncodedValue value) {
+        if (value instanceof StringEncodedValue) {
+            strings.add(((StringEncodedValue) value).getValue());
+        } else if (value instanceof TypeEncodedValue) {
+            addType(types, ((TypeEncodedValue) value).getValue());
+        } else if (value instanceof EnumEncodedValue) {
+            addReference(types, strings, ((EnumEncodedValue) value).getValue());
+        } else if (value instanceof FieldEncodedValue) {
+            addReference(types, strings, ((FieldEncodedValue) value).getValue());
+        } else if (value instanceof MethodEncodedValue) {
+            addReference(types, strings, ((MethodEncodedValue) value).getValue());
+        } else if (value instanceof MethodTypeEncodedValue) {
+            addReference(types, strings, ((MethodTypeEncodedValue) value).getValue());
+        } else if (value instanceof ArrayEncodedValue) {
+            for (EncodedValue v : ((ArrayEncodedValue) value).getValue()) addValue(types, strings, v);
+        } else if (value instanceof AnnotationEncodedValue) {
+            AnnotationEncodedValue a = (AnnotationEncodedValue) value;
+            addType(types, a.getType());
+            for (AnnotationElement e : a.getElements()) addValue(types, strings, e.getValue());
+        }
+    }
+
+    private static void addType(Set<String> types, String type) {
+        if (type == null) return;
+        int dims = 0;
+        while (dims < type.length() && type.charAt(dims) == '[') dims++;
+        if (type.startsWith("L", dims)) types.add(type.substring(dims));
+    }
+}
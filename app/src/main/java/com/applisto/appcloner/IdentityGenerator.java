@@ -0,0 +1,110 @@
+package com.applisto.appcloner;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.SecureRandom;
+import java.util.*;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Per-clone identities for cloner.json. Values handed out by one generator never repeat, and
+ * values already present in configs passed to {@link #reserve} are never handed out.
+ */
+public class IdentityGenerator {
+    static final String KEY_ANDROID_ID = "android_id";
+    static final String KEY_WIFI_MAC = "wifi_mac";
+    private static final String BUILD_PREFIX = "build_";
+
+    private final Random random;
+    private final Set<String> androidIds = new HashSet<>();
+    private final Set<String> macs = new HashSet<>();
+
+    public IdentityGenerator() {
+        this(new SecureRandom());
+    }
+
+    public IdentityGenerator(Random random) {
+        this.random = random;
+    }
+
+    public static String randomAndroidId(Random random) {
+        return String.format(Locale.US, "%016X", random.nextLong());
+    }
+
+    /** Random locally administered unicast MAC. */
+    public static String randomMac(Random random) {
+        byte[] mac = new byte[6];
+        random.nextBytes(mac);
+        mac[0] = (byte) ((mac[0] & (byte) 252) | (byte) 2);
+        StringBuilder sb = new StringBuilder(18);
+        for (int i = 0; i < mac.length; i++) {
+            if (i > 0) sb.append(':');
+            sb.append(String.format("%02x", mac[i] & 0xFF));
+        }
+        return sb.toString();
+    }
+
+    /** Marks the identity values of {@code config} as taken. */
+    public synchronized void reserve(JSONObject config) {
+        String id = config.optString(KEY_ANDROID_ID, "");
+        if (!id.isEmpty()) androidIds.add(id.toUpperCase(Locale.US));
+        String mac = config.optString(KEY_WIFI_MAC, "");
+        if (!mac.isEmpty()) macs.add(mac.toLowerCase(Locale.US));
+    }
+
+    public synchronized String nextAndroidId() {
+        String id;
+        do {
+            id = randomAndroidId(random);
+        } while (!androidIds.add(id));
+        return id;
+    }
+
+    public synchronized String nextMac() {
+        String mac;
+        do {
+            mac = randomMac(random);
+        } while (!macs.add(mac));
+        return mac;
+    }
+
+    /**
+     * Copy of {@code base} with a fresh android_id and wifi_mac. The build_* fields are taken
+     * from {@code buildProfile} where it has them and stay as in {@code base} otherwise.
+     */
+    public JSONObject newVariant(JSONObject base, JSONObject buildProfile) throws JSONException {
+        JSONObject variant = new JSONObject(base.toString());
+        variant.put(KEY_ANDROID_ID, nextAndroidId());
+        variant.put(KEY_WIFI_MAC, nextMac());
+        if (buildProfile != null) {
+            for (Iterator<String> it = buildProfile.keys(); it.hasNext(); ) {
+                String key = it.next();
+                if (key.startsWith(BUILD_PREFIX)) variant.put(key, buildProfile.get(key));
+            }
+        }
+        return variant;
+    }
+
+    /**
+     * Writes {@code count} variants of {@code baseConfig} into {@code dir} and returns the files.
+     * {@code buildProfiles} may be empty; otherwise variants cycle through it.
+     */
+    public List<File> writeVariants(File baseConfig, int count, List<JSONObject> buildProfiles, File dir)
+            throws IOException, JSONException {
+        JSONObject base = new JSONObject(new String(Files.readAllBytes(baseConfig.toPath()), StandardCharsets.UTF_8));
+        reserve(base);
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        List<File> files = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            JSONObject profile = buildProfiles.isEmpty() ? null : buildProfiles.get(i % buildProfiles.size());
+            File f = new File(dir, "variant_" + i + ".json");
+            try (Writer w = new OutputStreamWriter(new FileOutputStream(f), StandardCharsets.UTF_8)) {
+                w.write(newVariant(base, profile).toString(2));
+            }
+            files.add(f);
+        }
+        return files;
+    }
+}
@@ -1,6 +1,7 @@
 package com.applisto.appcloner;
 
 import android.app.Activity;
+import android.app.PendingIntent;
 import android.content.ActivityNotFoundException;
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -8,10 +9,13 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
+import android.content.pm.PackageInstaller;
 import android.content.pm.PackageManager;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.provider.DocumentsContract;
 import android.text.InputFilter;
 import android.text.InputType;
 import android.text.method.DigitsKeyListener;
@@ -42,7 +46,6 @@ import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.content.FileProvider;
-import com.android.apksig.ApkSigner; // Ensure ApkProcessor.java is present and this import is valid
 import androidx.appcompat.widget.Toolbar;
 import com.google.android.material.tabs.TabLayout;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
@@ -51,29 +54,18 @@ import org.json.JSONObject;
 import java.io.*;
 import java.math.BigDecimal;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
-import java.security.KeyStore;
-import java.security.PrivateKey;
 import java.security.SecureRandom;
-import java.security.cert.X509Certificate;
 import java.util.*;
-import java.util.regex.Pattern;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
 
 public class MainActivity extends AppCompatActivity implements ClonedAppMenuBottomSheet.BottomSheetListener {
     private static final String TAG = "MainActivity";
     private static final String INJECTED_PROVIDER_SUFFIX = ".com.applisto.appcloner.DefaultProvider";
-    private static final Pattern SIG_PATH = Pattern.compile(
-            "^META-INF/(.+\\.(RSA|DSA|EC|SF)|MANIFEST\\.MF)$", Pattern.CASE_INSENSITIVE);
-    private static final String ANDROID_MANIFEST = "AndroidManifest.xml";
-    private static final String KEYSTORE_ASSET = "debug.p12";
-    private static final String STORE_PWD      = "android";
-    private static final String KEY_PWD        = "android";
-    private static final String ALIAS          = "key0";
     private static final String IPC_PERMISSION = "com.applisto.appcloner.permission.REPLICA_IPC";
+    private static final String ACTION_INSTALL_STATUS = "com.applisto.appcloner.INSTALL_STATUS";
+    // Loads per build in the dex merge benchmark; the median of these is compared.
+    private static final int DEX_MERGE_BENCHMARK_RUNS = 5;
     private static final Map<String, String> SPECIAL_TOKENS;
     private static final Map<String, List<String>> GROUP_CHILD_ORDER;
 
@@ -113,6 +105,9 @@ public class MainActivity extends AppCompatActivity implements ClonedAppMenuBott
     private AppListAdapter allAppsAdapter, clonedAppsAdapter;
     private SelectedAppInfo selectedAppInfo = null;
     private File clonerJsonFile;
+    private List<AppInfo> batchSelection = new ArrayList<>();
+    private int variantCount;
+    private CloneQueue cloneQueue;
     private SecureRandom random = new SecureRandom();
     private BroadcastReceiver exportResultReceiver = new BroadcastReceiver() {
         @Override
@@ -137,6 +132,28 @@ public class MainActivity extends AppCompatActivity implements ClonedAppMenuBott
             }
         }
     };
+    private BroadcastReceiver installStatusReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            int status = intent.getIntExtra(PackageInstaller.EXTRA_STATUS, PackageInstaller.STATUS_FAILURE);
+            if (status == PackageInstaller.STATUS_PENDING_USER_ACTION) {
+                Intent confirm = intent.getParcelableExtra(Intent.EXTRA_INTENT);
+                if (confirm != null) {
+                    confirm.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+                    startActivity(confirm);
+                }
+                return;
+            }
+            String message = status == PackageInstaller.STATUS_SUCCESS
+                    ? "Clone installed"
+                    : "Install failed: " + intent.getStringExtra(PackageInstaller.EXTRA_STATUS_MESSAGE);
+            runOnUiThread(() -> {
+                statusTxt.setText(message);
+                Toast.makeText(MainActivity.this, message, Toast.LENGTH_LONG).show();
+                if (status == PackageInstaller.STATUS_SUCCESS) loadInstalledApplications();
+            });
+        }
+    };
     private final ActivityResultLauncher<Intent> pickApk =
             registerForActivityResult(new ActivityResultContracts.StartActivityForResult(), res -> {
                 if (res.getResultCode() == Activity.RESULT_OK && res.getData() != null) {
@@ -169,6 +186,19 @@ public class MainActivity extends AppCompatActivity implements ClonedAppMenuBott
                     }
                 }
             });
+    private final ActivityResultLauncher<Intent> pickBatchOutputDir =
+            registerForActivityResult(new ActivityResultContracts.StartActivityForResult(), res -> {
+                if (res.getResultCode() == Activity.RESULT_OK && res.getData() != null && res.getData().getData() != null) {
+                    if (variantCount > 0) {
+                        startVariantProcessing(res.getData().getData());
+                    } else {
+                        startBatchProcessing(res.getData().getData());
+                    }
+                } else {
+                    batchSelection.clear();
+                    variantCount = 0;
+                }
+            });
     private final ActivityResultLauncher<Intent> pickDataFile =
             registerForActivityResult(new ActivityResultContracts.StartActivityForResult(), res -> {
                 if (res.getResultCode() == Activity.RESULT_OK && res.getData() != null) {
@@ -211,11 +241,13 @@ public class MainActivity extends AppCompatActivity implements ClonedAppMenuBott
         clonerJsonFile = new File(getCacheDir(), "cloner.json");
         IntentFilter filter = new IntentFilter("com.applisto.appcloner.EXPORT_COMPLETED");
         registerReceiver(exportResultReceiver, filter);
+        registerReceiver(installStatusReceiver, new IntentFilter(ACTION_INSTALL_STATUS));
     }
     @Override
     protected void onDestroy() {
         super.onDestroy();
         unregisterReceiver(exportResultReceiver);
+        unregisterReceiver(installStatusReceiver);
     }
 
     private void showEditorDialogForSetting(final Setting setting, final JSONObject json, final BaseAdapter adapter) {
@@ -1137,7 +1169,13 @@ public class MainActivity extends AppCompatActivity implements ClonedAppMenuBott
     }
     private void setupClickListeners() {
         selectApkBtn.setOnClickListener(v -> pickInput());
-        processApkBtn.setOnClickListener(v -> pickOutput());
+        processApkBtn.setOnClickListener(v -> {
+            if (selectedAppInfo != null && selectedAppInfo.splitSourceDirs != null && selectedAppInfo.splitSourceDirs.length > 0) {
+                startSplitProcessing();
+            } else {
+                pickOutput();
+            }
+        });
         installedAppsList.setOnItemClickListener((parent, view, position, id) -> {
             AppInfo app = allApps.get(position);
             hideSettingsEditor();
@@ -1161,6 +1199,7 @@ public class MainActivity extends AppCompatActivity implements ClonedAppMenuBott
                 File cachedApkDir = new File(getCacheDir(), "apk_cache");
                 cachedApkDir.mkdirs();
                 File cachedApkFile = new File(cachedApkDir, app.packageName + "_source.apk");
+                startPreflight(app, sourceApkFile, appInfo.splitSourceDirs, cachedApkFile);
                 try (FileInputStream fis = new FileInputStream(sourceApkFile);
                      FileOutputStream fos = new FileOutputStream(cachedApkFile);
                      FileChannel inChannel = fis.getChannel();
@@ -1168,6 +1207,7 @@ public class MainActivity extends AppCompatActivity implements ClonedAppMenuBott
                     inChannel.transferTo(0, inChannel.size(), outChannel);
                     inputApkUri = Uri.fromFile(cachedApkFile);
                     selectedAppInfo = new SelectedAppInfo(app.packageName, app.appName, cachedApkFile);
+                    selectedAppInfo.splitSourceDirs = appInfo.splitSourceDirs;
                     Toast.makeText(MainActivity.this, "Selected: " + app.appName, Toast.LENGTH_SHORT).show();
                 } catch (IOException e) {
                     Log.e(TAG, "Failed to copy APK to cache", e);
@@ -1186,73 +1226,92 @@ public class MainActivity extends AppCompatActivity implements ClonedAppMenuBott
                 clearSelection();
             }
         });
+        installedAppsList.setOnItemLongClickListener((parent, view, position, id) -> {
+            showBatchCloneDialog(allApps.get(position));
+            return true;
+        });
         clonedAppsList.setOnItemClickListener((parent, view, position, id) -> {
             AppInfo app = clonedApps.get(position);
             hideSettingsEditor();
             showSettingsEditorForApp(app, true);
         });
+        clonedAppsList.setOnItemLongClickListener((parent, view, position, id) -> {
+            showUpgradeDialog();
+            return true;
+        });
     }
     private void showSettingsEditorForApp(AppInfo app, boolean isClonedApp) {
         hideSettingsEditor();
-        File clonerJsonToUse = null;
         if (isClonedApp) {
+            loadClonedAppSettings(app);
+            return;
+        }
+        File clonerJsonToUse = clonerJsonFile;
+        if (!clonerJsonToUse.exists()) {
             try {
-                ApplicationInfo appInfo = getPackageManager().getApplicationInfo(app.packageName, 0);
-                String sourceApkPath = appInfo.sourceDir;
-                if (sourceApkPath != null && !sourceApkPath.isEmpty()) {
-                    File sourceApkFile = new File(sourceApkPath);
-                    if (sourceApkFile.exists()) {
-                        tempClonerJsonForEditor = new File(getCacheDir(), app.packageName + "_temp_cloner.json");
-                        boolean jsonExtracted = false;
-                        try (ZipInputStream zis = new ZipInputStream(new FileInputStream(sourceApkFile))) {
-                            ZipEntry entry;
-                            while ((entry = zis.getNextEntry()) != null) {
-                                if ("assets/cloner.json".equals(entry.getName())) {
-                                    try (FileOutputStream fos = new FileOutputStream(tempClonerJsonForEditor)) {
-                                        copyStream(zis, fos);
-                                        jsonExtracted = true;
-                                    }
-                                    break;
-                                }
-                            }
-                        } catch (IOException e) {
-                            Log.e(TAG, "Error extracting cloner.json from cloned APK: " + app.packageName, e);
-                        }
-                        if (jsonExtracted) {
-                            clonerJsonToUse = tempClonerJsonForEditor;
-                            sourceApkFileForEditor = sourceApkFile;
-                        } else {
-                            try {
-                                copyAsset("cloner.json", tempClonerJsonForEditor);
-                                clonerJsonToUse = tempClonerJsonForEditor;
-                                sourceApkFileForEditor = sourceApkFile;
-                            } catch (IOException e) {
-                                Log.e(TAG, "Failed to copy default cloner.json for cloned app: " + app.packageName, e);
-                                Toast.makeText(this, "Error: Could not prepare settings file for " + app.appName, Toast.LENGTH_LONG).show();
-                                tempClonerJsonForEditor.delete();
-                                tempClonerJsonForEditor = null;
-                                return;
-                            }
-                        }
+                copyAsset("cloner.json", clonerJsonToUse);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to copy default cloner.json", e);
+                Toast.makeText(this, "Error: Could not prepare settings file.", Toast.LENGTH_LONG).show();
+                return;
+            }
+        }
+        showSettingsEditor(app, false, clonerJsonToUse);
+    }
+
+    /**
+     * Reads cloner.json of an installed clone on a worker thread and then opens the editor on
+     * it. Only that entry is read, through the APK's central directory.
+     */
+    private void loadClonedAppSettings(AppInfo app) {
+        File sourceApkFile;
+        try {
+            ApplicationInfo appInfo = getPackageManager().getApplicationInfo(app.packageName, 0);
+            String sourceApkPath = appInfo.sourceDir;
+            sourceApkFile = sourceApkPath != null && !sourceApkPath.isEmpty() ? new File(sourceApkPath) : null;
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.e(TAG, "Cloned app not found: " + app.packageName, e);
+            Toast.makeText(this, "Error: Cloned app not found: " + app.appName, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        if (sourceApkFile == null || !sourceApkFile.exists()) {
+            Toast.makeText(this, "Settings file not found.", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        File tempJson = new File(getCacheDir(), app.packageName + "_temp_cloner.json");
+        new Thread(() -> {
+            boolean jsonExtracted = false;
+            try {
+                byte[] json = ApkArchive.readEntry(sourceApkFile, "assets/cloner.json");
+                if (json != null) {
+                    try (FileOutputStream fos = new FileOutputStream(tempJson)) {
+                        fos.write(json);
                     }
+                    jsonExtracted = true;
                 }
-            } catch (PackageManager.NameNotFoundException e) {
-                Log.e(TAG, "Cloned app not found: " + app.packageName, e);
-                Toast.makeText(this, "Error: Cloned app not found: " + app.appName, Toast.LENGTH_SHORT).show();
-                return;
+            } catch (IOException e) {
+                Log.e(TAG, "Error extracting cloner.json from cloned APK: " + app.packageName, e);
             }
-        } else {
-            clonerJsonToUse = clonerJsonFile;
-            if (!clonerJsonToUse.exists()) {
+            if (!jsonExtracted) {
                 try {
-                    copyAsset("cloner.json", clonerJsonToUse);
+                    copyAsset("cloner.json", tempJson);
                 } catch (IOException e) {
-                    Log.e(TAG, "Failed to copy default cloner.json", e);
-                    Toast.makeText(this, "Error: Could not prepare settings file.", Toast.LENGTH_LONG).show();
+                    Log.e(TAG, "Failed to copy default cloner.json for cloned app: " + app.packageName, e);
+                    tempJson.delete();
+                    runOnUiThread(() -> Toast.makeText(MainActivity.this,
+                            "Error: Could not prepare settings file for " + app.appName, Toast.LENGTH_LONG).show());
                     return;
                 }
             }
-        }
+            runOnUiThread(() -> {
+                tempClonerJsonForEditor = tempJson;
+                sourceApkFileForEditor = sourceApkFile;
+                showSettingsEditor(app, true, tempJson);
+            });
+        }).start();
+    }
+
+    private void showSettingsEditor(AppInfo app, boolean isClonedApp, File clonerJsonToUse) {
         if (clonerJsonToUse == null || !clonerJsonToUse.exists()) {
              Toast.makeText(this, "Settings file not found.", Toast.LENGTH_SHORT).show();
              return;
@@ -1351,30 +1410,90 @@ public class MainActivity extends AppCompatActivity implements ClonedAppMenuBott
             PackageManager pm = getPackageManager();
             List<PackageInfo> packages = pm.getInstalledPackages(
                 PackageManager.GET_PROVIDERS | PackageManager.GET_META_DATA);
+            String hookHash = currentHookHash();
             int clonedCount = 0;
+            int outdatedCount = 0;
             for (PackageInfo packageInfo : packages) {
                 if ((packageInfo.applicationInfo.flags & ApplicationInfo.FLAG_SYSTEM) != 0) {
                     continue;
                 }
-                boolean isCloned = hasInjectedProvider(packageInfo);
+                // Clones built before the metadata was added are still recognised by their provider.
+                CloneMetadata metadata = CloneMetadata.from(packageInfo.applicationInfo.metaData);
+                boolean isCloned = metadata != null || hasInjectedProvider(packageInfo);
                 AppInfo appInfo = new AppInfo();
                 appInfo.packageName = packageInfo.packageName;
                 appInfo.appName = packageInfo.applicationInfo.loadLabel(pm).toString();
                 appInfo.icon = packageInfo.applicationInfo.loadIcon(pm);
+                appInfo.metadata = metadata;
+                appInfo.outdated = isCloned && (metadata == null || metadata.isOutdated(hookHash));
                 if (isCloned) {
                     clonedApps.add(appInfo);
                     clonedCount++;
+                    if (appInfo.outdated) outdatedCount++;
                     continue;
                 }
                 allApps.add(appInfo);
             }
             final int finalClonedCount = clonedCount;
+            final int finalOutdatedCount = outdatedCount;
             runOnUiThread(() -> {
                 updateAppLists();
-                statusTxt.setText("Loaded " + allApps.size() + " apps (" + finalClonedCount + " cloned)");
+                statusTxt.setText("Loaded " + allApps.size() + " apps (" + finalClonedCount + " cloned"
+                        + (finalOutdatedCount > 0 ? ", " + finalOutdatedCount + " outdated" : "") + ")");
+            });
+        }).start();
+    }
+    /**
+     * Checks the selected app on a worker: the scan itself is quick, but the first one after an
+     * install or update extracts the hook payload. Cloning stays disabled until the check passes;
+     * a blocked app is deselected again.
+     */
+    private void startPreflight(AppInfo app, File apk, String[] splitSourceDirs, File sourceCopy) {
+        processApkBtn.setEnabled(false);
+        statusTxt.setText("Checking " + app.appName + "...");
+        new Thread(() -> {
+            ApkPreflight.Report preflight = runPreflight(apk, splitSourceDirs, sourceCopy);
+            runOnUiThread(() -> {
+                // Another app may have been selected in the meantime.
+                if (isFinishing() || selectedAppInfo == null || !app.packageName.equals(selectedAppInfo.packageName)) {
+                    return;
+                }
+                if (!preflight.canClone()) {
+                    clearSelection();
+                    new AlertDialog.Builder(MainActivity.this)
+                            .setTitle("Cannot clone " + app.appName)
+                            .setMessage(preflight.describe())
+                            .setPositiveButton(android.R.string.ok, null)
+                            .show();
+                    return;
+                }
+                processApkBtn.setEnabled(true);
+                statusTxt.setText(app.appName + ": " + preflight.summary());
             });
         }).start();
     }
+    private ApkPreflight.Report runPreflight(File apk, String[] splitSourceDirs, File sourceCopy) {
+        List<File> splits = new ArrayList<>();
+        if (splitSourceDirs != null) {
+            for (String dir : splitSourceDirs) splits.add(new File(dir));
+        }
+        HookPayload payload = null;
+        try {
+            payload = HookPayload.get(this);
+        } catch (IOException e) {
+            Log.w(TAG, "Hook payload unavailable, estimating without it", e);
+        }
+        return ApkPreflight.scan(this, apk, splits, payload, sourceCopy);
+    }
+    /** Hash of the hook payload new clones get, or null if it cannot be read. */
+    private String currentHookHash() {
+        try {
+            return HookPayload.get(this).getHash();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not hash hook payload", e);
+            return null;
+        }
+    }
     private boolean hasInjectedProvider(PackageInfo packageInfo) {
         try {
             if (packageInfo.providers != null) {
@@ -1442,20 +1561,13 @@ public class MainActivity extends AppCompatActivity implements ClonedAppMenuBott
             return;
         }
         try {
-            File hookDex    = new File(getCacheDir(), "hook.dex");
-            File libWorkDir = new File(getCacheDir(), "hook_libs");
-            libWorkDir.mkdirs();
-            copyAsset("hook.dex", hookDex);
-            if (!clonerJsonFile.exists()) {
-                copyAsset("cloner.json", clonerJsonFile);
-            }
-            copyAsset("lib/arm64-v8a/libpine.so",     new File(libWorkDir, "libpine.so"));
-            copyAsset("lib/arm64-v8a/libsandhook.so", new File(libWorkDir, "libsandhook.so"));
+            prepareClonerJson();
             new Thread(() -> {
                 try {
+                    HookPayload payload = HookPayload.get(this);
                     // Ensure ApkProcessor.java is present in the correct package location
-                    new ApkProcessor(MainActivity.this).injectHook(
-                            inputApkUri, outputApkUri, hookDex, clonerJsonFile, libWorkDir, bundledDataFileForCloning);
+                    new ApkProcessor(MainActivity.this).setHookPayload(payload).injectHook(inputApkUri, outputApkUri,
+                            payload.getHookDex(), clonerJsonFile, payload.getLibDir(), bundledDataFileForCloning);
                     runOnUiThread(() -> {
                         statusTxt.setText("Done");
                         Toast.makeText(this, "APK patched successfully!", Toast.LENGTH_LONG).show();
@@ -1517,6 +1629,383 @@ public class MainActivity extends AppCompatActivity implements ClonedAppMenuBott
             outputApkUri = null;
         }
     }
+    private void startSplitProcessing() {
+        SelectedAppInfo selected = selectedAppInfo;
+        List<File> splits = new ArrayList<>();
+        for (String dir : selected.splitSourceDirs) splits.add(new File(dir));
+        File outDir = new File(getCacheDir(), "split_out_" + System.currentTimeMillis());
+        File bundledData = bundledDataFileForCloning;
+        statusTxt.setText("Cloning " + selected.appName + " (" + (splits.size() + 1) + " APKs)...");
+        new Thread(() -> {
+            try {
+                prepareClonerJson();
+                HookPayload payload = HookPayload.get(this);
+                List<File> installSet = new ApkProcessor(this).setHookPayload(payload).injectHookSplits(
+                        selected.cachedApkFile, splits, outDir, payload.getHookDex(), clonerJsonFile,
+                        payload.getLibDir(), bundledData);
+                runOnUiThread(this::clearSelection);
+                installApkSet(installSet);
+            } catch (Exception e) {
+                Log.e(TAG, "Split clone failed", e);
+                runOnUiThread(() -> {
+                    statusTxt.setText("Error: " + e.getMessage());
+                    Toast.makeText(this, "Failed: " + e.getMessage(), Toast.LENGTH_LONG).show();
+                    clearSelection();
+                });
+            }
+        }).start();
+    }
+    /**
+     * Installs base and splits together through one PackageInstaller session. Copies the APKs
+     * into the session, so call it from a worker thread; only the status is posted to the UI.
+     */
+    private void installApkSet(List<File> apks) {
+        installApkSet(apks, null);
+    }
+    /**
+     * Like {@link #installApkSet(List)}; with {@code inheritPackage} the APKs update that
+     * installed package and any of its splits not among them stay as they are.
+     */
+    private void installApkSet(List<File> apks, String inheritPackage) {
+        PackageInstaller installer = getPackageManager().getPackageInstaller();
+        PackageInstaller.SessionParams params = new PackageInstaller.SessionParams(inheritPackage != null
+                ? PackageInstaller.SessionParams.MODE_INHERIT_EXISTING : PackageInstaller.SessionParams.MODE_FULL_INSTALL);
+        if (inheritPackage != null) params.setAppPackageName(inheritPackage);
+        try {
+            int sessionId = installer.createSession(params);
+            try (PackageInstaller.Session session = installer.openSession(sessionId)) {
+                for (File apk : apks) {
+                    try (InputStream in = new FileInputStream(apk);
+                         OutputStream out = session.openWrite(apk.getName(), 0, apk.length())) {
+                        copyStream(in, out);
+                        session.fsync(out);
+                    }
+                }
+                int flags = PendingIntent.FLAG_UPDATE_CURRENT;
+                if (Build.VERSION.SDK_INT >= 31) flags |= PendingIntent.FLAG_MUTABLE;
+                Intent status = new Intent(ACTION_INSTALL_STATUS).setPackage(getPackageName());
+                PendingIntent pi = PendingIntent.getBroadcast(this, sessionId, status, flags);
+                session.commit(pi.getIntentSender());
+            }
+            runOnUiThread(() -> statusTxt.setText("Installing " + apks.size() + " APKs..."));
+        } catch (IOException e) {
+            Log.e(TAG, "Install session failed", e);
+            runOnUiThread(() -> {
+                Toast.makeText(this, "Install failed: " + e.getMessage(), Toast.LENGTH_LONG).show();
+                statusTxt.setText("Install Error: " + e.getMessage());
+            });
+        } finally {
+            for (File apk : apks) apk.delete();
+            if (!apks.isEmpty()) apks.get(0).getParentFile().delete();
+        }
+    }
+    /** The hook payload itself comes from {@link HookPayload}, extracted once per app version. */
+    private void prepareClonerJson() throws IOException {
+        if (!clonerJsonFile.exists()) {
+            copyAsset("cloner.json", clonerJsonFile);
+        }
+    }
+    private void showBatchCloneDialog(AppInfo first) {
+        if (cloneQueue != null) {
+            Toast.makeText(this, "A batch is already running", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        String[] names = new String[allApps.size()];
+        boolean[] checked = new boolean[allApps.size()];
+        for (int i = 0; i < allApps.size(); i++) {
+            names[i] = allApps.get(i).appName;
+            checked[i] = allApps.get(i) == first;
+        }
+        new AlertDialog.Builder(this)
+                .setTitle("Batch clone")
+                .setMultiChoiceItems(names, checked, (dialog, which, isChecked) -> checked[which] = isChecked)
+                .setPositiveButton("Choose output folder", (dialog, which) -> {
+                    batchSelection.clear();
+                    for (int i = 0; i < checked.length; i++) {
+                        if (checked[i]) batchSelection.add(allApps.get(i));
+                    }
+                    if (batchSelection.isEmpty()) return;
+                    variantCount = 0;
+                    pickBatchOutputDir.launch(new Intent(Intent.ACTION_OPEN_DOCUMENT_TREE));
+                })
+                .setNeutralButton("Variants of " + first.appName, (dialog, which) -> showVariantCountDialog(first))
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+    private void showVariantCountDialog(AppInfo app) {
+        EditText input = new EditText(this);
+        input.setInputType(InputType.TYPE_CLASS_NUMBER);
+        input.setText("10");
+        new AlertDialog.Builder(this)
+                .setTitle("Number of clones of " + app.appName)
+                .setMessage("Each clone gets its own android_id and wifi_mac.")
+                .setView(input)
+                .setPositiveButton("Choose output folder", (dialog, which) -> {
+                    int count;
+                    try {
+                        count = Integer.parseInt(input.getText().toString().trim());
+                    } catch (NumberFormatException e) {
+                        count = 0;
+                    }
+                    if (count <= 0) return;
+                    batchSelection.clear();
+                    batchSelection.add(app);
+                    variantCount = count;
+                    pickBatchOutputDir.launch(new Intent(Intent.ACTION_OPEN_DOCUMENT_TREE));
+                })
+                .setNeutralButton("Benchmark dex merge", (dialog, which) -> startDexMergeBenchmark(app))
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+    /**
+     * Builds {@code app} with the hook in its own dex and merged into the app's last one, and
+     * shows how long each takes to load; see {@link ApkProcessor#benchmarkDexMerge}.
+     */
+    private void startDexMergeBenchmark(AppInfo app) {
+        statusTxt.setText("Benchmarking dex merge for " + app.appName + "...");
+        new Thread(() -> {
+            try {
+                prepareClonerJson();
+                HookPayload payload = HookPayload.get(this);
+                ApplicationInfo appInfo = getPackageManager().getApplicationInfo(app.packageName, 0);
+                String report = new ApkProcessor(this).setHookPayload(payload).benchmarkDexMerge(
+                        new File(appInfo.sourceDir), payload.getHookDex(), clonerJsonFile, DEX_MERGE_BENCHMARK_RUNS);
+                runOnUiThread(() -> {
+                    statusTxt.setText("Dex merge benchmark for " + app.appName + " done");
+                    new AlertDialog.Builder(MainActivity.this)
+                            .setTitle("Dex merge: " + app.appName)
+                            .setMessage(report)
+                            .setPositiveButton(android.R.string.ok, null)
+                            .show();
+                });
+            } catch (Exception e) {
+                Log.e(TAG, "Dex merge benchmark failed", e);
+                runOnUiThread(() -> {
+                    statusTxt.setText("Benchmark error: " + e.getMessage());
+                    Toast.makeText(this, "Benchmark failed: " + e.getMessage(), Toast.LENGTH_LONG).show();
+                });
+            }
+        }).start();
+    }
+    private void startVariantProcessing(Uri treeUri) {
+        AppInfo app = batchSelection.get(0);
+        int count = variantCount;
+        batchSelection.clear();
+        variantCount = 0;
+        statusTxt.setText("Building " + count + " variants of " + app.appName + "...");
+        new Thread(() -> {
+            try {
+                prepareClonerJson();
+                HookPayload payload = HookPayload.get(this);
+                List<File> configs = new IdentityGenerator(random).writeVariants(clonerJsonFile, count,
+                        Collections.<JSONObject>emptyList(), new File(getCacheDir(), "variant_configs"));
+                Uri dirUri = DocumentsContract.buildDocumentUriUsingTree(treeUri, DocumentsContract.getTreeDocumentId(treeUri));
+                List<Uri> outputs = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    Uri out = DocumentsContract.createDocument(getContentResolver(), dirUri,
+                            "application/vnd.android.package-archive", app.packageName + "_variant" + (i + 1) + ".apk");
+                    if (out == null) throw new IOException("Cannot create output " + (i + 1));
+                    outputs.add(out);
+                }
+                ApplicationInfo appInfo = getPackageManager().getApplicationInfo(app.packageName, 0);
+                new ApkProcessor(this).setHookPayload(payload).buildVariants(Uri.fromFile(new File(appInfo.sourceDir)),
+                        payload.getHookDex(), payload.getLibDir(), null, configs, outputs);
+                runOnUiThread(() -> statusTxt.setText(count + " variants of " + app.appName + " built"));
+            } catch (Exception e) {
+                Log.e(TAG, "Variant build failed", e);
+                runOnUiThread(() -> {
+                    statusTxt.setText("Variant error: " + e.getMessage());
+                    Toast.makeText(this, "Variants failed: " + e.getMessage(), Toast.LENGTH_LONG).show();
+                });
+            }
+        }).start();
+    }
+    private void startBatchProcessing(Uri treeUri) {
+        List<AppInfo> apps = new ArrayList<>(batchSelection);
+        batchSelection.clear();
+        statusTxt.setText("Preparing " + apps.size() + " apps...");
+        new Thread(() -> {
+            File configDir = new File(getCacheDir(), "batch_configs");
+            List<CloneQueue.Job> jobs = new ArrayList<>();
+            // Split jobs write their install set to the cache; it is moved into this folder when done.
+            Map<CloneQueue.Job, Uri> splitFolders = new HashMap<>();
+            HookPayload payload;
+            try {
+                prepareClonerJson();
+                payload = HookPayload.get(this);
+                if (!configDir.isDirectory() && !configDir.mkdirs()) throw new IOException("Cannot create " + configDir);
+                JSONObject base = new JSONObject(new String(Files.readAllBytes(clonerJsonFile.toPath()),
+                        StandardCharsets.UTF_8));
+                IdentityGenerator identities = new IdentityGenerator(random);
+                identities.reserve(base);
+                Uri dirUri = DocumentsContract.buildDocumentUriUsingTree(treeUri, DocumentsContract.getTreeDocumentId(treeUri));
+                for (AppInfo app : apps) {
+                    ApplicationInfo appInfo = getPackageManager().getApplicationInfo(app.packageName, 0);
+                    // Each clone gets its own android_id and wifi_mac.
+                    File config = new File(configDir, app.packageName + ".json");
+                    Files.write(config.toPath(), identities.newVariant(base, null).toString(2)
+                            .getBytes(StandardCharsets.UTF_8));
+                    File apk = new File(appInfo.sourceDir);
+                    if (appInfo.splitSourceDirs != null && appInfo.splitSourceDirs.length > 0) {
+                        List<File> splits = new ArrayList<>();
+                        for (String dir : appInfo.splitSourceDirs) splits.add(new File(dir));
+                        Uri folder = DocumentsContract.createDocument(getContentResolver(), dirUri,
+                                DocumentsContract.Document.MIME_TYPE_DIR, app.packageName + "_clone");
+                        if (folder == null) throw new IOException("Cannot create output for " + app.packageName);
+                        CloneQueue.Job job = CloneQueue.Job.splits(app.appName, apk, splits, config,
+                                new File(getCacheDir(), "batch_" + app.packageName));
+                        splitFolders.put(job, folder);
+                        jobs.add(job);
+                        continue;
+                    }
+                    Uri out = DocumentsContract.createDocument(getContentResolver(), dirUri,
+                            "application/vnd.android.package-archive", app.packageName + "_clone.apk");
+                    if (out == null) throw new IOException("Cannot create output for " + app.packageName);
+                    jobs.add(new CloneQueue.Job(app.appName, Uri.fromFile(apk), out, config, null));
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Batch setup failed", e);
+                runOnUiThread(() -> statusTxt.setText("Batch error: " + e.getMessage()));
+                return;
+            }
+            runOnUiThread(() -> runBatch(payload, jobs, splitFolders));
+        }).start();
+    }
+    private void runBatch(HookPayload payload, List<CloneQueue.Job> jobs, Map<CloneQueue.Job, Uri> splitFolders) {
+        if (cloneQueue != null) {
+            Toast.makeText(this, "A batch is already running", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        int concurrency = CloneQueue.defaultConcurrency(this);
+        cloneQueue = new CloneQueue(this, payload, concurrency);
+        cloneQueue.setListener(new CloneQueue.Listener() {
+            @Override
+            public void onJobChanged(CloneQueue.Job job) {
+                runOnUiThread(() -> statusTxt.setText(job.getLabel() + ": " + job.getState()
+                        + (job.getState() == CloneQueue.State.RUNNING ? " " + job.getPercent() + "%" : "")));
+                Uri folder = splitFolders.get(job);
+                if (folder != null && job.getState() == CloneQueue.State.DONE) moveToFolder(job.getOutputs(), folder);
+            }
+            @Override
+            public void onFinished(CloneQueue.Summary summary) {
+                runOnUiThread(() -> {
+                    cloneQueue.close();
+                    cloneQueue = null;
+                    statusTxt.setText("Batch done: " + summary.getSucceeded() + "/" + summary.getTotal());
+                    new AlertDialog.Builder(MainActivity.this)
+                            .setTitle("Batch clone finished")
+                            .setMessage(summary.toString())
+                            .setPositiveButton(android.R.string.ok, null)
+                            .show();
+                });
+            }
+        });
+        statusTxt.setText("Cloning " + jobs.size() + " apps, " + concurrency + " at a time...");
+        cloneQueue.start(jobs);
+    }
+    /** Copies {@code apks} into the document folder {@code folder} and deletes them. */
+    private void moveToFolder(List<File> apks, Uri folder) {
+        try {
+            for (File apk : apks) {
+                Uri out = DocumentsContract.createDocument(getContentResolver(), folder,
+                        "application/vnd.android.package-archive", apk.getName());
+                if (out == null) throw new IOException("Cannot create " + apk.getName());
+                try (InputStream in = new FileInputStream(apk);
+                     OutputStream os = getContentResolver().openOutputStream(out)) {
+                    if (os == null) throw new IOException("Cannot open " + apk.getName());
+                    copyStream(in, os);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot save split APKs", e);
+            runOnUiThread(() -> Toast.makeText(this, "Save failed: " + e.getMessage(), Toast.LENGTH_LONG).show());
+        } finally {
+            for (File apk : apks) apk.delete();
+            if (!apks.isEmpty()) apks.get(0).getParentFile().delete();
+        }
+    }
+    private void showUpgradeDialog() {
+        List<AppInfo> outdated = new ArrayList<>();
+        for (AppInfo app : clonedApps) {
+            if (app.outdated) outdated.add(app);
+        }
+        if (outdated.isEmpty()) {
+            Toast.makeText(this, "All clones have the current hook", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        new AlertDialog.Builder(this)
+                .setTitle("Upgrade clones")
+                .setMessage("Replace the hook in " + outdated.size() + " outdated clones? Each is rewritten from its "
+                        + "installed APK, keeping its settings, and then reinstalled.")
+                .setPositiveButton("Upgrade", (dialog, which) -> startFleetUpgrade(outdated))
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+    /** Upgrades the hook of installed clones in parallel and installs each one once it is rewritten. */
+    private void startFleetUpgrade(List<AppInfo> apps) {
+        if (cloneQueue != null) {
+            Toast.makeText(this, "A batch is already running", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        statusTxt.setText("Preparing upgrade of " + apps.size() + " clones...");
+        new Thread(() -> {
+            Map<CloneQueue.Job, String> packages = new HashMap<>();
+            List<CloneQueue.Job> jobs = new ArrayList<>();
+            HookPayload payload;
+            try {
+                payload = HookPayload.get(this);
+                for (AppInfo app : apps) {
+                    ApplicationInfo appInfo = getPackageManager().getApplicationInfo(app.packageName, 0);
+                    List<File> splits = new ArrayList<>();
+                    if (appInfo.splitSourceDirs != null) {
+                        for (String dir : appInfo.splitSourceDirs) splits.add(new File(dir));
+                    }
+                    CloneQueue.Job job = CloneQueue.Job.upgrade(app.appName, new File(appInfo.sourceDir), splits,
+                            new File(getCacheDir(), "upgrade_" + app.packageName));
+                    packages.put(job, app.packageName);
+                    jobs.add(job);
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Upgrade setup failed", e);
+                runOnUiThread(() -> statusTxt.setText("Upgrade error: " + e.getMessage()));
+                return;
+            }
+            runOnUiThread(() -> runFleetUpgrade(payload, jobs, packages));
+        }).start();
+    }
+    private void runFleetUpgrade(HookPayload payload, List<CloneQueue.Job> jobs, Map<CloneQueue.Job, String> packages) {
+        if (cloneQueue != null) {
+            Toast.makeText(this, "A batch is already running", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        int concurrency = CloneQueue.defaultConcurrency(this);
+        cloneQueue = new CloneQueue(this, payload, concurrency);
+        cloneQueue.setListener(new CloneQueue.Listener() {
+            @Override
+            public void onJobChanged(CloneQueue.Job job) {
+                runOnUiThread(() -> statusTxt.setText("Upgrading " + job.getLabel() + ": " + job.getState()));
+                // Still on the queue's worker: install this clone now rather than after the whole queue.
+                if (job.getState() == CloneQueue.State.DONE) installApkSet(job.getOutputs(), packages.get(job));
+            }
+            @Override
+            public void onFinished(CloneQueue.Summary summary) {
+                runOnUiThread(() -> {
+                    cloneQueue.close();
+                    cloneQueue = null;
+                    statusTxt.setText("Upgraded " + summary.getSucceeded() + "/" + summary.getTotal() + " clones");
+                    if (summary.getFailed() > 0) {
+                        new AlertDialog.Builder(MainActivity.this)
+                                .setTitle("Some upgrades failed")
+                                .setMessage(summary.toString())
+                                .setPositiveButton(android.R.string.ok, null)
+                                .show();
+                    }
+                });
+            }
+        });
+        statusTxt.setText("Upgrading " + jobs.size() + " clones, " + concurrency + " at a time...");
+        cloneQueue.start(jobs);
+    }
     private boolean isValidApk(Uri apkUri) {
         try {
             String mimeType = getContentResolver().getType(apkUri);
@@ -1550,21 +2039,11 @@ public class MainActivity extends AppCompatActivity implements ClonedAppMenuBott
         return sb.toString();
     }
     private String randomAndroidId() {
-        return String.format(Locale.US, "%016X", random.nextLong());
+        return IdentityGenerator.randomAndroidId(random);
     }
 
-    // FIXED: Correctly initialize the byte array with size 6
     private String randomMac() {
-        byte[] macAddress = new byte[6]; // MAC addresses are 6 bytes
-        random.nextBytes(macAddress);
-        // Set the locally administered bit and unicast bit
-        macAddress[0] = (byte) ((macAddress[0] & (byte) 252) | (byte) 2);
-        StringBuilder sb = new StringBuilder(18);
-        for (int i = 0; i < macAddress.length; i++) {
-            if (i > 0) sb.append(':');
-            sb.append(String.format("%02x", macAddress[i] & 0xFF));
-        }
-        return sb.toString();
+        return IdentityGenerator.randomMac(random);
     }
 
     private String randomLatitude() {
@@ -1578,59 +2057,14 @@ public class MainActivity extends AppCompatActivity implements ClonedAppMenuBott
     private void injectUpdatedJsonAndInstall(File updatedClonerJson, File sourceApkFile, AppInfo clonedApp) {
         statusTxt.setText("Updating & Installing...");
         new Thread(() -> {
-            File tempRoot = new File(getCacheDir(), "update_" + System.currentTimeMillis());
+            File signedApk = new File(getCacheDir(), "signed_updated_" + System.nanoTime() + ".apk");
             try {
-                if (!tempRoot.mkdirs()) throw new IOException("Failed to create temp directory: " + tempRoot);
-                String basePath = tempRoot.getCanonicalPath() + File.separator;
-                boolean manifestFound = false;
-                try (ZipInputStream zis = new ZipInputStream(new FileInputStream(sourceApkFile))) {
-                    ZipEntry ze;
-                    while ((ze = zis.getNextEntry()) != null) {
-                        String name = ze.getName();
-                        if (name == null || name.isEmpty()) continue;
-                        if (SIG_PATH.matcher(name).matches()) continue;
-                        if ("assets/cloner.json".equals(name)) continue;
-                        if (ANDROID_MANIFEST.equals(name)) {
-                            manifestFound = true;
-                        }
-                        File outFile = safeResolve(tempRoot, basePath, name);
-                        if (ze.isDirectory()) {
-                            if (!outFile.exists() && !outFile.mkdirs()) {
-                                throw new IOException("Failed to mkdirs: " + outFile);
-                            }
-                            continue;
-                        }
-                        File parent = outFile.getParentFile();
-                        if (parent != null && !parent.exists() && !parent.mkdirs()) {
-                            throw new IOException("Failed to create parent: " + parent);
-                        }
-                        try (FileOutputStream fos = new FileOutputStream(outFile)) {
-                            copyStream(zis, fos);
-                        }
-                    }
-                }
-                if (!manifestFound) {
-                    throw new IOException("AndroidManifest.xml not found in source APK");
-                }
-                File assetsDir = new File(tempRoot, "assets");
-                if (!assetsDir.exists() && !assetsDir.mkdirs()) {
-                    throw new IOException("Failed to create assets dir");
-                }
-                Files.copy(updatedClonerJson.toPath(), new File(assetsDir, "cloner.json").toPath(), StandardCopyOption.REPLACE_EXISTING);
-                File unsignedApk = new File(getCacheDir(), "unsigned_updated_" + System.nanoTime() + ".apk");
-                File manifestFile = new File(tempRoot, ANDROID_MANIFEST);
-                byte[] manifestBytes = Files.readAllBytes(manifestFile.toPath());
-                zipDir(tempRoot, unsignedApk, manifestBytes);
-                File signedApk = new File(getCacheDir(), "signed_updated_" + System.nanoTime() + ".apk");
-                try {
-                    signUpdatedApk(unsignedApk, signedApk);
-                } finally {
-                    unsignedApk.delete();
-                    deleteRec(tempRoot);
-                }
+                // Only cloner.json changes; everything else is copied over as-is.
+                new ApkProcessor(this).updateClonerJson(sourceApkFile, updatedClonerJson, signedApk);
                 runOnUiThread(() -> installApk(signedApk, clonedApp));
             } catch (Exception e) {
                 Log.e(TAG, "Error updating/cloning app: " + clonedApp.packageName, e);
+                signedApk.delete();
                 runOnUiThread(() -> {
                     statusTxt.setText("Update Error: " + e.getMessage());
                     Toast.makeText(MainActivity.this, "Failed to update " + clonedApp.appName + ": " + e.getMessage(), Toast.LENGTH_LONG).show();
@@ -1639,33 +2073,9 @@ public class MainActivity extends AppCompatActivity implements ClonedAppMenuBott
                     }
                     hideSettingsEditor();
                 });
-                deleteRec(tempRoot);
             }
         }).start();
     }
-    private void signUpdatedApk(File unsignedApk, File signedApk) throws Exception {
-        ApkSigner.SignerConfig signer = loadSignerConfigForUpdate();
-        ApkSigner apkSigner = new ApkSigner.Builder(Collections.singletonList(signer))
-                .setInputApk(unsignedApk)
-                .setOutputApk(signedApk)
-                .setV1SigningEnabled(true)
-                .setV2SigningEnabled(true)
-                .setV3SigningEnabled(true)
-                .build();
-        apkSigner.sign();
-        try {
-            Class<?> builderClass = Class.forName("com.android.apksig.ApkVerifier$Builder");
-            Object builderInstance = builderClass.getConstructor(File.class).newInstance(signedApk);
-            Object apkVerifierInstance = builderClass.getMethod("build").invoke(builderInstance);
-            Object vRes = apkVerifierInstance.getClass().getMethod("verify").invoke(apkVerifierInstance);
-            Boolean isVerified = (Boolean) vRes.getClass().getMethod("isVerified").invoke(vRes);
-            if (isVerified != null && !isVerified) {
-                Log.w(TAG, "Updated APK verification result: NOT VERIFIED (continuing)");
-            }
-        } catch (Throwable t) {
-            Log.w(TAG, "Verification skipped due to error", t);
-        }
-    }
     private void installApk(File apkToInstall, AppInfo clonedApp) {
         Log.d(TAG, "Preparing to install updated APK: " + apkToInstall.getName());
         try {
@@ -1690,63 +2100,11 @@ public class MainActivity extends AppCompatActivity implements ClonedAppMenuBott
             apkToInstall.delete();
         }
     }
-    private ApkSigner.SignerConfig loadSignerConfigForUpdate() throws Exception {
-        try (InputStream ksStream = getAssets().open(KEYSTORE_ASSET)) {
-            KeyStore ks = KeyStore.getInstance("PKCS12");
-            ks.load(ksStream, STORE_PWD.toCharArray());
-            PrivateKey key = (PrivateKey) ks.getKey(ALIAS, KEY_PWD.toCharArray());
-            if (key == null) throw new IllegalStateException("Private key is null for alias: " + ALIAS);
-            X509Certificate cert = (X509Certificate) ks.getCertificate(ALIAS);
-            if (cert == null) throw new IllegalStateException("Certificate is null for alias: " + ALIAS);
-            return new ApkSigner.SignerConfig.Builder(ALIAS, key, Collections.singletonList(cert)).build();
-        }
-    }
     private static void copyStream(InputStream in, OutputStream out) throws IOException {
         byte[] buf = new byte[8192];
         int n;
         while ((n = in.read(buf)) != -1) out.write(buf, 0, n);
     }
-    private static void deleteRec(File f) {
-        if (f.isDirectory()) {
-            File[] kids = f.listFiles();
-            if (kids != null) for (File k : kids) deleteRec(k);
-        }
-        f.delete();
-    }
-    private void zipDir(File root, File outFile, byte[] manifestBytes) throws IOException {
-        try (OutputStream os = new FileOutputStream(outFile);
-             ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(os))) {
-            writeZip(root, zos, manifestBytes);
-        }
-    }
-    private void writeZip(File root, ZipOutputStream zos, byte[] manifestBytes) throws IOException {
-        zos.putNextEntry(new ZipEntry(ANDROID_MANIFEST));
-        zos.write(manifestBytes);
-        zos.closeEntry();
-        addRec(root, root.getAbsolutePath(), zos);
-    }
-    private void addRec(File node, String base, ZipOutputStream zos) throws IOException {
-        if (node.isDirectory()) {
-            File[] kids = node.listFiles();
-            if (kids != null) for (File k : kids) addRec(k, base, zos);
-            return;
-        }
-        String rel = node.getAbsolutePath().substring(base.length() + 1).replace(File.separatorChar, '/');
-        if (ANDROID_MANIFEST.equals(rel)) return;
-        zos.putNextEntry(new ZipEntry(rel));
-        try (FileInputStream fis = new FileInputStream(node)) {
-            copyStream(fis, zos);
-        }
-        zos.closeEntry();
-    }
-    private static File safeResolve(File root, String basePath, String entryName) throws IOException {
-        File out = new File(root, entryName);
-        String outPath = out.getCanonicalPath();
-        if (!outPath.startsWith(basePath)) {
-            throw new IOException("Blocked zip path traversal: " + entryName);
-        }
-        return out;
-    }
     private void triggerExportData(String targetPackageName) {
         Log.d(TAG, "Triggering data export for: " + targetPackageName);
         statusTxt.setText("Requesting data export for " + targetPackageName + "...");
@@ -1798,6 +2156,7 @@ public class MainActivity extends AppCompatActivity implements ClonedAppMenuBott
         String packageName;
         String appName;
         File cachedApkFile;
+        String[] splitSourceDirs;
         SelectedAppInfo(String packageName, String appName, File cachedApkFile) {
             this.packageName = packageName;
             this.appName = appName;
@@ -1808,6 +2167,8 @@ public class MainActivity extends AppCompatActivity implements ClonedAppMenuBott
         String appName;
         String packageName;
         Drawable icon;
+        CloneMetadata metadata;
+        boolean outdated;
     }
 
     private class MenuAdapter extends ArrayAdapter<MenuItem> {
@@ -1863,7 +2224,12 @@ public class MainActivity extends AppCompatActivity implements ClonedAppMenuBott
                 ImageView appIcon = convertView.findViewById(R.id.appIcon);
                 ImageButton menuButton = convertView.findViewById(R.id.menuButton);
                 appNameText.setText(app.appName != null ? app.appName : "Unknown");
-                packageNameText.setText(app.packageName != null ? app.packageName : "Unknown");
+                String packageLine = app.packageName != null ? app.packageName : "Unknown";
+                if (isClonedAppsAdapter) {
+                    if (app.metadata != null) packageLine += "\n" + app.metadata.describe();
+                    if (app.outdated) packageLine += " (outdated)";
+                }
+                packageNameText.setText(packageLine);
                 appIcon.setImageDrawable(app.icon);
                 if (isClonedAppsAdapter) {
                     menuButton.setVisibility(View.VISIBLE);
@@ -0,0 +1,273 @@
+package com.applisto.appcloner;
+
+import com.android.apksig.util.DataSink;
+import com.android.apksig.util.DataSource;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Growable in-memory file made of fixed-size chunks from a process-wide pool. Offers the
+ * positional reads and transfers {@link ApkArchive} and {@link ApkArchiveWriter} use on
+ * FileChannels, and exposes its content as an apksig {@link DataSource} for signing.
+ */
+public class MemoryChannel implements SeekableByteChannel {
+    static final int CHUNK_SIZE = 1024 * 1024;
+    // Chunks kept for reuse after a channel is closed; the rest is left to the GC.
+    private static final int MAX_POOLED_CHUNKS = 16;
+    private static final ArrayDeque<ByteBuffer> pool = new ArrayDeque<>();
+
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private long size;
+    private long position;
+    private boolean open = true;
+
+    private static ByteBuffer obtainChunk() {
+        synchronized (pool) {
+            ByteBuffer b = pool.poll();
+            if (b != null) {
+                b.clear();
+                return b;
+            }
+        }
+        return ByteBuffer.allocate(CHUNK_SIZE);
+    }
+
+    private static void recycleChunk(ByteBuffer b) {
+        synchronized (pool) {
+            if (pool.size() < MAX_POOLED_CHUNKS) pool.add(b);
+        }
+    }
+
+    /** Reads all of {@code in} into a new channel. */
+    public static MemoryChannel readFully(InputStream in) throws IOException {
+        MemoryChannel channel = new MemoryChannel();
+        byte[] buf = new byte[64 * 1024];
+        int n;
+        while ((n = in.read(buf)) != -1) channel.write(ByteBuffer.wrap(buf, 0, n));
+        channel.position = 0;
+        return channel;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        int n = read(dst, position);
+        if (n > 0) position += n;
+        return n;
+    }
+
+    /** Reads from {@code pos} without moving the channel's position, like FileChannel. */
+    public synchronized int read(ByteBuffer dst, long pos) throws IOException {
+        ensureOpen();
+        if (pos >= size) return -1;
+        int n = (int) Math.min(dst.remaining(), size - pos);
+        copy(pos, n, dst);
+        return n;
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+        ensureOpen();
+        if (position > size) {
+            // Like a file, the gap reads as zeros; pooled chunks may still hold old data.
+            long gapEnd = position;
+            position = size;
+            ByteBuffer zeros = ByteBuffer.allocate((int) Math.min(CHUNK_SIZE, gapEnd - size));
+            while (position < gapEnd) {
+                zeros.clear().limit((int) Math.min(zeros.capacity(), gapEnd - position));
+                write(zeros);
+            }
+        }
+        int n = src.remaining();
+        while (src.hasRemaining()) {
+            int index = (int) (position / CHUNK_SIZE);
+            int offset = (int) (position % CHUNK_SIZE);
+            while (chunks.size() <= index) chunks.add(obtainChunk());
+            ByteBuffer chunk = chunks.get(index).duplicate();
+            chunk.clear().position(offset);
+            int len = Math.min(chunk.remaining(), src.remaining());
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + len);
+            chunk.put(part);
+            src.position(src.position() + len);
+            position += len;
+        }
+        if (position > size) size = position;
+        return n;
+    }
+
+    /** Writes {@code count} bytes from {@code pos} to {@code target}, like FileChannel. */
+    public long transferTo(long pos, long count, WritableByteChannel target) throws IOException {
+        long end = Math.min(size(), pos + count);
+        long done = 0;
+        while (pos + done < end) {
+            ByteBuffer part;
+            synchronized (this) {
+                ensureOpen();
+                part = chunkView(pos + done, (int) Math.min(CHUNK_SIZE - (pos + done) % CHUNK_SIZE, end - pos - done));
+            }
+            done += part.remaining();
+            while (part.hasRemaining()) target.write(part);
+        }
+        return done;
+    }
+
+    /** Writes the whole content to {@code out}. */
+    public void writeTo(OutputStream out) throws IOException {
+        transferTo(0, size(), Channels.newChannel(out));
+    }
+
+    /** Stream over the whole content. */
+    public InputStream newInputStream() {
+        return new InputStream() {
+            private long pos;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = MemoryChannel.this.read(ByteBuffer.wrap(b, off, len), pos);
+                if (n > 0) pos += n;
+                return n;
+            }
+        };
+    }
+
+    /** The bytes in {@code [offset, offset + length)} for apksig; valid while the channel is open. */
+    public DataSource asDataSource(long offset, long length) {
+        return new ChunkDataSource(offset, length);
+    }
+
+    @Override
+    public synchronized long position() {
+        return position;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel position(long newPosition) {
+        if (newPosition < 0) throw new IllegalArgumentException("Negative position");
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public synchronized long size() {
+        return size;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel truncate(long newSize) {
+        if (newSize < size) {
+            size = newSize;
+            int keep = (int) ((newSize + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            while (chunks.size() > keep) recycleChunk(chunks.remove(chunks.size() - 1));
+        }
+        if (position > newSize) position = newSize;
+        return this;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!open) return;
+        open = false;
+        for (ByteBuffer b : chunks) recycleChunk(b);
+        chunks.clear();
+        size = position = 0;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (!open) throw new ClosedChannelException();
+    }
+
+    /** Read-only view of up to one chunk's worth of bytes starting at {@code pos}. */
+    private ByteBuffer chunkView(long pos, int len) {
+        ByteBuffer b = chunks.get((int) (pos / CHUNK_SIZE)).duplicate();
+        int offset = (int) (pos % CHUNK_SIZE);
+        b.limit(offset + len).position(offset);
+        return b.slice().asReadOnlyBuffer();
+    }
+
+    private void copy(long pos, int len, ByteBuffer dst) {
+        while (len > 0) {
+            int n = (int) Math.min(len, CHUNK_SIZE - pos % CHUNK_SIZE);
+            dst.put(chunkView(pos, n));
+            pos += n;
+            len -= n;
+        }
+    }
+
+    private class ChunkDataSource implements DataSource {
+        private final long offset;
+        private final long length;
+
+        ChunkDataSource(long offset, long length) {
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public long size() {
+            return length;
+        }
+
+        @Override
+        public void feed(long off, long len, DataSink sink) throws IOException {
+            checkRange(off, len);
+            long pos = offset + off;
+            long end = pos + len;
+            while (pos < end) {
+                ByteBuffer part;
+                synchronized (MemoryChannel.this) {
+                    ensureOpen();
+                    part = chunkView(pos, (int) Math.min(CHUNK_SIZE - pos % CHUNK_SIZE, end - pos));
+                }
+                pos += part.remaining();
+                sink.consume(part);
+            }
+        }
+
+        @Override
+        public ByteBuffer getByteBuffer(long off, int len) throws IOException {
+            ByteBuffer b = ByteBuffer.allocate(len);
+            copyTo(off, len, b);
+            b.flip();
+            return b;
+        }
+
+        @Override
+        public void copyTo(long off, int len, ByteBuffer dest) throws IOException {
+            checkRange(off, len);
+            synchronized (MemoryChannel.this) {
+                ensureOpen();
+                copy(offset + off, len, dest);
+            }
+        }
+
+        @Override
+        public DataSource slice(long off, long len) {
+            checkRange(off, len);
+            return new ChunkDataSource(offset + off, len);
+        }
+
+        private void checkRange(long off, long len) {
+            if (off < 0 || len < 0 || off + len > length) {
+                throw new IndexOutOfBoundsException("offset " + off + ", size " + len + ", source size " + length);
+            }
+        }
+    }
+}
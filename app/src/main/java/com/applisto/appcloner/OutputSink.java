@@ -0,0 +1,166 @@
+package com.applisto.appcloner;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import com.android.apksig.util.DataSources;
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+
+/**
+ * Destination of a build. Document providers normally hand out a seekable descriptor; the
+ * archive is then assembled and signed right in the destination. For anything else (pipes,
+ * remote providers) it is assembled in memory when allowed, else in a spool file in the cache,
+ * and {@link #commit} copies it over once.
+ */
+class OutputSink implements Closeable {
+    private static final String TAG = "OutputSink";
+
+    private final Context ctx;
+    private final Uri uri;
+    private ParcelFileDescriptor pfd;
+    private File spool;
+    private MemoryChannel memory;
+    private boolean writerOpened;
+    private boolean committed;
+
+    static OutputSink open(Context ctx, Uri uri, boolean allowMemory) throws IOException {
+        OutputSink sink = new OutputSink(ctx, uri);
+        try {
+            sink.pfd = ctx.getContentResolver().openFileDescriptor(uri, "rw");
+        } catch (FileNotFoundException | SecurityException | UnsupportedOperationException e) {
+            Log.d(TAG, "No read-write descriptor for " + uri + ", spooling", e);
+        }
+        if (sink.pfd != null && !isSeekable(sink.pfd)) {
+            sink.pfd.close();
+            sink.pfd = null;
+        }
+        if (sink.pfd == null) {
+            if (allowMemory) {
+                sink.memory = new MemoryChannel();
+            } else {
+                sink.spool = new File(ctx.getCacheDir(), "out_" + System.nanoTime() + ".apk");
+            }
+        }
+        return sink;
+    }
+
+    private static boolean isSeekable(ParcelFileDescriptor pfd) {
+        try {
+            FileChannel channel = new FileInputStream(pfd.getFileDescriptor()).getChannel();
+            channel.position(0);
+            channel.size();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private OutputSink(Context ctx, Uri uri) {
+        this.ctx = ctx;
+        this.uri = uri;
+    }
+
+    /** Whether the archive is written straight into the destination. */
+    boolean isDirect() {
+        return spool == null && memory == null;
+    }
+
+    /**
+     * Writer for the archive; can be opened once. It owns the destination descriptor, so close
+     * it before {@link #verify} and {@link #commit}.
+     */
+    ApkArchiveWriter newWriter() throws IOException {
+        if (writerOpened) throw new IllegalStateException("Writer already opened");
+        writerOpened = true;
+        if (spool != null) return ApkArchiveWriter.create(spool);
+        if (memory != null) return new ApkArchiveWriter(memory);
+
+        ParcelFileDescriptor fd = pfd;
+        pfd = null;
+        FileOutputStream os = new FileOutputStream(fd.getFileDescriptor());
+        FileInputStream is = new FileInputStream(fd.getFileDescriptor());
+        FileChannel out = os.getChannel();
+        out.position(0);
+        return new ApkArchiveWriter(out, is.getChannel(), fd);
+    }
+
+    /** Verifies the signature of what was written. */
+    void verify(SigningEngine signer) throws Exception {
+        if (spool != null) {
+            signer.verify(spool);
+            return;
+        }
+        if (memory != null) {
+            signer.verify(memory.asDataSource(0, memory.size()), uri.toString());
+            return;
+        }
+        try (ParcelFileDescriptor fd = ctx.getContentResolver().openFileDescriptor(uri, "r")) {
+            if (fd == null) throw new FileNotFoundException("Cannot reopen " + uri);
+            FileChannel channel = new FileInputStream(fd.getFileDescriptor()).getChannel();
+            signer.verify(DataSources.asDataSource(channel, 0, channel.size()), uri.toString());
+        }
+    }
+
+    /**
+     * Makes the written archive visible at the destination; when written directly it only marks
+     * the archive as complete, so {@link #close} keeps it.
+     */
+    void commit() throws IOException {
+        if (!isDirect()) {
+            try (OutputStream os = ctx.getContentResolver().openOutputStream(uri)) {
+                if (os == null) throw new FileNotFoundException("Cannot open " + uri);
+                if (memory != null) {
+                    memory.writeTo(os);
+                } else {
+                    Files.copy(spool.toPath(), os);
+                }
+            }
+        }
+        committed = true;
+    }
+
+    /**
+     * Stores the committed archive in {@code cache}. A spool file is moved there; a direct
+     * output is read back from the destination.
+     */
+    void storeIn(DiskLruCache cache, String key) throws IOException {
+        if (spool != null) {
+            cache.putFile(key, spool);
+            return;
+        }
+        if (memory != null) {
+            cache.putStream(key, memory.newInputStream());
+            return;
+        }
+        try (InputStream in = ctx.getContentResolver().openInputStream(uri)) {
+            if (in == null) throw new FileNotFoundException("Cannot reopen " + uri);
+            cache.putStream(key, in);
+        }
+    }
+
+    /**
+     * Releases the sink. If the archive was written directly but never committed, because the
+     * build or verification failed, the destination is truncated so no partial or unsigned APK
+     * is left where the user asked for the clone.
+     */
+    @Override
+    public void close() throws IOException {
+        if (spool != null) spool.delete();
+        if (memory != null) memory.close();
+        if (pfd != null) pfd.close();
+        if (isDirect() && writerOpened && !committed) discard();
+    }
+
+    private void discard() {
+        try (ParcelFileDescriptor fd = ctx.getContentResolver().openFileDescriptor(uri, "rw")) {
+            if (fd == null) throw new FileNotFoundException("Cannot reopen " + uri);
+            new FileOutputStream(fd.getFileDescriptor()).getChannel().truncate(0);
+            Log.d(TAG, "Discarded incomplete output " + uri);
+        } catch (IOException | SecurityException e) {
+            Log.w(TAG, "Could not discard incomplete output " + uri, e);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.applisto.appcloner;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Raw DEFLATE on a bounded thread pool.
+ * Small entries are compressed as whole tasks. Large inputs are cut into blocks that are
+ * compressed concurrently, each primed with the previous 32 KiB as preset dictionary and
+ * sync-flushed, so the concatenated blocks form one valid deflate stream (as pigz does).
+ */
+public class ParallelDeflater implements Closeable {
+    static final int BLOCK_SIZE = 1024 * 1024;
+    private static final int DICT_SIZE = 32 * 1024;
+
+    private final ExecutorService pool;
+    private final int parallelism;
+    private final int level;
+
+    public static int defaultParallelism() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelDeflater(int parallelism, int level) {
+        this.parallelism = Math.max(1, parallelism);
+        this.level = level;
+        AtomicInteger threadId = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(this.parallelism, r -> {
+            Thread t = new Thread(r, "deflate-" + threadId.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Compresses {@code data} as a single task; meant for entries up to {@link #BLOCK_SIZE}.
+     * With {@code digest} the task also hashes the input with SHA-256.
+     */
+    public Future<Deflated> submit(byte[] data, boolean digest) {
+        return pool.submit(() -> {
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            Deflated d = new Deflated();
+            if (digest) d.sha256 = EntryDescriptor.newSha256().digest(data);
+            d.data = deflateBlock(null, data, data.length, true);
+            d.crc = crc.getValue();
+            d.size = data.length;
+            d.compressedSize = d.data.length;
+            return d;
+        });
+    }
+
+    /**
+     * Compresses {@code in} block by block and hands the compressed blocks to {@code sink} in
+     * input order. At most twice the pool size of blocks is in flight, which bounds memory use.
+     */
+    public Deflated deflate(InputStream in, BlockSink sink) throws IOException {
+        CRC32 crc = new CRC32();
+        long size = 0;
+        long compressed = 0;
+        ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<>();
+        byte[] dict = null;
+        try {
+            while (true) {
+                byte[] block = new byte[BLOCK_SIZE];
+                int len = readFully(in, block);
+                crc.update(block, 0, len);
+                size += len;
+                boolean last = len < BLOCK_SIZE;
+                byte[] blockDict = dict;
+                inFlight.add(pool.submit(() -> deflateBlock(blockDict, block, len, last)));
+                if (!last) {
+                    dict = new byte[DICT_SIZE];
+                    System.arraycopy(block, BLOCK_SIZE - DICT_SIZE, dict, 0, DICT_SIZE);
+                }
+                while (inFlight.size() > parallelism * 2 || (last && !inFlight.isEmpty())) {
+                    byte[] out = await(inFlight.poll());
+                    sink.write(out, 0, out.length);
+                    compressed += out.length;
+                }
+                if (last) break;
+            }
+        } finally {
+            for (Future<byte[]> f : inFlight) f.cancel(true);
+        }
+        Deflated result = new Deflated();
+        result.crc = crc.getValue();
+        result.size = size;
+        result.compressedSize = compressed;
+        return result;
+    }
+
+    private byte[] deflateBlock(byte[] dict, byte[] data, int len, boolean last) {
+        Deflater deflater = new Deflater(level, true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, len / 2));
+        byte[] buf = new byte[64 * 1024];
+        try {
+            if (dict != null) deflater.setDictionary(dict);
+            deflater.setInput(data, 0, len);
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buf);
+                    out.write(buf, 0, n);
+                }
+            } else {
+                // SYNC_FLUSH ends the block on a byte boundary, so the next block can follow it directly.
+                int n;
+                do {
+                    n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                    out.write(buf, 0, n);
+                } while (n == buf.length || !deflater.needsInput());
+            }
+        } finally {
+            deflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException("Compression failed", cause);
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] buf) throws IOException {
+        int off = 0;
+        while (off < buf.length) {
+            int n = in.read(buf, off, buf.length - off);
+            if (n < 0) break;
+            off += n;
+        }
+        return off;
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    public interface BlockSink {
+        void write(byte[] data, int off, int len) throws IOException;
+    }
+
+    public static class Deflated {
+        byte[] data;
+        long crc;
+        long size;
+        long compressedSize;
+        byte[] sha256;
+    }
+}
@@ -0,0 +1,195 @@
+package com.applisto.appcloner;
+
+import android.content.Context;
+import android.os.Debug;
+import android.os.Trace;
+import android.util.Log;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Per-phase timings of one clone job: wall and CPU time, bytes read and written, entries
+ * processed and peak heap. Each phase is also an {@code android.os.Trace} section, so a
+ * Perfetto capture shows it on the job's thread. Finished traces go to a small history on
+ * disk, newest last, to compare jobs across runs.
+ */
+public class PipelineTrace {
+    private static final String TAG = "PipelineTrace";
+    private static final String HISTORY_FILE = "pipeline_traces.json";
+    private static final int HISTORY_SIZE = 50;
+    // Trace section names are limited to 127 characters.
+    private static final int MAX_SECTION_NAME = 127;
+
+    final String job;
+    final long startMillis = System.currentTimeMillis();
+    final long startNanos = System.nanoTime();
+    final List<Phase> phases = Collections.synchronizedList(new ArrayList<>());
+    long endNanos;
+    String error;
+
+    /**
+     * One phase; close it on the thread that began it. CPU time is that thread's only, so work
+     * the phase hands to the deflate pool shows up in wall time, not CPU time.
+     */
+    public class Phase implements AutoCloseable {
+        final String name;
+        final long startNanos = System.nanoTime();
+        final long startCpuNanos = Debug.threadCpuTimeNanos();
+        long wallNanos;
+        long cpuNanos;
+        long bytesRead;
+        long bytesWritten;
+        int entries;
+        long peakHeap;
+        private boolean closed;
+
+        Phase(String name) {
+            this.name = name;
+            sampleHeap();
+            Trace.beginSection(sectionName(job + ": " + name));
+        }
+
+        public void addRead(long bytes) {
+            bytesRead += bytes;
+        }
+
+        public void addWritten(long bytes) {
+            bytesWritten += bytes;
+        }
+
+        /** Counts one processed entry; also samples the heap, as entries are where it grows. */
+        public void addEntry() {
+            entries++;
+            if ((entries & 63) == 0) sampleHeap();
+        }
+
+        void sampleHeap() {
+            Runtime rt = Runtime.getRuntime();
+            peakHeap = Math.max(peakHeap, rt.totalMemory() - rt.freeMemory());
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            sampleHeap();
+            wallNanos = System.nanoTime() - startNanos;
+            cpuNanos = Debug.threadCpuTimeNanos() - startCpuNanos;
+            Trace.endSection();
+        }
+
+        JSONObject toJson() throws JSONException {
+            return new JSONObject()
+                    .put("name", name)
+                    .put("wall_ms", wallNanos / 1_000_000.0)
+                    .put("cpu_ms", cpuNanos / 1_000_000.0)
+                    .put("bytes_read", bytesRead)
+                    .put("bytes_written", bytesWritten)
+                    .put("entries", entries)
+                    .put("peak_heap", peakHeap);
+        }
+    }
+
+    public PipelineTrace(String job) {
+        this.job = job;
+    }
+
+    /** Starts a phase, e.g. {@code try (PipelineTrace.Phase p = trace.begin("manifest")) { ... }}. */
+    public Phase begin(String name) {
+        Phase p = new Phase(name);
+        phases.add(p);
+        return p;
+    }
+
+    /** Ends the job; {@code failure} is null if it succeeded. */
+    public void finish(Throwable failure) {
+        endNanos = System.nanoTime();
+        error = failure != null ? String.valueOf(failure.getMessage()) : null;
+    }
+
+    public JSONObject toJson() {
+        try {
+            JSONArray list = new JSONArray();
+            synchronized (phases) {
+                for (Phase p : phases) list.put(p.toJson());
+            }
+            JSONObject o = new JSONObject()
+                    .put("job", job)
+                    .put("start", startMillis)
+                    .put("wall_ms", ((endNanos > 0 ? endNanos : System.nanoTime()) - startNanos) / 1_000_000.0)
+                    .put("phases", list);
+            if (error != null) o.put("error", error);
+            return o;
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** One line per phase with its wall time, for the log. */
+    public String summary() {
+        StringBuilder sb = new StringBuilder(job).append(": ")
+                .append((endNanos - startNanos) / 1_000_000).append(" ms");
+        synchronized (phases) {
+            for (Phase p : phases) {
+                sb.append("\n  ").append(p.name).append(' ').append(p.wallNanos / 1_000_000).append(" ms, cpu ")
+                        .append(p.cpuNanos / 1_000_000).append(" ms, ").append(p.entries).append(" entries, ")
+                        .append(p.bytesRead / 1024).append(" KB in, ").append(p.bytesWritten / 1024).append(" KB out");
+            }
+        }
+        return sb.toString();
+    }
+
+    /** Appends this trace to the history, dropping the oldest beyond {@link #HISTORY_SIZE}. */
+    public void save(Context ctx) {
+        File file = new File(ctx.getFilesDir(), HISTORY_FILE);
+        synchronized (PipelineTrace.class) {
+            try {
+                JSONArray history = readHistory(file);
+                history.put(toJson());
+                JSONArray kept = new JSONArray();
+                for (int i = Math.max(0, history.length() - HISTORY_SIZE); i < history.length(); i++) {
+                    kept.put(history.get(i));
+                }
+                File tmp = new File(file.getPath() + ".tmp");
+                Files.write(tmp.toPath(), kept.toString().getBytes(StandardCharsets.UTF_8));
+                if (!tmp.renameTo(file)) throw new IOException("Cannot replace " + file);
+            } catch (IOException | JSONException e) {
+                Log.w(TAG, "Could not save trace of " + job, e);
+            }
+        }
+        Log.i(TAG, summary());
+    }
+
+    /** Traces of recent jobs, oldest first. */
+    public static List<JSONObject> history(Context ctx) {
+        List<JSONObject> out = new ArrayList<>();
+        synchronized (PipelineTrace.class) {
+            JSONArray history = readHistory(new File(ctx.getFilesDir(), HISTORY_FILE));
+            for (int i = 0; i < history.length(); i++) {
+                JSONObject o = history.optJSONObject(i);
+                if (o != null) out.add(o);
+            }
+        }
+        return out;
+    }
+
+    private static JSONArray readHistory(File file) {
+        if (!file.isFile()) return new JSONArray();
+        try {
+            return new JSONArray(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Discarding unreadable trace history", e);
+            return new JSONArray();
+        }
+    }
+
+    private static String sectionName(String name) {
+        return name.length() <= MAX_SECTION_NAME ? name : name.substring(0, MAX_SECTION_NAME);
+    }
+}
@@ -0,0 +1,149 @@
+package com.applisto.appcloner;
+
+import android.util.Log;
+import com.reandroid.arsc.chunk.PackageBlock;
+import com.reandroid.arsc.chunk.TableBlock;
+import com.reandroid.arsc.chunk.TypeBlock;
+import com.reandroid.arsc.container.SpecTypePair;
+import com.reandroid.arsc.value.Entry;
+import com.reandroid.arsc.value.ResConfig;
+import com.reandroid.arsc.value.ResValue;
+import com.reandroid.arsc.value.ValueType;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Drops resource configurations a clone will never select from resources.arsc: locales and
+ * screen densities outside the kept sets. A configuration is only dropped if every resource
+ * it defines is also defined by a configuration that stays, so lookups cannot fail; files
+ * that only dropped configurations pointed to are reported for removal from the APK.
+ */
+public class ResourcePruner {
+    private static final String TAG = "ResourcePruner";
+    // Densities that do not name a screen: default, anydpi and nodpi.
+    private static final int DENSITY_DEFAULT = 0;
+    private static final int DENSITY_ANY = 0xFFFE;
+    private static final int DENSITY_NONE = 0xFFFF;
+
+    final Set<String> keepLocales = new HashSet<>();
+    final Set<Integer> keepDensities = new HashSet<>();
+
+    public static class Result {
+        byte[] table;
+        Set<String> removedFiles;
+        int removedConfigs;
+
+        /** The rewritten table; the input itself if nothing was dropped. */
+        public byte[] getTable() {
+            return table;
+        }
+
+        /** APK paths no remaining configuration refers to, e.g. "res/drawable-ldpi/icon.png". */
+        public Set<String> getRemovedFiles() {
+            return removedFiles;
+        }
+
+        public int getRemovedConfigs() {
+            return removedConfigs;
+        }
+    }
+
+    /**
+     * {@code locales} are language codes such as "en"; {@code densities} dpi values such as
+     * 480. An empty set keeps every locale or density.
+     */
+    public ResourcePruner(Collection<String> locales, Collection<Integer> densities) {
+        for (String l : locales) keepLocales.add(l.trim().toLowerCase(Locale.ROOT));
+        keepDensities.addAll(densities);
+    }
+
+    public boolean isEnabled() {
+        return !keepLocales.isEmpty() || !keepDensities.isEmpty();
+    }
+
+    public Result prune(byte[] arsc) throws IOException {
+        TableBlock table;
+        try {
+            table = TableBlock.load(new ByteArrayInputStream(arsc));
+        } catch (RuntimeException e) {
+            throw new IOException("Unreadable resource table", e);
+        }
+
+        Map<SpecTypePair, List<TypeBlock>> removals = new LinkedHashMap<>();
+        Set<String> keptFiles = new HashSet<>();
+        Set<String> droppedFiles = new TreeSet<>();
+        for (PackageBlock pkg : table.listPackages()) {
+            for (SpecTypePair pair : pkg.listSpecTypePairs()) {
+                List<TypeBlock> kept = new ArrayList<>();
+                List<TypeBlock> candidates = new ArrayList<>();
+                for (TypeBlock block : pair.listTypeBlocks()) {
+                    (isKept(block.getResConfig()) ? kept : candidates).add(block);
+                }
+                Set<Integer> covered = new HashSet<>();
+                for (TypeBlock block : kept) covered.addAll(resourceIds(block));
+                List<TypeBlock> removed = new ArrayList<>();
+                for (TypeBlock block : candidates) {
+                    if (covered.containsAll(resourceIds(block))) {
+                        removed.add(block);
+                        collectFiles(block, droppedFiles);
+                    } else {
+                        // A resource only this configuration defines; dropping it would break lookups.
+                        collectFiles(block, keptFiles);
+                    }
+                }
+                for (TypeBlock block : kept) collectFiles(block, keptFiles);
+                if (!removed.isEmpty()) removals.put(pair, removed);
+            }
+        }
+
+        Result result = new Result();
+        droppedFiles.removeAll(keptFiles);
+        result.removedFiles = droppedFiles;
+        if (removals.isEmpty()) {
+            result.table = arsc;
+            return result;
+        }
+        for (Map.Entry<SpecTypePair, List<TypeBlock>> e : removals.entrySet()) {
+            for (TypeBlock block : e.getValue()) {
+                e.getKey().getTypeBlockArray().remove(block);
+                result.removedConfigs++;
+            }
+        }
+        // Strings only dropped entries used stay in the pool; the table is still valid.
+        table.refresh();
+        result.table = table.getBytes();
+        Log.d(TAG, "Dropped " + result.removedConfigs + " configurations and " + droppedFiles.size()
+                + " files, table " + arsc.length + " -> " + result.table.length + " bytes");
+        return result;
+    }
+
+    private boolean isKept(ResConfig config) {
+        String language = config.getLanguage();
+        if (!keepLocales.isEmpty() && language != null && !language.isEmpty()
+                && !keepLocales.contains(language.toLowerCase(Locale.ROOT))) {
+            return false;
+        }
+        int density = config.getDensityValue();
+        return keepDensities.isEmpty() || density == DENSITY_DEFAULT || density == DENSITY_ANY
+                || density == DENSITY_NONE || keepDensities.contains(density);
+    }
+
+    private static Set<Integer> resourceIds(TypeBlock block) {
+        Set<Integer> ids = new HashSet<>();
+        for (Entry entry : block.getEntryArray().listItems()) {
+            if (entry != null && !entry.isNull()) ids.add(entry.getResourceId());
+        }
+        return ids;
+    }
+
+    private static void collectFiles(TypeBlock block, Set<String> files) {
+        for (Entry entry : block.getEntryArray().listItems()) {
+            if (entry == null || entry.isNull()) continue;
+            ResValue value = entry.getResValue();
+            if (value == null || value.getValueType() != ValueType.STRING) continue;
+            String path = value.getValueAsString();
+            if (path != null && path.startsWith("res/")) files.add(path);
+        }
+    }
+}
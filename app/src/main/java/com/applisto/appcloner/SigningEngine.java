@@ -0,0 +1,225 @@
+package com.applisto.appcloner;
+
+import android.content.Context;
+import android.util.Log;
+import com.android.apksig.ApkSignerEngine;
+import com.android.apksig.ApkVerifier;
+import com.android.apksig.DefaultApkSignerEngine;
+import com.android.apksig.util.DataSink;
+import com.android.apksig.util.DataSource;
+import com.android.apksig.util.DataSources;
+import com.android.apksig.util.RunnablesProvider;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process-wide signer. The PKCS12 key material is parsed once; signing itself runs through
+ * {@link Session}s that {@link ApkArchiveWriter} feeds while it writes entries, so the APK is
+ * signed in the file it is written to, without a separate signing pass or a second copy.
+ * The v2/v3 chunk digests are computed on a pool shared by all sessions.
+ */
+public class SigningEngine {
+    private static final String TAG = "SigningEngine";
+    private static final String KEYSTORE_ASSET = "debug.p12";
+    private static final String STORE_PWD      = "android";
+    private static final String KEY_PWD        = "android";
+    private static final String ALIAS          = "key0";
+    private static final String CREATED_BY     = "1.0 (Android)";
+    // Android 7.0 verifies v2 signatures, so older-platform JAR signing can be left out from here on.
+    static final int MIN_SDK_WITHOUT_V1 = 24;
+
+    private static SigningEngine instance;
+
+    private final PrivateKey key;
+    private final List<X509Certificate> certificates;
+    private final int digestParallelism = ParallelDeflater.defaultParallelism();
+    // One pool for the whole process, so concurrent clones share the cores instead of each
+    // starting a digest thread per core.
+    private final ExecutorService digestPool;
+
+    public static synchronized SigningEngine get(Context ctx) throws Exception {
+        if (instance == null) instance = load(ctx);
+        return instance;
+    }
+
+    private static SigningEngine load(Context ctx) throws Exception {
+        Log.d(TAG, "Loading keystore: " + KEYSTORE_ASSET + " with alias: " + ALIAS);
+        try (InputStream ksStream = ctx.getAssets().open(KEYSTORE_ASSET)) {
+            KeyStore ks = KeyStore.getInstance("PKCS12");
+            ks.load(ksStream, STORE_PWD.toCharArray());
+            PrivateKey key = (PrivateKey) ks.getKey(ALIAS, KEY_PWD.toCharArray());
+            if (key == null) throw new IllegalStateException("Private key is null for alias: " + ALIAS);
+            X509Certificate cert = (X509Certificate) ks.getCertificate(ALIAS);
+            if (cert == null) throw new IllegalStateException("Certificate is null for alias: " + ALIAS);
+            return new SigningEngine(key, Collections.singletonList(cert));
+        }
+    }
+
+    private SigningEngine(PrivateKey key, List<X509Certificate> certificates) {
+        this.key = key;
+        this.certificates = certificates;
+        AtomicInteger threadId = new AtomicInteger();
+        this.digestPool = Executors.newFixedThreadPool(digestParallelism, r -> {
+            Thread t = new Thread(r, "apk-digest-" + threadId.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public List<X509Certificate> getCertificates() {
+        return certificates;
+    }
+
+    /** Whether an APK with this minSdkVersion needs a JAR signature besides v2/v3. */
+    public static boolean needsV1(int minSdk) {
+        return minSdk < MIN_SDK_WITHOUT_V1;
+    }
+
+    /** A session for one output APK; schemes are chosen from {@code minSdk}. */
+    public Session newSession(int minSdk) throws Exception {
+        DefaultApkSignerEngine.SignerConfig signer =
+                new DefaultApkSignerEngine.SignerConfig.Builder(ALIAS, key, certificates).build();
+        DefaultApkSignerEngine engine =
+                new DefaultApkSignerEngine.Builder(Collections.singletonList(signer), Math.max(1, minSdk))
+                        .setV1SigningEnabled(needsV1(minSdk))
+                        .setV2SigningEnabled(true)
+                        .setV3SigningEnabled(true)
+                        .setCreatedBy(CREATED_BY)
+                        .build();
+        engine.setExecutor(this::digestOnPool);
+        Log.d(TAG, "Signing session for minSdk " + minSdk + (needsV1(minSdk) ? " (v1+v2+v3)" : " (v2+v3)"));
+        return new Session(engine);
+    }
+
+    /**
+     * Runs {@code provider}'s workers on the digest pool and waits for them. apksig's workers
+     * take 1 MiB chunks off a shared cursor until none are left, so one worker per core keeps
+     * every core busy.
+     */
+    private void digestOnPool(RunnablesProvider provider) {
+        List<Future<?>> workers = new ArrayList<>(digestParallelism);
+        for (int i = 0; i < digestParallelism; i++) workers.add(digestPool.submit(provider.createRunnable()));
+        try {
+            for (Future<?> f : workers) f.get();
+        } catch (InterruptedException e) {
+            for (Future<?> f : workers) f.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while computing APK digests", e);
+        } catch (ExecutionException e) {
+            for (Future<?> f : workers) f.cancel(true);
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new RuntimeException("Computing APK digests failed", cause);
+        }
+    }
+
+    /**
+     * Full signature verification of {@code apk}. This re-reads the whole file, so callers run
+     * it only when asked to.
+     */
+    public void verify(File apk) throws Exception {
+        check(new ApkVerifier.Builder(apk).build().verify(), apk.getName());
+    }
+
+    /** Like {@link #verify(File)}, for an APK that is not a plain file. */
+    public void verify(DataSource apk, String label) throws Exception {
+        check(new ApkVerifier.Builder(apk).build().verify(), label);
+    }
+
+    private static void check(ApkVerifier.Result result, String label) throws IOException {
+        if (!result.isVerified()) {
+            throw new IOException("Signature verification failed for " + label + ": " + result.getErrors());
+        }
+        Log.d(TAG, "Signature verified: " + label);
+    }
+
+    /**
+     * Signing state of one APK being written. Every entry is announced with
+     * {@link #startEntry}; after the last entry the writer adds {@link #signatureEntries}, and
+     * once the central directory is known it asks for the {@link #signingBlock}.
+     */
+    public static class Session implements Closeable {
+        private final DefaultApkSignerEngine engine;
+        private ApkSignerEngine.OutputJarSignatureRequest jarRequest;
+
+        Session(DefaultApkSignerEngine engine) {
+            this.engine = engine;
+        }
+
+        /** Sink for the uncompressed data of {@code name}, or null if signing does not need it. */
+        public EntrySink startEntry(String name) {
+            ApkSignerEngine.InspectJarEntryRequest request = engine.outputJarEntry(name);
+            return request != null ? new EntrySink(request) : null;
+        }
+
+        /** JAR signature files to add to the archive; empty when v1 is off. */
+        public List<ApkSignerEngine.OutputJarSignatureRequest.JarEntry> signatureEntries() throws Exception {
+            jarRequest = engine.outputJarEntries();
+            return jarRequest != null ? jarRequest.getAdditionalJarEntries()
+                    : Collections.<ApkSignerEngine.OutputJarSignatureRequest.JarEntry>emptyList();
+        }
+
+        /** Confirms that the entries from {@link #signatureEntries} have been written. */
+        public void signatureEntriesWritten() {
+            if (jarRequest != null) jarRequest.done();
+        }
+
+        /**
+         * APK Signing Block for an archive whose entries are {@code entries} and whose central
+         * directory and end record are {@code cd} and {@code eocd} (offsets as if unsigned).
+         */
+        public SigningBlock signingBlock(DataSource entries, ByteBuffer cd, ByteBuffer eocd) throws Exception {
+            ApkSignerEngine.OutputApkSigningBlockRequest2 request =
+                    engine.outputZipSections2(entries, DataSources.asDataSource(cd), DataSources.asDataSource(eocd));
+            SigningBlock block = new SigningBlock();
+            if (request != null) {
+                block.padding = request.getPaddingSizeBeforeApkSigningBlock();
+                block.data = request.getApkSigningBlock();
+                request.done();
+            }
+            engine.outputDone();
+            return block;
+        }
+
+        @Override
+        public void close() {
+            engine.close();
+        }
+    }
+
+    public static class EntrySink {
+        private final ApkSignerEngine.InspectJarEntryRequest request;
+        private final DataSink sink;
+
+        EntrySink(ApkSignerEngine.InspectJarEntryRequest request) {
+            this.request = request;
+            this.sink = request.getDataSink();
+        }
+
+        public void write(byte[] data, int off, int len) throws IOException {
+            sink.consume(data, off, len);
+        }
+
+        public void done() {
+            request.done();
+        }
+    }
+
+    public static class SigningBlock {
+        int padding;
+        byte[] data;
+
+        boolean isEmpty() {
+            return data == null;
+        }
+    }
+}
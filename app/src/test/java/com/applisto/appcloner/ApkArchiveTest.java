@@ -0,0 +1,94 @@
+package com.applisto.appcloner;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/** Single entries read back through {@link ApkArchive}, opened and mapped. */
+public class ApkArchiveTest {
+    private File dir;
+    private File apk;
+    private final Map<String, byte[]> entries = new LinkedHashMap<>();
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("apkarchive").toFile();
+        entries.put("AndroidManifest.xml", ApkArchiveWriterTest.text(3000, 1));
+        entries.put("classes.dex", ApkArchiveWriterTest.text(200_000, 2));
+        entries.put("res/raw/empty", new byte[0]);
+        entries.put("assets/binary.bin", ApkArchiveWriterTest.random(70_000, 3));
+        entries.put("assets/cloner.json", "{\"android_id\":\"0123456789ABCDEF\"}".getBytes("UTF-8"));
+        entries.put("assets/\u00fcn\u00efcode.txt", ApkArchiveWriterTest.text(100, 5));
+        apk = new File(dir, "in.apk");
+        try (ApkArchiveWriter writer = ApkArchiveWriter.create(apk)) {
+            int i = 0;
+            for (Map.Entry<String, byte[]> e : entries.entrySet()) {
+                if (i++ % 2 == 0) {
+                    writer.putStored(e.getKey(), e.getValue());
+                } else {
+                    writer.putDeflated(e.getKey(), e.getValue());
+                }
+            }
+            writer.finish();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        apk.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void openedAndMappedArchivesReadEveryEntry() throws IOException {
+        try (ApkArchive opened = ApkArchive.open(apk);
+             ApkArchive mapped = ApkArchive.map(apk)) {
+            for (ApkArchive archive : new ApkArchive[] {opened, mapped}) {
+                assertEquals(entries.size(), archive.entries().size());
+                assertEquals(ApkArchive.METHOD_STORED, archive.getEntry("AndroidManifest.xml").getMethod());
+                assertEquals(ApkArchive.METHOD_DEFLATED, archive.getEntry("classes.dex").getMethod());
+                for (Map.Entry<String, byte[]> e : entries.entrySet()) {
+                    ApkArchive.Entry entry = archive.getEntry(e.getKey());
+                    assertNotNull(e.getKey(), entry);
+                    assertEquals(e.getKey(), e.getValue().length, entry.getSize());
+                    assertArrayEquals(e.getKey(), e.getValue(), archive.read(entry));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void readEntryReturnsOneEntryOrNull() throws IOException {
+        assertArrayEquals(entries.get("assets/cloner.json"), ApkArchive.readEntry(apk, "assets/cloner.json"));
+        assertArrayEquals(entries.get("classes.dex"), ApkArchive.readEntry(apk, "classes.dex"));
+        assertNull(ApkArchive.readEntry(apk, "assets/missing.json"));
+    }
+
+    @Test
+    public void mappedReadsAreIndependent() throws IOException {
+        try (ApkArchive mapped = ApkArchive.map(apk)) {
+            // Interleaved streams must not disturb each other's position.
+            ApkArchive.Entry dex = mapped.getEntry("classes.dex");
+            ApkArchive.Entry bin = mapped.getEntry("assets/binary.bin");
+            try (InputStream a = mapped.open(dex);
+                 InputStream b = mapped.open(bin)) {
+                ByteArrayOutputStream outA = new ByteArrayOutputStream();
+                ByteArrayOutputStream outB = new ByteArrayOutputStream();
+                byte[] buf = new byte[1000];
+                int na = 0;
+                int nb = 0;
+                while (na != -1 || nb != -1) {
+                    if (na != -1 && (na = a.read(buf)) > 0) outA.write(buf, 0, na);
+                    if (nb != -1 && (nb = b.read(buf)) > 0) outB.write(buf, 0, nb);
+                }
+                assertArrayEquals(entries.get("classes.dex"), outA.toByteArray());
+                assertArrayEquals(entries.get("assets/binary.bin"), outB.toByteArray());
+            }
+        }
+    }
+}
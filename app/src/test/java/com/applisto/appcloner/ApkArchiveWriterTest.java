@@ -0,0 +1,247 @@
+package com.applisto.appcloner;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.*;
+
+/** Archives written by {@link ApkArchiveWriter}, read back with java.util.zip. */
+public class ApkArchiveWriterTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("apkwriter").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void storedAndDeflatedEntriesRoundTrip() throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("AndroidManifest.xml", text(3000, 1));
+        entries.put("classes.dex", text(200_000, 2));
+        entries.put("res/raw/empty", new byte[0]);
+        entries.put("assets/binary.bin", random(70_000, 3));
+        entries.put("lib/arm64-v8a/libhook.so", random(10_000, 4));
+        entries.put("assets/\u00fcn\u00efcode.txt", text(100, 5));
+        File source = new File(dir, "source.bin");
+        Files.write(source.toPath(), text(50_000, 6));
+
+        File apk = new File(dir, "out.apk");
+        try (ApkArchiveWriter writer = ApkArchiveWriter.create(apk)) {
+            writer.putStored("AndroidManifest.xml", entries.get("AndroidManifest.xml"));
+            writer.putDeflated("classes.dex", entries.get("classes.dex"));
+            writer.putStored("res/raw/empty", entries.get("res/raw/empty"));
+            writer.putDeflated("assets/binary.bin", entries.get("assets/binary.bin"));
+            writer.putStored("lib/arm64-v8a/libhook.so", entries.get("lib/arm64-v8a/libhook.so"));
+            writer.putDeflated("assets/\u00fcn\u00efcode.txt", entries.get("assets/\u00fcn\u00efcode.txt"));
+            writer.putFile("assets/stored_file", source, true);
+            writer.putFile("assets/deflated_file", source, false);
+            writer.finish();
+        }
+        entries.put("assets/stored_file", Files.readAllBytes(source.toPath()));
+        entries.put("assets/deflated_file", Files.readAllBytes(source.toPath()));
+
+        assertZipContains(apk, entries);
+    }
+
+    @Test
+    public void queuedEntriesKeepSubmissionOrder() throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        for (int i = 0; i < 20; i++) entries.put("res/raw/r" + i, text(5_000 + i * 997, i));
+        entries.put("assets/large.bin", text(ParallelDeflater.BLOCK_SIZE * 2 + 123, 99));
+
+        File apk = new File(dir, "queued.apk");
+        try (ParallelDeflater deflater = new ParallelDeflater(4, 6);
+             ApkArchiveWriter writer = ApkArchiveWriter.create(apk)) {
+            writer.setDeflater(deflater);
+            writer.setDigestsEnabled(true);
+            for (Map.Entry<String, byte[]> e : entries.entrySet()) writer.queueDeflated(e.getKey(), e.getValue());
+            writer.putStored("after", new byte[] {1, 2, 3});
+            writer.finish();
+        }
+        entries.put("after", new byte[] {1, 2, 3});
+
+        assertZipContains(apk, entries);
+        try (ApkArchive archive = ApkArchive.open(apk)) {
+            List<String> names = new ArrayList<>();
+            for (ApkArchive.Entry e : archive.entries()) names.add(e.getName());
+            assertEquals(new ArrayList<>(entries.keySet()), names);
+        }
+    }
+
+    @Test
+    public void rawCopiesKeepData() throws IOException {
+        File first = new File(dir, "first.apk");
+        byte[] dex = text(100_000, 7);
+        byte[] arsc = random(9_000, 8);
+        try (ApkArchiveWriter writer = ApkArchiveWriter.create(first)) {
+            writer.putDeflated("classes.dex", dex);
+            writer.putStored("resources.arsc", arsc);
+            writer.finish();
+        }
+        File second = new File(dir, "second.apk");
+        try (ApkArchive source = ApkArchive.open(first);
+             ApkArchiveWriter writer = ApkArchiveWriter.create(second)) {
+            // An odd-length name first, so the STORED copy has to be realigned.
+            writer.putStored("x", new byte[] {42});
+            for (ApkArchive.Entry e : source.entries()) writer.copy(source, e);
+            writer.copy(source, source.getEntry("classes.dex"), "classes2.dex");
+            writer.finish();
+        }
+        Map<String, byte[]> expected = new LinkedHashMap<>();
+        expected.put("x", new byte[] {42});
+        expected.put("classes.dex", dex);
+        expected.put("resources.arsc", arsc);
+        expected.put("classes2.dex", dex);
+        assertZipContains(second, expected);
+        assertStoredAligned(second, 0);
+    }
+
+    @Test
+    public void storedEntriesAreFourByteAligned() throws IOException {
+        File apk = new File(dir, "aligned.apk");
+        try (ApkArchiveWriter writer = ApkArchiveWriter.create(apk)) {
+            // Names of every length modulo 4 shift the data start differently.
+            for (int i = 0; i < 8; i++) {
+                writer.putStored("res/raw/" + "abcdefgh".substring(0, i + 1), random(13 * i + 1, i));
+                writer.putDeflated("res/raw/d" + i, text(1000, i));
+            }
+            writer.putStored("lib/x86/libunaligned.so", random(5000, 9));
+            writer.finish();
+        }
+        assertStoredAligned(apk, 0);
+    }
+
+    @Test
+    public void nativeLibsArePageAligned() throws IOException {
+        for (int pageSize : new int[] {4096, 16384}) {
+            File apk = new File(dir, "page" + pageSize + ".apk");
+            try (ApkArchiveWriter writer = ApkArchiveWriter.create(apk)) {
+                writer.setPageAlignment(pageSize);
+                writer.putStored("AndroidManifest.xml", random(777, 1));
+                writer.putStored("lib/arm64-v8a/liba.so", random(5000, 2));
+                writer.putDeflated("classes.dex", text(3333, 3));
+                writer.putStored("lib/arm64-v8a/libb.so", random(20000, 4));
+                writer.putFile("lib/armeabi-v7a/libc.so", writeFile("libc.so", random(3000, 5)), true);
+                writer.finish();
+            }
+            assertStoredAligned(apk, pageSize);
+            try (ApkArchive archive = ApkArchive.open(apk)) {
+                assertEquals(pageSize, archive.nativeLibAlignment());
+            }
+        }
+    }
+
+    @Test
+    public void memoryChannelArchiveMatchesFileArchive() throws IOException {
+        byte[] dex = text(300_000, 11);
+        MemoryChannel memory = new MemoryChannel();
+        try (ApkArchiveWriter writer = new ApkArchiveWriter(memory)) {
+            writer.putStored("AndroidManifest.xml", random(1000, 12));
+            writer.putDeflated("classes.dex", dex);
+            writer.finish();
+        }
+        File apk = new File(dir, "memory.apk");
+        try (OutputStream os = new FileOutputStream(apk)) {
+            memory.writeTo(os);
+        }
+        assertEquals(memory.size(), apk.length());
+        try (ApkArchive archive = ApkArchive.open(memory)) {
+            assertArrayEquals(dex, archive.read(archive.getEntry("classes.dex")));
+        }
+        try (ZipFile zip = new ZipFile(apk)) {
+            assertArrayEquals(dex, readAll(zip.getInputStream(zip.getEntry("classes.dex"))));
+        }
+    }
+
+    @Test
+    public void duplicateNamesAreRejected() throws IOException {
+        File apk = new File(dir, "dup.apk");
+        try (ApkArchiveWriter writer = ApkArchiveWriter.create(apk)) {
+            writer.putStored("a", new byte[1]);
+            assertTrue(writer.contains("a"));
+            try {
+                writer.putDeflated("a", new byte[1]);
+                fail("Duplicate entry accepted");
+            } catch (IOException | IllegalArgumentException expected) {
+                // Either is fine; the archive must not get two entries of the same name.
+            }
+        }
+    }
+
+    private static void assertZipContains(File apk, Map<String, byte[]> expected) throws IOException {
+        try (ZipFile zip = new ZipFile(apk)) {
+            assertEquals(expected.size(), zip.size());
+            for (Map.Entry<String, byte[]> e : expected.entrySet()) {
+                ZipEntry ze = zip.getEntry(e.getKey());
+                assertNotNull(e.getKey(), ze);
+                assertEquals(e.getKey(), e.getValue().length, ze.getSize());
+                assertArrayEquals(e.getKey(), e.getValue(), readAll(zip.getInputStream(ze)));
+            }
+        }
+    }
+
+    /** Every STORED entry starts on 4 bytes, and .so entries on {@code pageSize} if it is set. */
+    private static void assertStoredAligned(File apk, int pageSize) throws IOException {
+        try (ApkArchive archive = ApkArchive.open(apk)) {
+            for (ApkArchive.Entry e : archive.entries()) {
+                if (e.getMethod() != ApkArchive.METHOD_STORED) continue;
+                int alignment = pageSize > 0 && e.getName().endsWith(".so") ? pageSize : 4;
+                assertEquals(e.getName(), 0, archive.dataOffset(e) % alignment);
+            }
+        }
+    }
+
+    private File writeFile(String name, byte[] data) throws IOException {
+        File f = new File(dir, name);
+        Files.write(f.toPath(), data);
+        return f;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        try (InputStream is = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = is.read(buf)) != -1) out.write(buf, 0, n);
+            return out.toByteArray();
+        }
+    }
+
+    /** Compressible bytes. */
+    static byte[] text(int size, long seed) {
+        Random r = new Random(seed);
+        String[] words = {"clone", "hook", "dex", "manifest", "signing", "entry", "archive", "android"};
+        byte[] out = new byte[size];
+        int i = 0;
+        while (i < size) {
+            byte[] w = (words[r.nextInt(words.length)] + ' ').getBytes();
+            int n = Math.min(w.length, size - i);
+            System.arraycopy(w, 0, out, i, n);
+            i += n;
+        }
+        return out;
+    }
+
+    /** Incompressible bytes. */
+    static byte[] random(int size, long seed) {
+        byte[] out = new byte[size];
+        new Random(seed).nextBytes(out);
+        return out;
+    }
+}
@@ -0,0 +1,181 @@
+package com.applisto.appcloner;
+
+import org.junit.Test;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/** {@link MemoryChannel} has to behave like the FileChannel it stands in for. */
+public class MemoryChannelTest {
+    private static final int CHUNK = MemoryChannel.CHUNK_SIZE;
+
+    @Test
+    public void writesAcrossChunksReadBack() throws IOException {
+        byte[] data = ApkArchiveWriterTest.random(2 * CHUNK + 100, 1);
+        try (MemoryChannel channel = new MemoryChannel()) {
+            // Uneven pieces, so writes straddle chunk boundaries.
+            for (int off = 0; off < data.length; off += 300_001) {
+                int len = Math.min(300_001, data.length - off);
+                assertEquals(len, channel.write(ByteBuffer.wrap(data, off, len)));
+            }
+            assertEquals(data.length, channel.size());
+            assertEquals(data.length, channel.position());
+            assertArrayEquals(data, readAll(channel));
+
+            ByteBuffer across = ByteBuffer.allocate(64);
+            assertEquals(64, channel.read(across, CHUNK - 32));
+            assertArrayEquals(slice(data, CHUNK - 32, 64), across.array());
+            assertEquals("positional reads leave the position alone", data.length, channel.position());
+        }
+    }
+
+    @Test
+    public void positionSemanticsMatchFileChannel() throws IOException {
+        File file = Files.createTempFile("memorychannel", ".bin").toFile();
+        try (MemoryChannel memory = new MemoryChannel();
+             FileChannel disk = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            for (SeekableByteChannel c : new SeekableByteChannel[] {memory, disk}) {
+                c.write(ByteBuffer.wrap(new byte[] {1, 2, 3, 4, 5}));
+                c.position(2);
+                c.write(ByteBuffer.wrap(new byte[] {9}));
+                assertEquals(3, c.position());
+                assertEquals(5, c.size());
+                // Seeking past the end does not grow the channel until something is written.
+                c.position(10);
+                assertEquals(5, c.size());
+                assertEquals(-1, c.read(ByteBuffer.allocate(1)));
+                c.write(ByteBuffer.wrap(new byte[] {7}));
+                assertEquals(11, c.size());
+            }
+            assertArrayEquals(Files.readAllBytes(file.toPath()), readAll(memory));
+            assertArrayEquals(new byte[] {1, 2, 9, 4, 5, 0, 0, 0, 0, 0, 7}, readAll(memory));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void gapsReadAsZerosEvenInRecycledChunks() throws IOException {
+        byte[] ones = new byte[CHUNK];
+        Arrays.fill(ones, (byte) 1);
+        // Fill chunks and return them to the pool dirty.
+        for (int i = 0; i < 3; i++) {
+            MemoryChannel dirty = new MemoryChannel();
+            dirty.write(ByteBuffer.wrap(ones));
+            dirty.write(ByteBuffer.wrap(ones));
+            dirty.close();
+        }
+        try (MemoryChannel channel = new MemoryChannel()) {
+            channel.position(CHUNK + 10);
+            channel.write(ByteBuffer.wrap(new byte[] {5}));
+            byte[] content = readAll(channel);
+            assertEquals(CHUNK + 11, content.length);
+            for (int i = 0; i < CHUNK + 10; i++) {
+                if (content[i] != 0) fail("byte " + i + " is " + content[i]);
+            }
+            assertEquals(5, content[CHUNK + 10]);
+        }
+    }
+
+    @Test
+    public void truncateShrinksAndClampsPosition() throws IOException {
+        byte[] data = ApkArchiveWriterTest.random(CHUNK + 500, 2);
+        try (MemoryChannel channel = new MemoryChannel()) {
+            channel.write(ByteBuffer.wrap(data));
+            channel.truncate(CHUNK + 1000);
+            assertEquals("growing is a no-op", data.length, channel.size());
+            assertEquals(data.length, channel.position());
+
+            channel.truncate(100);
+            assertEquals(100, channel.size());
+            assertEquals(100, channel.position());
+            assertArrayEquals(slice(data, 0, 100), readAll(channel));
+
+            channel.position(50);
+            channel.truncate(80);
+            assertEquals("position below the new size stays", 50, channel.position());
+
+            // Bytes beyond the truncation point must not come back when the channel grows again.
+            channel.position(200);
+            channel.write(ByteBuffer.wrap(new byte[] {1}));
+            byte[] content = readAll(channel);
+            assertEquals(201, content.length);
+            for (int i = 80; i < 200; i++) assertEquals("byte " + i, 0, content[i]);
+
+            channel.truncate(0);
+            assertEquals(0, channel.size());
+            assertEquals(0, channel.position());
+        }
+    }
+
+    @Test
+    public void dataSourceAndStreamsSeeTheContent() throws IOException {
+        byte[] data = ApkArchiveWriterTest.random(CHUNK + 4096, 3);
+        try (MemoryChannel channel = MemoryChannel.readFully(new ByteArrayInputStream(data))) {
+            assertEquals(0, channel.position());
+            assertArrayEquals(slice(data, CHUNK - 10, 20),
+                    toArray(channel.asDataSource(0, data.length).getByteBuffer(CHUNK - 10, 20)));
+            assertArrayEquals(slice(data, 1000, 50),
+                    toArray(channel.asDataSource(990, 100).slice(10, 50).getByteBuffer(0, 50)));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            channel.writeTo(out);
+            assertArrayEquals(data, out.toByteArray());
+            assertArrayEquals(data, readAll(channel.newInputStream()));
+        }
+    }
+
+    @Test
+    public void closedChannelRejectsAccess() throws IOException {
+        MemoryChannel channel = new MemoryChannel();
+        channel.write(ByteBuffer.wrap(new byte[] {1}));
+        channel.close();
+        assertFalse(channel.isOpen());
+        try {
+            channel.read(ByteBuffer.allocate(1), 0);
+            fail("read after close");
+        } catch (ClosedChannelException expected) {
+            // As a FileChannel would.
+        }
+        try {
+            channel.write(ByteBuffer.wrap(new byte[] {1}));
+            fail("write after close");
+        } catch (ClosedChannelException expected) {
+            // As a FileChannel would.
+        }
+    }
+
+    private static byte[] readAll(MemoryChannel channel) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate((int) channel.size());
+        while (b.hasRemaining() && channel.read(b, b.position()) > 0) {
+            // read(ByteBuffer, long) advances the buffer.
+        }
+        return b.array();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) != -1) out.write(buf, 0, n);
+        return out.toByteArray();
+    }
+
+    private static byte[] slice(byte[] data, int off, int len) {
+        byte[] out = new byte[len];
+        System.arraycopy(data, off, out, 0, len);
+        return out;
+    }
+
+    private static byte[] toArray(ByteBuffer b) {
+        byte[] out = new byte[b.remaining()];
+        b.get(out);
+        return out;
+    }
+}
@@ -0,0 +1,105 @@
+package com.applisto.appcloner;
+
+import org.junit.Test;
+import java.io.*;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.*;
+
+/** Output of {@link ParallelDeflater} has to inflate as one raw deflate stream. */
+public class ParallelDeflaterTest {
+    private static final int BLOCK = ParallelDeflater.BLOCK_SIZE;
+
+    @Test
+    public void blocksInflateBackToInput() throws Exception {
+        // Around every block boundary, including inputs ending exactly on one.
+        int[] sizes = {0, 1, BLOCK - 1, BLOCK, BLOCK + 1, 2 * BLOCK, 3 * BLOCK + 12345};
+        try (ParallelDeflater deflater = new ParallelDeflater(4, 9)) {
+            for (int size : sizes) {
+                byte[] input = ApkArchiveWriterTest.text(size, size);
+                assertRoundTrip(deflater, input);
+            }
+        }
+    }
+
+    @Test
+    public void incompressibleBlocksInflateBackToInput() throws Exception {
+        try (ParallelDeflater deflater = new ParallelDeflater(3, 6)) {
+            assertRoundTrip(deflater, ApkArchiveWriterTest.random(2 * BLOCK + 777, 1));
+        }
+    }
+
+    @Test
+    public void matchesAcrossBlockBoundariesUseThePresetDictionary() throws Exception {
+        // The second block repeats the end of the first; with the previous 32 KiB as dictionary
+        // it compresses to almost nothing.
+        byte[] input = new byte[2 * BLOCK];
+        byte[] noise = ApkArchiveWriterTest.random(BLOCK, 2);
+        System.arraycopy(noise, 0, input, 0, BLOCK);
+        for (int i = BLOCK; i < input.length; i++) input[i] = input[BLOCK - 16 * 1024 + (i - BLOCK) % (16 * 1024)];
+        try (ParallelDeflater deflater = new ParallelDeflater(2, 6)) {
+            ParallelDeflater.Deflated d = assertRoundTrip(deflater, input);
+            assertTrue("compressed " + d.compressedSize, d.compressedSize < BLOCK + BLOCK / 8);
+        }
+    }
+
+    @Test
+    public void singleTasksInflateBackToInput() throws Exception {
+        byte[] input = ApkArchiveWriterTest.text(200_000, 3);
+        try (ParallelDeflater deflater = new ParallelDeflater(2, 9)) {
+            ParallelDeflater.Deflated d = ParallelDeflater.await(deflater.submit(input, true));
+            assertArrayEquals(input, inflate(d.data, input.length));
+            assertEquals(crc(input), d.crc);
+            assertEquals(input.length, d.size);
+            assertEquals(d.data.length, d.compressedSize);
+            assertArrayEquals(EntryDescriptor.newSha256().digest(input), d.sha256);
+        }
+    }
+
+    private static ParallelDeflater.Deflated assertRoundTrip(ParallelDeflater deflater, byte[] input)
+            throws IOException, DataFormatException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ParallelDeflater.Deflated d = deflater.deflate(new ByteArrayInputStream(input), out::write);
+        byte[] compressed = out.toByteArray();
+        assertEquals(input.length, d.size);
+        assertEquals(compressed.length, d.compressedSize);
+        assertEquals(crc(input), d.crc);
+        assertArrayEquals("size " + input.length, input, inflate(compressed, input.length));
+        return d;
+    }
+
+    /** Inflates a raw stream and checks it ends where the data ends, with a final block. */
+    private static byte[] inflate(byte[] compressed, int expectedSize) throws DataFormatException {
+        Inflater inflater = new Inflater(true);
+        try {
+            // nowrap inflaters need one byte past the end of the stream.
+            byte[] in = new byte[compressed.length + 1];
+            System.arraycopy(compressed, 0, in, 0, compressed.length);
+            inflater.setInput(in);
+            byte[] out = new byte[expectedSize];
+            int n = 0;
+            while (n < out.length && !inflater.finished()) {
+                int r = inflater.inflate(out, n, out.length - n);
+                if (r == 0 && inflater.needsInput()) break;
+                n += r;
+            }
+            // Nothing may follow the expected bytes, and the stream has to be terminated.
+            byte[] extra = new byte[1];
+            assertEquals(0, inflater.inflate(extra));
+            assertTrue("stream not finished", inflater.finished());
+            assertEquals(expectedSize, n);
+            assertEquals(compressed.length, inflater.getBytesRead());
+            return out;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static long crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+}